@@ -5,20 +5,24 @@ import java.nio.file.Files;
 import java.security.*;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
-import java.security.interfaces.RSAPrivateKey;
+import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 
 public class CreateKeyStore {
 
-    public static RSAPrivateKey readPrivateKey(File file) throws Exception {
+    // RSA or EC private key in PKCS#8 DER format
+    public static PrivateKey readPrivateKey(File file) throws Exception {
         //String key = new String(Files.readAllBytes(file.toPath()), Charset.defaultCharset());
 
 
         byte[] encoded = Files.readAllBytes(file.toPath());
 
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
         PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(encoded);
-        return (RSAPrivateKey) keyFactory.generatePrivate(keySpec);
+        try {
+            return KeyFactory.getInstance("RSA").generatePrivate(keySpec);
+        } catch (InvalidKeySpecException e) {
+            return KeyFactory.getInstance("EC").generatePrivate(keySpec);
+        }
     }
 
 
@@ -0,0 +1,756 @@
+package secclient;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import io.grpc.Channel;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import secserver.grpc.Curves;
+import secserver.grpc.SecServerServiceGrpc;
+import secserver.grpc.Secserver.*;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.interfaces.ECKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+/*
+ * Non-blocking client for one identity. Every call takes the next sequence number, is signed and sent right away,
+ * so several requests can be outstanding at once, and its future completes with the verified response that carries
+ * that sequence number. A request the server does not answer in time is sent again as it was, up to maxAttempts
+ * times, which is safe because the server never executes a sequence number twice. When a request gives up the
+ * sequence number is asked to the server again before anything else is sent, once every request already sent is
+ * answered or gave up too, so none of them can still run under a number handed out again. Requests the server answers
+ * with an ErrorResponse, because it gave up waiting for the ones before them, are sent again shortly after.
+ *
+ * Once openSession completes, requests carry an HMAC with the session key instead of an RSA signature, except the
+ * ones asked to be signed, which stay non-repudiable. A request the server answers with UNAUTHENTICATED, because the
+ * session expired or the server restarted, is signed and sent again while a new session is opened.
+ *
+ * Once openStream is called, requests go out on one long-lived stream instead of a call each, and back to separate
+ * calls if the stream fails.
+ */
+public class AsyncSecClient {
+    private static final long RETRY_DELAY_MILLIS = 50;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] CLIENT_INFO = "secserver client".getBytes();
+    private static final byte[] SERVER_INFO = "secserver server".getBytes();
+
+    private static class Session {
+        private final ByteString id;
+        private final SecretKeySpec clientKey;
+        private final SecretKeySpec serverKey;
+        private final long expiresAt;
+
+        private Session(ByteString id, SecretKeySpec clientKey, SecretKeySpec serverKey, long expiresAt) {
+            this.id = id;
+            this.clientKey = clientKey;
+            this.serverKey = serverKey;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private interface Call {
+        void invoke(SecServerServiceGrpc.SecServerServiceStub stub, Payload request, StreamObserver<Payload> responseObserver);
+    }
+
+    private final SecServerServiceGrpc.SecServerServiceStub stub;
+    private final ByteString publicKey;
+    private final PrivateKey privateKey;
+    private final PublicKey serverPublicKey;
+    private final long timeoutMillis;
+    private final int maxAttempts;
+    private final SignatureScheme scheme;
+    private final Signature signer;
+    private final ThreadLocal<Signature> verifiers;
+
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(MAC_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private volatile Session session;
+    private volatile RequestStream stream;
+    private boolean opening = false;
+
+    // Requests made while the sequence number is being asked, sent in the order they were made once it is known
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+    // Sequence numbers sent and not answered yet
+    private final TreeSet<Long> outstanding = new TreeSet<>();
+    private boolean syncing = false;
+    private boolean asking = false;
+    private long sequenceNumber;
+
+    public AsyncSecClient(Channel channel, PublicKey publicKey, PrivateKey privateKey, PublicKey serverPublicKey,
+            long timeoutMillis, int maxAttempts) throws NoSuchAlgorithmException {
+        this.stub = SecServerServiceGrpc.newStub(channel);
+        this.publicKey = ByteString.copyFrom(publicKey.getEncoded());
+        this.privateKey = privateKey;
+        this.serverPublicKey = serverPublicKey;
+        this.timeoutMillis = timeoutMillis;
+        this.maxAttempts = maxAttempts;
+        this.scheme = schemeOf(privateKey);
+        this.signer = Signature.getInstance(signatureAlgorithm(scheme));
+        String serverAlgorithm = signatureAlgorithm(schemeOf(serverPublicKey));
+        this.verifiers = ThreadLocal.withInitial(() -> {
+            try {
+                return Signature.getInstance(serverAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        resync();
+    }
+
+    // RSA keys sign with SHA256withRSA and EC keys, on P-256, with SHA256withECDSA
+    public static SignatureScheme schemeOf(Key key) throws NoSuchAlgorithmException {
+        switch (key.getAlgorithm()) {
+            case "RSA":
+                return SignatureScheme.RSA_SHA256;
+            case "EC":
+                if (key instanceof ECKey && Curves.isP256(((ECKey) key).getParams()))
+                    return SignatureScheme.ECDSA_P256_SHA256;
+                throw new NoSuchAlgorithmException("Unsupported curve, only P-256 keys can sign");
+            default:
+                throw new NoSuchAlgorithmException("Unsupported key " + key.getAlgorithm());
+        }
+    }
+
+    private static String signatureAlgorithm(SignatureScheme scheme) {
+        return scheme == SignatureScheme.ECDSA_P256_SHA256 ? "SHA256withECDSA" : "SHA256withRSA";
+    }
+
+    public CompletableFuture<OpenAccountResponse> openAccount() {
+        return submit(seqNum -> OpenAccountRequest.newBuilder().setSeqNum(seqNum).setPublicKey(publicKey).build(),
+                OpenAccountResponse.class, OpenAccountResponse::getSeqNum, SecServerServiceGrpc.SecServerServiceStub::openAccount, false);
+    }
+
+    public CompletableFuture<SendAmountResponse> sendAmount(PublicKey destination, int amount) {
+        return sendAmount(destination, amount, false);
+    }
+
+    // A signed transfer can be shown to others as made by this key, one authenticated by the session cannot
+    public CompletableFuture<SendAmountResponse> sendAmount(PublicKey destination, int amount, boolean signed) {
+        ByteString destinationKey = ByteString.copyFrom(destination.getEncoded());
+        return submit(seqNum -> SendAmountRequest.newBuilder()
+                        .setSeqNum(seqNum)
+                        .setPublicKeyDestination(destinationKey)
+                        .setPublicKeySource(publicKey).setAmount(amount).build(),
+                SendAmountResponse.class, SendAmountResponse::getSeqNum, SecServerServiceGrpc.SecServerServiceStub::sendAmount, signed);
+    }
+
+    // One request for many transfers, the server applies all of them or none
+    public CompletableFuture<SendAmountBatchResponse> sendAmountBatch(List<PublicKey> destinations, int[] amounts, boolean signed) {
+        SendAmountBatchRequest.Builder batch = SendAmountBatchRequest.newBuilder().setPublicKeySource(publicKey);
+        for (int i = 0; i < destinations.size(); i++) {
+            batch.addLegs(TransferLeg.newBuilder()
+                    .setPublicKeyDestination(ByteString.copyFrom(destinations.get(i).getEncoded()))
+                    .setAmount(amounts[i]));
+        }
+        return submit(seqNum -> batch.setSeqNum(seqNum).build(), SendAmountBatchResponse.class, SendAmountBatchResponse::getSeqNum,
+                SecServerServiceGrpc.SecServerServiceStub::sendAmountBatch, signed);
+    }
+
+    public CompletableFuture<CheckAccountResponse> checkAccount() {
+        return checkAccount(0);
+    }
+
+    // Only the changes since the account was at sinceVersion, see CheckAccountResponse
+    public CompletableFuture<CheckAccountResponse> checkAccount(long sinceVersion) {
+        return submit(seqNum -> CheckAccountRequest.newBuilder().setSeqNum(seqNum).setPublicKey(publicKey).setSinceVersion(sinceVersion).build(),
+                CheckAccountResponse.class, CheckAccountResponse::getSeqNum, SecServerServiceGrpc.SecServerServiceStub::checkAccount, false);
+    }
+
+    public CompletableFuture<ReceiveAmountResponse> receiveAmount() {
+        return submit(seqNum -> ReceiveAmountRequest.newBuilder().setSeqNum(seqNum).setPublicKey(publicKey).build(),
+                ReceiveAmountResponse.class, ReceiveAmountResponse::getSeqNum, SecServerServiceGrpc.SecServerServiceStub::receiveAmount, false);
+    }
+
+    public CompletableFuture<AuditResponse> audit() {
+        return submit(seqNum -> AuditRequest.newBuilder().setSeqNum(seqNum).setPublicKey(publicKey).build(),
+                AuditResponse.class, AuditResponse::getSeqNum, SecServerServiceGrpc.SecServerServiceStub::audit, false);
+    }
+
+    /*
+     * Signed handshake sending an ephemeral X25519 key and a nonce. The server answers with its own key and the same
+     * nonce, signed, and both sides derive the two session keys from the shared secret. Completes once requests use it.
+     */
+    public CompletableFuture<Void> openSession() {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            KeyPair share = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+            byte[] nonce = new byte[16];
+            new SecureRandom().nextBytes(nonce);
+            ByteString request = Any.pack(SessionRequest.newBuilder()
+                    .setPublicKey(publicKey)
+                    .setClientShare(ByteString.copyFrom(share.getPublic().getEncoded()))
+                    .setNonce(ByteString.copyFrom(nonce)).build()).toByteString();
+
+            Payload payload;
+            synchronized (this) {
+                payload = payload(request);
+            }
+
+            stub.withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS).openSession(payload, new StreamObserver<Payload>() {
+                @Override
+                public void onNext(Payload response) {
+                    try {
+                        SessionResponse parsed = Any.parseFrom(response.getMessage()).unpack(SessionResponse.class);
+                        if (!verify(response, null) || !parsed.getNonce().equals(ByteString.copyFrom(nonce))) {
+                            result.completeExceptionally(new SignatureException("Invalid session response"));
+                            return;
+                        }
+                        session = derive(share.getPrivate(), nonce, parsed);
+                        result.complete(null);
+                    } catch (Exception e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    result.completeExceptionally(Status.fromThrowable(t).getCode() == Status.Code.DEADLINE_EXCEEDED
+                            ? new TimeoutException("Server is not responding") : t);
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private Session derive(PrivateKey share, byte[] nonce, SessionResponse response) throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+        agreement.init(share);
+        agreement.doPhase(KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(response.getServerShare().toByteArray())), true);
+        byte[] secret = agreement.generateSecret();
+
+        byte[] id = response.getSessionId().toByteArray();
+        byte[] pseudoRandomKey = hmac(nonce, secret);
+        return new Session(response.getSessionId(),
+                new SecretKeySpec(hmac(pseudoRandomKey, CLIENT_INFO, id, new byte[] { 1 }), MAC_ALGORITHM),
+                new SecretKeySpec(hmac(pseudoRandomKey, SERVER_INFO, id, new byte[] { 1 }), MAC_ALGORITHM),
+                System.currentTimeMillis() + response.getTtlMillis());
+    }
+
+    // Replaces a session the server no longer knows, only one handshake at a time
+    private void reopenSession(Session expired) {
+        synchronized (this) {
+            if (session == expired)
+                session = null;
+            if (opening)
+                return;
+            opening = true;
+        }
+        openSession().whenComplete((ignored, t) -> {
+            synchronized (this) {
+                opening = false;
+            }
+        });
+    }
+
+    // Sends the requests that follow on a stream, reopened when the server ends it because of an unknown session
+    public void openStream() {
+        RequestStream opened = new RequestStream(timeoutMillis, this::streamClosed);
+        stub.stream(opened);
+        stream = opened;
+    }
+
+    public void closeStream() {
+        RequestStream current = stream;
+        stream = null;
+        if (current != null)
+            current.close();
+    }
+
+    private void streamClosed(RequestStream closed, Status status) {
+        synchronized (this) {
+            if (stream != closed)
+                return;
+            stream = null;
+        }
+        if (status.getCode() == Status.Code.UNAUTHENTICATED)
+            openStream();
+    }
+
+    /*
+     * Pushes the events of the account to listener, the ones after cursor first, 0 for all of them. When the stream
+     * breaks it subscribes again from the cursor of the last event, so none is missed or repeated. Events that do not
+     * verify or belong to an earlier subscription are dropped. Closing the returned handle ends the subscription.
+     */
+    public AutoCloseable subscribe(long cursor, Consumer<AccountEvent> listener) {
+        Subscription subscription = new Subscription(cursor, listener);
+        subscription.start();
+        return subscription;
+    }
+
+    private class Subscription implements AutoCloseable {
+        private final Consumer<AccountEvent> listener;
+        private long cursor;
+        private boolean closed = false;
+        private ClientCallStreamObserver<Payload> call;
+
+        private Subscription(long cursor, Consumer<AccountEvent> listener) {
+            this.cursor = cursor;
+            this.listener = listener;
+        }
+
+        private void start() {
+            Session current = session;
+            if (current != null && current.expiresAt <= System.currentTimeMillis())
+                current = null;
+            Session used = current;
+
+            byte[] nonce = new byte[16];
+            new SecureRandom().nextBytes(nonce);
+            ByteString expectedNonce = ByteString.copyFrom(nonce);
+            Payload payload;
+            try {
+                ByteString request;
+                synchronized (this) {
+                    request = Any.pack(SubscribeRequest.newBuilder()
+                            .setPublicKey(publicKey).setCursor(cursor).setNonce(expectedNonce).build()).toByteString();
+                }
+                synchronized (AsyncSecClient.this) {
+                    payload = used != null ? payload(request, used) : payload(request);
+                }
+            } catch (Exception e) {
+                restart(Status.fromThrowable(e), used);
+                return;
+            }
+
+            CompletableFuture<Void> subscribed = new CompletableFuture<>();
+            stub.subscribe(payload, new ClientResponseObserver<Payload, Payload>() {
+                @Override
+                public void beforeStart(ClientCallStreamObserver<Payload> requestStream) {
+                    synchronized (Subscription.this) {
+                        call = requestStream;
+                    }
+                }
+
+                @Override
+                public void onNext(Payload response) {
+                    try {
+                        if (!verify(response, used))
+                            return;
+                        AccountEvent event = Any.parseFrom(response.getMessage()).unpack(AccountEvent.class);
+                        if (!event.getNonce().equals(expectedNonce))
+                            return;
+                        synchronized (Subscription.this) {
+                            if (event.getKind() == AccountEventKind.SUBSCRIBED ? event.getCursor() != cursor : event.getCursor() <= cursor)
+                                return;
+                            cursor = event.getCursor();
+                        }
+                        subscribed.complete(null);
+                        listener.accept(event);
+                    } catch (Exception e) {
+                        // not an event of this subscription
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    restart(Status.fromThrowable(t), used);
+                }
+
+                @Override
+                public void onCompleted() {
+                    restart(Status.OK, used);
+                }
+            });
+
+            // A subscription the server does not take up in time is asked again
+            CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(() -> {
+                if (!subscribed.isDone())
+                    cancel("Server is not responding");
+            });
+        }
+
+        private void restart(Status status, Session used) {
+            synchronized (this) {
+                if (closed)
+                    return;
+            }
+            if (status.getCode() == Status.Code.UNAUTHENTICATED && used != null) {
+                reopenSession(used);
+                start();
+            } else {
+                CompletableFuture.delayedExecutor(1, TimeUnit.SECONDS).execute(this::start);
+            }
+        }
+
+        private synchronized void cancel(String reason) {
+            if (call != null)
+                call.cancel(reason, null);
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                closed = true;
+            }
+            cancel("Subscription closed");
+        }
+    }
+
+    /*
+     * Reads the history of the account in pages, passing each to listener, with the cursor, page size and ranges of
+     * the given request. Completes with the cursor after the last page. A stream that breaks is asked again from the
+     * cursor of the last page, up to maxAttempts times, and pages that do not verify or do not move the cursor forward
+     * are dropped.
+     */
+    public CompletableFuture<Long> auditPages(AuditPageRequest range, Consumer<AuditPage> listener) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        readPages(range, listener, result, 1);
+        return result;
+    }
+
+    private void readPages(AuditPageRequest range, Consumer<AuditPage> listener, CompletableFuture<Long> result, int attempt) {
+        Session current = session;
+        if (current != null && current.expiresAt <= System.currentTimeMillis())
+            current = null;
+        Session used = current;
+
+        byte[] nonce = new byte[16];
+        new SecureRandom().nextBytes(nonce);
+        ByteString expectedNonce = ByteString.copyFrom(nonce);
+        Payload payload;
+        try {
+            ByteString request = Any.pack(range.toBuilder().setPublicKey(publicKey).setNonce(expectedNonce).build()).toByteString();
+            synchronized (this) {
+                payload = used != null ? payload(request, used) : payload(request);
+            }
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+            return;
+        }
+
+        long[] cursor = { range.getCursor() };
+        CompletableFuture<Void> answered = new CompletableFuture<>();
+        stub.auditPages(payload, new ClientResponseObserver<Payload, Payload>() {
+            private ClientCallStreamObserver<Payload> call;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<Payload> requestStream) {
+                call = requestStream;
+                // The server drops a request it cannot verify without answering
+                CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(() -> {
+                    if (!answered.isDone())
+                        call.cancel("Server is not responding", null);
+                });
+            }
+
+            @Override
+            public void onNext(Payload response) {
+                try {
+                    if (!verify(response, used))
+                        return;
+                    AuditPage page = Any.parseFrom(response.getMessage()).unpack(AuditPage.class);
+                    if (!page.getNonce().equals(expectedNonce) || page.getCursor() < cursor[0] || (page.getCursor() == cursor[0] && !page.getLast()))
+                        return;
+                    cursor[0] = page.getCursor();
+                    answered.complete(null);
+                    listener.accept(page);
+                    if (page.getLast())
+                        result.complete(page.getCursor());
+                } catch (Exception e) {
+                    // not a page of this request
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                answered.complete(null);
+                Status status = Status.fromThrowable(t);
+                if (result.isDone())
+                    return;
+                if (attempt >= maxAttempts) {
+                    result.completeExceptionally(status.asRuntimeException());
+                    return;
+                }
+                if (status.getCode() == Status.Code.UNAUTHENTICATED && used != null)
+                    reopenSession(used);
+                AuditPageRequest rest = range.toBuilder().setCursor(cursor[0]).build();
+                CompletableFuture.delayedExecutor(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+                        .execute(() -> readPages(rest, listener, result, attempt + 1));
+            }
+
+            @Override
+            public void onCompleted() {
+                answered.complete(null);
+                if (!result.isDone())
+                    onError(Status.DATA_LOSS.withDescription("Stream ended before the last page").asRuntimeException());
+            }
+        });
+    }
+
+    // Completes with the last sequence number the server has for this key, asking again until it gets an answer
+    public CompletableFuture<Long> sequenceNumber() {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        askSequenceNumber(result);
+        return result;
+    }
+
+    private void askSequenceNumber(CompletableFuture<Long> result) {
+        byte[] nonce = new byte[12];
+        new SecureRandom().nextBytes(nonce);
+        ByteString request = Any.pack(SequenceNumberRequest.newBuilder()
+                .setPublicKey(publicKey).setNonce(ByteString.copyFrom(nonce)).build()).toByteString();
+
+        Payload payload;
+        try {
+            synchronized (this) {
+                payload = payload(request);
+            }
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+            return;
+        }
+
+        stub.withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS).sequenceNumber(payload, new StreamObserver<Payload>() {
+            @Override
+            public void onNext(Payload response) {
+                try {
+                    SequenceNumberResponse parsed = Any.parseFrom(response.getMessage()).unpack(SequenceNumberResponse.class);
+                    if (verify(response, null) && parsed.getNonce().equals(ByteString.copyFrom(nonce))) {
+                        result.complete(parsed.getSeqNum());
+                        return;
+                    }
+                } catch (Exception e) {
+                    // answered with something else, asked again below
+                }
+                CompletableFuture.delayedExecutor(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS).execute(() -> askSequenceNumber(result));
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (Status.fromThrowable(t).getCode() == Status.Code.DEADLINE_EXCEEDED)
+                    askSequenceNumber(result);
+                else
+                    CompletableFuture.delayedExecutor(1, TimeUnit.SECONDS).execute(() -> askSequenceNumber(result));
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+    }
+
+    private synchronized void resync() {
+        syncing = true;
+        askWhenSettled();
+    }
+
+    // Called holding the lock, the sequence number is only asked once no request sent before is outstanding
+    private void askWhenSettled() {
+        if (!syncing || asking || !outstanding.isEmpty())
+            return;
+        asking = true;
+
+        sequenceNumber().thenAccept(current -> {
+            synchronized (this) {
+                sequenceNumber = current + 1;
+                syncing = false;
+                asking = false;
+                while (!waiting.isEmpty())
+                    waiting.poll().run();
+            }
+        });
+    }
+
+    private <T extends Message> CompletableFuture<T> submit(LongFunction<Message> request, Class<T> type,
+            ToLongFunction<T> seqNumOf, Call call, boolean signed) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        synchronized (this) {
+            if (syncing)
+                waiting.add(() -> send(request, type, seqNumOf, call, signed, result));
+            else
+                send(request, type, seqNumOf, call, signed, result);
+        }
+        return result;
+    }
+
+    // Called holding the lock, so requests leave in sequence number order
+    private <T extends Message> void send(LongFunction<Message> request, Class<T> type, ToLongFunction<T> seqNumOf,
+            Call call, boolean signed, CompletableFuture<T> result) {
+        long seqNum = sequenceNumber++;
+        Session current = signed ? null : session;
+        if (current != null && current.expiresAt <= System.currentTimeMillis())
+            current = null;
+
+        Payload payload;
+        try {
+            ByteString message = Any.pack(request.apply(seqNum)).toByteString();
+            payload = current != null ? payload(message, current) : payload(message);
+        } catch (Exception e) {
+            sequenceNumber--;
+            result.completeExceptionally(e);
+            return;
+        }
+        outstanding.add(seqNum);
+        attempt(payload, current, seqNum, type, seqNumOf, call, result, 1);
+    }
+
+    private <T extends Message> void attempt(Payload payload, Session session, long seqNum, Class<T> type,
+            ToLongFunction<T> seqNumOf, Call call, CompletableFuture<T> result, int attempt) {
+        StreamObserver<Payload> responseObserver = new StreamObserver<Payload>() {
+            @Override
+            public void onNext(Payload response) {
+                try {
+                    if (verify(response, session)) {
+                        Any message = Any.parseFrom(response.getMessage());
+                        // not run yet because of the requests before it, tried again once they had time to arrive
+                        if (message.is(ErrorResponse.class) && message.unpack(ErrorResponse.class).getSeqNum() == seqNum) {
+                            CompletableFuture.delayedExecutor(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS).execute(this::retry);
+                            return;
+                        }
+
+                        T parsed = message.unpack(type);
+                        if (seqNumOf.applyAsLong(parsed) == seqNum) {
+                            finished();
+                            result.complete(parsed);
+                            return;
+                        }
+                    }
+                } catch (Exception e) {
+                    // answered with something else, treated like no answer
+                }
+                retry();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                Status.Code code = Status.fromThrowable(t).getCode();
+                if (code == Status.Code.DEADLINE_EXCEEDED) {
+                    retry();
+                } else if (code == Status.Code.RESOURCE_EXHAUSTED) {
+                    // turned away before anything ran, the same request is sent again after a pause
+                    CompletableFuture.delayedExecutor(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS).execute(this::retry);
+                } else if (code == Status.Code.UNAUTHENTICATED && session != null) {
+                    reopenSession(session);
+                    try {
+                        Payload signed;
+                        synchronized (AsyncSecClient.this) {
+                            signed = payload(payload.getMessage());
+                        }
+                        attempt(signed, null, seqNum, type, seqNumOf, call, result, attempt);
+                    } catch (Exception e) {
+                        finished();
+                        resync();
+                        result.completeExceptionally(e);
+                    }
+                } else {
+                    finished();
+                    resync();
+                    result.completeExceptionally(t);
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+
+            private void finished() {
+                synchronized (AsyncSecClient.this) {
+                    outstanding.remove(seqNum);
+                    askWhenSettled();
+                }
+            }
+
+            /*
+             * The server drops a request that arrives before the one with the previous sequence number, so while an
+             * earlier request is still unanswered the attempt is not counted against maxAttempts.
+             */
+            private void retry() {
+                boolean overtaken;
+                synchronized (AsyncSecClient.this) {
+                    overtaken = outstanding.first() < seqNum;
+                }
+
+                if (overtaken) {
+                    attempt(payload, session, seqNum, type, seqNumOf, call, result, attempt);
+                } else if (attempt < maxAttempts) {
+                    attempt(payload, session, seqNum, type, seqNumOf, call, result, attempt + 1);
+                } else {
+                    finished();
+                    resync();
+                    result.completeExceptionally(new TimeoutException("Server is not responding"));
+                }
+            }
+        };
+
+        RequestStream current = stream;
+        if (current != null && current.isOpen())
+            current.send(payload, responseObserver);
+        else
+            call.invoke(stub.withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS), payload, responseObserver);
+    }
+
+    private Payload payload(ByteString message) throws InvalidKeyException, SignatureException {
+        signer.initSign(privateKey);
+        signer.update(message.asReadOnlyByteBuffer());
+        return Payload.newBuilder()
+                .setMessage(message)
+                .setPublicKey(publicKey)
+                .setDigitalSignature(ByteString.copyFrom(signer.sign()))
+                .setSignatureScheme(scheme)
+                .build();
+    }
+
+    private Payload payload(ByteString message, Session session) throws InvalidKeyException {
+        return Payload.newBuilder()
+                .setMessage(message)
+                .setSessionId(session.id)
+                .setMac(ByteString.copyFrom(mac(session.clientKey, message)))
+                .build();
+    }
+
+    // Answers to requests sent in a session carry a mac with the server key of that session instead of a signature
+    private boolean verify(Payload response, Session session) throws InvalidKeyException, SignatureException {
+        if (session != null)
+            return MessageDigest.isEqual(mac(session.serverKey, response.getMessage()), response.getMac().toByteArray());
+
+        Signature verifier = verifiers.get();
+        verifier.initVerify(serverPublicKey);
+        verifier.update(response.getMessage().asReadOnlyByteBuffer());
+        return verifier.verify(response.getDigitalSignature().toByteArray());
+    }
+
+    private byte[] mac(SecretKeySpec key, ByteString message) throws InvalidKeyException {
+        Mac mac = macs.get();
+        mac.init(key);
+        for (ByteBuffer buffer : message.asReadOnlyByteBufferList())
+            mac.update(buffer);
+        return mac.doFinal();
+    }
+
+    private byte[] hmac(byte[] key, byte[]... parts) throws InvalidKeyException {
+        Mac mac = macs.get();
+        mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+        for (byte[] part : parts)
+            mac.update(part);
+        return mac.doFinal();
+    }
+}
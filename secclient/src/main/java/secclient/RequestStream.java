@@ -0,0 +1,116 @@
+package secclient;
+
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import secserver.grpc.Secserver.Payload;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/*
+ * Client end of the stream RPC. Requests get a requestId and wait in a queue while the server is not taking more,
+ * and the answer with that id goes to the observer the request was sent with, so they can be used like the unary
+ * calls. A request not answered in timeoutMillis fails with DEADLINE_EXCEEDED. When the stream ends every request
+ * still waiting fails, with UNAUTHENTICATED if that is why the server ended it and DEADLINE_EXCEEDED otherwise, so
+ * the caller sends it again.
+ */
+public class RequestStream implements ClientResponseObserver<Payload, Payload> {
+    private final long timeoutMillis;
+    private final BiConsumer<RequestStream, Status> onClosed;
+    private final Map<Long, StreamObserver<Payload>> pending = new ConcurrentHashMap<>();
+    private final ArrayDeque<Payload> queue = new ArrayDeque<>();
+
+    private ClientCallStreamObserver<Payload> requests;
+    private long nextId = 1;
+    private volatile boolean open = true;
+
+    public RequestStream(long timeoutMillis, BiConsumer<RequestStream, Status> onClosed) {
+        this.timeoutMillis = timeoutMillis;
+        this.onClosed = onClosed;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<Payload> requests) {
+        this.requests = requests;
+        requests.setOnReadyHandler(this::drain);
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void send(Payload request, StreamObserver<Payload> responseObserver) {
+        long id;
+        synchronized (this) {
+            if (!open) {
+                responseObserver.onError(Status.DEADLINE_EXCEEDED.withDescription("Stream closed").asRuntimeException());
+                return;
+            }
+            id = nextId++;
+            pending.put(id, responseObserver);
+            queue.add(request.toBuilder().setRequestId(id).build());
+        }
+        drain();
+
+        CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            StreamObserver<Payload> expired = pending.remove(id);
+            if (expired != null)
+                expired.onError(Status.DEADLINE_EXCEEDED.asRuntimeException());
+        });
+    }
+
+    // Sends what is queued for as long as the transport takes it, the rest goes out from the next onReady
+    private synchronized void drain() {
+        while (open && requests.isReady() && !queue.isEmpty())
+            requests.onNext(queue.poll());
+    }
+
+    // Ends the stream once the server has answered what was sent
+    public synchronized void close() {
+        if (open)
+            requests.onCompleted();
+    }
+
+    @Override
+    public void onNext(Payload response) {
+        StreamObserver<Payload> responseObserver = pending.remove(response.getRequestId());
+        if (responseObserver != null) {
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        closed(Status.fromThrowable(t));
+    }
+
+    @Override
+    public void onCompleted() {
+        closed(Status.OK);
+    }
+
+    private void closed(Status status) {
+        synchronized (this) {
+            open = false;
+            queue.clear();
+        }
+        onClosed.accept(this, status);
+
+        Status failure = status.getCode() == Status.Code.UNAUTHENTICATED ? status : Status.DEADLINE_EXCEEDED.withDescription("Stream closed");
+        List<Long> ids = new ArrayList<>(pending.keySet());
+        for (Long id : ids) {
+            StreamObserver<Payload> responseObserver = pending.remove(id);
+            if (responseObserver != null)
+                responseObserver.onError(failure.asRuntimeException());
+        }
+    }
+}
@@ -1,27 +1,20 @@
 package secclient;
 
-import com.google.protobuf.Any;
-import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
-import io.grpc.Status;
-import io.grpc.StatusRuntimeException;
-import secserver.grpc.SecServerServiceGrpc;
-import secserver.grpc.Secserver.CheckAccountRequest;
+import secserver.grpc.Secserver.AccountEvent;
+import secserver.grpc.Secserver.AuditPage;
+import secserver.grpc.Secserver.AuditPageRequest;
+import secserver.grpc.Secserver.AuditResponse;
 import secserver.grpc.Secserver.CheckAccountResponse;
-import secserver.grpc.Secserver.OpenAccountRequest;
+import secserver.grpc.Secserver.HistoryRecord;
 import secserver.grpc.Secserver.OpenAccountResponse;
-import secserver.grpc.Secserver.Payload;
-import secserver.grpc.Secserver.ReceiveAmountRequest;
 import secserver.grpc.Secserver.ReceiveAmountResponse;
-import secserver.grpc.Secserver.SendAmountRequest;
+import secserver.grpc.Secserver.SendAmountBatchResponse;
 import secserver.grpc.Secserver.SendAmountResponse;
-import secserver.grpc.Secserver.SequenceNumberRequest;
-import secserver.grpc.Secserver.SequenceNumberResponse;
-import secserver.grpc.Secserver.AuditRequest;
-import secserver.grpc.Secserver.AuditResponse;
+import secserver.grpc.Secserver.TransferLeg;
+import secserver.grpc.Secserver.Transaction;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -31,20 +24,24 @@ import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Base64;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class SecClient {
     private final PublicKey publicKey;
     private final PublicKey serverPublicKey;
     private final PrivateKey privateKey;
     private final ManagedChannel channel;
-    private final SecServerServiceGrpc.SecServerServiceBlockingStub stub;
+    private final AsyncSecClient async;
+    private AutoCloseable subscription;
+    // The account as of the last check, later checks only ask for what changed since its version
+    private long version = 0;
+    private final List<Transaction> pending = new ArrayList<>();
     private String password;
 
-    private long sequenceNumber = 0;
-
     private int MAX_RETRIES = 3;
 
     public SecClient(String publicKeyPath, String keyStorePath, String password) throws InvalidKeySpecException,
@@ -54,30 +51,9 @@ public class SecClient {
         privateKey = readPrivateKey(keyStorePath);
         serverPublicKey = readPublicKey("server_public.pem");
         this.channel = ManagedChannelBuilder.forTarget("localhost:8888").usePlaintext().build();
-        this.stub = SecServerServiceGrpc.newBlockingStub(channel);
-        sequenceNumber();
-    }
-
-    private boolean verifySignature(ByteString signatureBytes, Any data) throws Exception {
-        Signature dsaForVerify = Signature.getInstance("SHA256withRSA");
-
-        dsaForVerify.initVerify(serverPublicKey);
-        dsaForVerify.update(data.toByteArray());
-        return dsaForVerify.verify(signatureBytes.toByteArray());
-    }
-
-    private ByteString generateSignature(byte[] data)
-            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException, IOException {
-        Signature dsaForSign = Signature.getInstance("SHA256withRSA");
-        dsaForSign.initSign(privateKey);
-        dsaForSign.update(data);
-        return ByteString.copyFrom(dsaForSign.sign());
-    }
-
-    private byte[] generateNonce() {
-        byte[] nonce = new byte[12];
-        new SecureRandom().nextBytes(nonce);
-        return nonce;
+        this.async = new AsyncSecClient(channel, publicKey, privateKey, serverPublicKey, 5000, MAX_RETRIES);
+        // requests are signed until the session is open, and transfers always are
+        this.async.openSession();
     }
 
     private PublicKey readPublicKey(String publicKeyPath)
@@ -93,9 +69,13 @@ public class SecClient {
 
         byte[] encoded = Base64.getDecoder().decode(publicKeyPEM);
 
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        // RSA keys from the openssl RSA flow, or EC keys on P-256
         X509EncodedKeySpec keySpec = new X509EncodedKeySpec(encoded);
-        return keyFactory.generatePublic(keySpec);
+        try {
+            return KeyFactory.getInstance("RSA").generatePublic(keySpec);
+        } catch (InvalidKeySpecException e) {
+            return KeyFactory.getInstance("EC").generatePublic(keySpec);
+        }
     }
 
     private PrivateKey readPrivateKey(String keyStorePath) throws KeyStoreException, UnrecoverableKeyException,
@@ -106,72 +86,30 @@ public class SecClient {
     }
 
     public void sequenceNumber() {
-        while (true) {
-            try {
-                byte[] nonce = generateNonce();
-                SequenceNumberRequest seqRequest = SequenceNumberRequest.newBuilder()
-                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).setNonce(ByteString.copyFrom(nonce)).build();
-                Any request = Any.pack(seqRequest);
-
-                Payload payload = Payload.newBuilder()
-                        .setMessage(request)
-                        .setDigitalSignature(generateSignature(request.toByteArray()))
-                        .build();
-
-                Payload responsePayload = stub.withDeadlineAfter(5, TimeUnit.SECONDS).sequenceNumber(payload);
-
-                boolean result = verifySignature(responsePayload.getDigitalSignature(), responsePayload.getMessage());
-
-                if (result && Arrays.equals(nonce, responsePayload.getMessage().unpack(SequenceNumberResponse.class).getNonce().toByteArray())) {
-                    this.sequenceNumber = responsePayload.getMessage().unpack(SequenceNumberResponse.class).getSeqNum()
-                            + 1L;
-                    return;
-                }
-
-            } catch (Exception e) {
+        async.sequenceNumber().join();
+    }
 
-            }
+    // Waits for an asynchronous call, printing why it failed and returning null if it did
+    private <T> T await(CompletableFuture<T> call) {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            System.out.println(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return null;
     }
 
     public void openAccount() throws Exception {
-        for (int i = 0; i < MAX_RETRIES; i++) {
-            try {
-                Any request = Any.pack(OpenAccountRequest.newBuilder().setSeqNum(this.sequenceNumber)
-                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build());
-
-                Payload requestPayload = Payload.newBuilder()
-                        .setMessage(request)
-                        .setDigitalSignature(generateSignature(request.toByteArray()))
-                        .build();
-                Payload response = stub.withDeadlineAfter(5, TimeUnit.SECONDS).openAccount(requestPayload);
-                boolean result = verifySignature(response.getDigitalSignature(), response.getMessage());
-                if (result) {
-
-                    OpenAccountResponse parsedResponse = response.getMessage().unpack(OpenAccountResponse.class);
-
-                    if (this.sequenceNumber == parsedResponse.getSeqNum()) {
-                        this.sequenceNumber++;
-                        if (!parsedResponse.getSuccess())
-                            System.out.println(parsedResponse.getErrorMessage());
-                        else
-                            System.out.println("Account opened");
-
-                        return;
-                    }
-                }
-            } catch (StatusRuntimeException e) {
-                if (e.getStatus().getCode() != Status.Code.DEADLINE_EXCEEDED) {
-                    System.out.println(e.getMessage());
-                    return;
-                }
-
-            } catch (Exception e) {
-                System.out.println(e.getMessage());
-                return;
-            }
-        }
-        System.out.println("Server is not responding");
+        OpenAccountResponse parsedResponse = await(async.openAccount());
+        if (parsedResponse == null)
+            return;
+
+        if (!parsedResponse.getSuccess())
+            System.out.println(parsedResponse.getErrorMessage());
+        else
+            System.out.println("Account opened");
     }
 
     public void sendAmount(String destinationPublicKeyPath, int amount) {
@@ -180,173 +118,155 @@ public class SecClient {
             return;
         }
 
-        for (int i = 0; i < MAX_RETRIES; i++) {
-            try {
-
-                Any request = Any.pack(SendAmountRequest.newBuilder()
-                        .setSeqNum(this.sequenceNumber)
-                        .setPublicKeyDestination(
-                                ByteString.copyFrom(readPublicKey(destinationPublicKeyPath).getEncoded()))
-                        .setPublicKeySource(ByteString.copyFrom(publicKey.getEncoded())).setAmount(amount).build());
-
-                Payload requestPayload = Payload.newBuilder()
-                        .setMessage(request)
-                        .setDigitalSignature(generateSignature(request.toByteArray())).build();
-                Payload response = stub.withDeadlineAfter(5, TimeUnit.SECONDS).sendAmount(requestPayload);
-                boolean result = verifySignature(response.getDigitalSignature(), response.getMessage());
-
-                if (result) {
-
-                    SendAmountResponse parsedResponse = response.getMessage().unpack(SendAmountResponse.class);
-
-                    if (this.sequenceNumber == parsedResponse.getSeqNum()) {
-                        this.sequenceNumber++;
-                        if (!parsedResponse.getSuccess())
-                            System.out.println(parsedResponse.getErrorMessage());
-                        else
-                            System.out.println("Money sent successfully");
-
-                        return;
-                    }
-                }
-            } catch (StatusRuntimeException e) {
-                if (e.getStatus().getCode() != Status.Code.DEADLINE_EXCEEDED) {
-                    System.out.println(e.getMessage());
-                    return;
-                }
-
-            } catch (Exception e) {
-                System.out.println(e.getMessage());
-                return;
-            }
+        PublicKey destination;
+        try {
+            destination = readPublicKey(destinationPublicKeyPath);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+
+        SendAmountResponse parsedResponse = await(async.sendAmount(destination, amount, true));
+        if (parsedResponse == null)
+            return;
+
+        if (!parsedResponse.getSuccess())
+            System.out.println(parsedResponse.getErrorMessage());
+        else
+            System.out.println("Money sent successfully");
+    }
 
+    public void sendAmountBatch(List<String> destinationPublicKeyPaths, int[] amounts) {
+        List<PublicKey> destinations = new ArrayList<>();
+        try {
+            for (String path : destinationPublicKeyPaths)
+                destinations.add(readPublicKey(path));
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            return;
         }
-        System.out.println("Server is not responding");
+
+        SendAmountBatchResponse parsedResponse = await(async.sendAmountBatch(destinations, amounts, true));
+        if (parsedResponse == null)
+            return;
+
+        if (!parsedResponse.getSuccess())
+            System.out.println(parsedResponse.getErrorMessage());
+        else
+            System.out.println("Sent " + parsedResponse.getLegsCount() + " transfers successfully");
     }
-        
-    
 
     public void checkAccount() throws Exception {
-        for (int i = 0; i < MAX_RETRIES; i++) {
-            try {
-                Any request = Any.pack(CheckAccountRequest.newBuilder().setSeqNum(this.sequenceNumber)
-                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build());
-                Payload requestPayload = Payload.newBuilder()
-                        .setMessage(request)
-                        .setDigitalSignature(generateSignature(request.toByteArray()))
-                        .build();
-                Payload response = stub.withDeadlineAfter(5, TimeUnit.SECONDS).checkAccount(requestPayload);
-                boolean result = verifySignature(response.getDigitalSignature(), response.getMessage());
-                if (result) {
-                    CheckAccountResponse parsedResponse = response.getMessage().unpack(CheckAccountResponse.class);
-
-                    if (this.sequenceNumber == parsedResponse.getSeqNum()) {
-                        this.sequenceNumber++;
-                        if (!parsedResponse.getSuccess())
-                            System.out.println(parsedResponse.getErrorMessage());
-                        else {
-                            System.out.println("Current balance: " + parsedResponse.getBalance());
-                            System.out.println("Transaction list:");
-                            for (var entry : parsedResponse.getIncomingList()) {
-                                System.out.println(
-                                        "From: " + Base64.getEncoder().encodeToString(entry.getPublicKeySource().toByteArray())
-                                                + "\nAmount: " + entry.getAmount());
-                            }
-                        }
-        
-                        return;
-                    }
-                }
-            } catch (StatusRuntimeException e) {
-                if (e.getStatus().getCode() != Status.Code.DEADLINE_EXCEEDED) {
-                    System.out.println(e.getMessage());
-                    return;
-                }
-
-            } catch (Exception e) {
-                System.out.println(e.getMessage());
-                return;
+        CheckAccountResponse parsedResponse = await(async.checkAccount(version));
+        if (parsedResponse == null)
+            return;
+
+        if (!parsedResponse.getSuccess())
+            System.out.println(parsedResponse.getErrorMessage());
+        else {
+            if (!parsedResponse.getNotModified()) {
+                if (parsedResponse.getPendingReset())
+                    pending.clear();
+                pending.addAll(parsedResponse.getIncomingList());
+                version = parsedResponse.getVersion();
+            }
+
+            System.out.println("Current balance: " + parsedResponse.getBalance());
+            System.out.println("Transaction list:");
+            for (var entry : pending) {
+                System.out.println(
+                        "From: " + Base64.getEncoder().encodeToString(entry.getPublicKeySource().toByteArray())
+                                + "\nAmount: " + entry.getAmount());
             }
         }
+    }
 
-        System.out.println("Server is not responding");
+    public void receiveAmount() {
+        ReceiveAmountResponse parsedResponse = await(async.receiveAmount());
+        if (parsedResponse == null)
+            return;
 
+        if (!parsedResponse.getSuccess())
+            System.out.println(parsedResponse.getErrorMessage());
+        else
+            System.out.println("Received all the incoming money from pending transactions.");
     }
 
-    public void receiveAmount() {
-        for (int i = 0; i < MAX_RETRIES; i++) {
-            try {
-                Any request = Any.pack(ReceiveAmountRequest.newBuilder().setSeqNum(this.sequenceNumber)
-                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build());
-                Payload requestPayload = Payload.newBuilder()
-                        .setMessage(request)
-                        .setDigitalSignature(generateSignature(request.toByteArray()))
-                        .build();
-
-                Payload response = stub.withDeadlineAfter(5, TimeUnit.SECONDS).receiveAmount(requestPayload);
-                boolean result = verifySignature(response.getDigitalSignature(), response.getMessage());
-                if (result) {
-                    ReceiveAmountResponse parsedResponse = response.getMessage().unpack(ReceiveAmountResponse.class);
-    
-                    if (this.sequenceNumber == parsedResponse.getSeqNum()) {
-                        this.sequenceNumber++;
-                        if (!parsedResponse.getSuccess())
-                            System.out.println(parsedResponse.getErrorMessage());
-                        else
-                            System.out.println("Received all the incoming money from pending transactions.");
-                        return;
-                    }
-                }
-            } catch (StatusRuntimeException e) {
-                if (e.getStatus().getCode() != Status.Code.DEADLINE_EXCEEDED) {
-                    System.out.println(e.getMessage());
-                    return;
-                }
-
-            } catch (Exception e) {
-                System.out.println(e.getMessage());
+    public void audit() {
+        AuditResponse parsedResponse = await(async.audit());
+        if (parsedResponse == null)
+            return;
+
+        if (!parsedResponse.getSuccess())
+            System.out.println(parsedResponse.getErrorMessage());
+        else
+            parsedResponse.getAuditsList().forEach(x -> System.out.println(x));
+    }
+
+    // Prints the whole history of the account, reading it pageSize records at a time
+    public void history(int pageSize) {
+        Long cursor = await(async.auditPages(AuditPageRequest.newBuilder().setPageSize(pageSize).build(), this::printPage));
+        if (cursor != null)
+            System.out.println("End of history, cursor " + cursor);
+    }
+
+    private void printPage(AuditPage page) {
+        for (HistoryRecord record : page.getRecordsList()) {
+            String source = Base64.getEncoder().encodeToString(record.getPublicKey().toByteArray());
+            String line = record.getTimestamp() + " " + record.getOperation() + " seq " + record.getSeqNum() + " by " + source;
+            switch (record.getOperation()) {
+                case OPEN_ACCOUNT:
+                    line += " with " + record.getAmount();
+                    break;
+                case SEND:
+                    line += " " + record.getAmount() + " to " + Base64.getEncoder().encodeToString(record.getPublicKeyDestination().toByteArray());
+                    break;
+                case SEND_BATCH:
+                    line += " " + record.getAmount() + " in " + record.getLegsCount() + " legs";
+                    break;
+                default:
+                    break;
             }
+            System.out.println(line);
+            for (TransferLeg leg : record.getLegsList())
+                System.out.println("    " + leg.getAmount() + " to " + Base64.getEncoder().encodeToString(leg.getPublicKeyDestination().toByteArray()));
         }
-        System.out.println("Server is not responding");
+    }
 
+    // Prints the changes to the account since it was opened, then every new one as the server pushes it
+    public void subscribe() {
+        if (subscription != null) {
+            System.out.println("Already subscribed");
+            return;
+        }
+        subscription = async.subscribe(0, this::printEvent);
+        System.out.println("Subscribed, changes to the account are printed as they happen");
     }
 
-    public void audit() {
-        for (int i = 0; i < MAX_RETRIES; i++) {
-            try {
-                Any request = Any.pack(AuditRequest.newBuilder().setSeqNum(this.sequenceNumber)
-                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build());
-                Payload requestPayload = Payload.newBuilder()
-                        .setMessage(request)
-                        .setDigitalSignature(generateSignature(request.toByteArray()))
-                        .build();
-
-                Payload response = stub.withDeadlineAfter(5, TimeUnit.SECONDS).audit(requestPayload);
-                boolean result = verifySignature(response.getDigitalSignature(), response.getMessage());
-
-                if (result) {
-
-                    AuditResponse parsedResponse = response.getMessage().unpack(AuditResponse.class);
-
-                    if (this.sequenceNumber == parsedResponse.getSeqNum()) {
-                        this.sequenceNumber++;
-                        if (!parsedResponse.getSuccess()) 
-                            System.out.println(parsedResponse.getErrorMessage());
-                        else
-                            parsedResponse.getAuditsList().forEach(x -> System.out.println(x));
-                        return;
-                    }
-                }
-            } catch (StatusRuntimeException e) {
-                if (e.getStatus().getCode() != Status.Code.DEADLINE_EXCEEDED) {
-                    System.out.println(e.getMessage());
-                    return;
-                }
-
-            } catch (Exception e) {
-                System.out.println(e.getMessage());
-            }
+    private void printEvent(AccountEvent event) {
+        String other = Base64.getEncoder().encodeToString(event.getPublicKeyOther().toByteArray());
+        switch (event.getKind()) {
+            case SUBSCRIBED:
+                return;
+            case OPENED:
+                System.out.println("Account opened with " + event.getAmount());
+                break;
+            case INCOMING:
+                System.out.println("Incoming transfer of " + event.getAmount() + " from " + other);
+                break;
+            case SENT:
+                System.out.println("Sent " + event.getAmount() + (other.isEmpty() ? " in a batch" : " to " + other));
+                break;
+            case RECEIVED:
+                System.out.println("Received the pending transactions");
+                break;
+            default:
+                return;
         }
-        System.out.println("Server is not responding");
+        System.out.println("Current balance: " + event.getBalance() + ", pending transactions: " + event.getPendingCount());
+    }
+
+    public AsyncSecClient async() {
+        return async;
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,7 @@
 package secclient;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 public class SecClientMain {
@@ -34,6 +36,17 @@ public class SecClientMain {
 					case "send":
 						secClient.sendAmount(splitLine[1], Integer.parseInt(splitLine[2]));
 						break;
+					case "sendbatch":
+						if (splitLine.length < 3 || splitLine.length % 2 == 0)
+							throw new IndexOutOfBoundsException();
+						List<String> destinations = new ArrayList<>();
+						int[] amounts = new int[(splitLine.length - 1) / 2];
+						for (int i = 0; i < amounts.length; i++) {
+							destinations.add(splitLine[1 + 2 * i]);
+							amounts[i] = Integer.parseInt(splitLine[2 + 2 * i]);
+						}
+						secClient.sendAmountBatch(destinations, amounts);
+						break;
 					case "check":
 						secClient.checkAccount();
 						break;
@@ -43,6 +56,12 @@ public class SecClientMain {
 					case "audit":
 						secClient.audit();
 						break;
+					case "history":
+						secClient.history(splitLine.length > 1 ? Integer.parseInt(splitLine[1]) : 0);
+						break;
+					case "subscribe":
+						secClient.subscribe();
+						break;
 					case "exit":
 						System.exit(0);
 					default:
@@ -57,19 +57,19 @@ public class SecClient {
         sequenceNumber();
     }
 
-    private boolean verifySignature(ByteString signatureBytes, Any data) throws Exception {
+    private boolean verifySignature(ByteString signatureBytes, ByteString data) throws Exception {
         Signature dsaForVerify = Signature.getInstance("SHA256withRSA");
 
         dsaForVerify.initVerify(serverPublicKey);
-        dsaForVerify.update(data.toByteArray());
+        dsaForVerify.update(data.asReadOnlyByteBuffer());
         return dsaForVerify.verify(signatureBytes.toByteArray());
     }
 
-    private ByteString generateSignature(byte[] data)
+    private ByteString generateSignature(ByteString data)
             throws NoSuchAlgorithmException, InvalidKeyException, SignatureException, IOException {
         Signature dsaForSign = Signature.getInstance("SHA256withRSA");
         dsaForSign.initSign(privateKey);
-        dsaForSign.update(data);
+        dsaForSign.update(data.asReadOnlyByteBuffer());
         return ByteString.copyFrom(dsaForSign.sign());
     }
 
@@ -103,11 +103,12 @@ public class SecClient {
             try {
                 SequenceNumberRequest seqRequest = SequenceNumberRequest.newBuilder()
                         .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build();
-                Any request = Any.pack(seqRequest);
+                ByteString request = Any.pack(seqRequest).toByteString();
 
                 Payload payload = Payload.newBuilder()
                         .setMessage(request)
-                        .setDigitalSignature(generateSignature(request.toByteArray()))
+                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded()))
+                        .setDigitalSignature(generateSignature(request))
                         .build();
 
                 Payload responsePayload = stub.withDeadlineAfter(5, TimeUnit.SECONDS).sequenceNumber(payload);
@@ -115,7 +116,7 @@ public class SecClient {
                 boolean result = verifySignature(responsePayload.getDigitalSignature(), responsePayload.getMessage());
 
                 if (result) {
-                    this.sequenceNumber = responsePayload.getMessage().unpack(SequenceNumberResponse.class).getSeqNum()
+                    this.sequenceNumber = Any.parseFrom(responsePayload.getMessage()).unpack(SequenceNumberResponse.class).getSeqNum()
                             + 1L;
                     return;
                 }
@@ -129,18 +130,19 @@ public class SecClient {
     public void openAccount() throws Exception {
         for (int i = 0; i < MAX_RETRIES; i++) {
             try {
-                Any request = Any.pack(OpenAccountRequest.newBuilder().setSeqNum(this.sequenceNumber)
-                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build());
+                ByteString request = Any.pack(OpenAccountRequest.newBuilder().setSeqNum(this.sequenceNumber)
+                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build()).toByteString();
 
                 Payload requestPayload = Payload.newBuilder()
                         .setMessage(request)
-                        .setDigitalSignature(generateSignature(request.toByteArray()))
+                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded()))
+                        .setDigitalSignature(generateSignature(request))
                         .build();
                 Payload response = stub.withDeadlineAfter(5, TimeUnit.SECONDS).openAccount(requestPayload);
                 boolean result = verifySignature(response.getDigitalSignature(), response.getMessage());
                 if (result) {
 
-                    OpenAccountResponse parsedResponse = response.getMessage().unpack(OpenAccountResponse.class);
+                    OpenAccountResponse parsedResponse = Any.parseFrom(response.getMessage()).unpack(OpenAccountResponse.class);
 
                     if (this.sequenceNumber == parsedResponse.getSeqNum()) {
                         this.sequenceNumber++;
@@ -171,21 +173,22 @@ public class SecClient {
         for (int i = 0; i < MAX_RETRIES; i++) {
             try {
 
-                Any request = Any.pack(SendAmountRequest.newBuilder()
+                ByteString request = Any.pack(SendAmountRequest.newBuilder()
                         .setSeqNum(this.sequenceNumber)
                         .setPublicKeyDestination(
                                 ByteString.copyFrom(readPublicKey(destinationPublicKeyPath).getEncoded()))
-                        .setPublicKeySource(ByteString.copyFrom(publicKey.getEncoded())).setAmount(amount).build());
+                        .setPublicKeySource(ByteString.copyFrom(publicKey.getEncoded())).setAmount(amount).build()).toByteString();
 
                 Payload requestPayload = Payload.newBuilder()
                         .setMessage(request)
-                        .setDigitalSignature(generateSignature(request.toByteArray())).build();
+                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded()))
+                        .setDigitalSignature(generateSignature(request)).build();
                 Payload response = stub.withDeadlineAfter(5, TimeUnit.SECONDS).sendAmount(requestPayload);
                 boolean result = verifySignature(response.getDigitalSignature(), response.getMessage());
 
                 if (result) {
 
-                    SendAmountResponse parsedResponse = response.getMessage().unpack(SendAmountResponse.class);
+                    SendAmountResponse parsedResponse = Any.parseFrom(response.getMessage()).unpack(SendAmountResponse.class);
 
                     if (this.sequenceNumber == parsedResponse.getSeqNum()) {
                         if (!parsedResponse.getSuccess())
@@ -216,16 +219,17 @@ public class SecClient {
     public void checkAccount() throws Exception {
         for (int i = 0; i < MAX_RETRIES; i++) {
             try {
-                Any request = Any.pack(CheckAccountRequest.newBuilder().setSeqNum(this.sequenceNumber)
-                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build());
+                ByteString request = Any.pack(CheckAccountRequest.newBuilder().setSeqNum(this.sequenceNumber)
+                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build()).toByteString();
                 Payload requestPayload = Payload.newBuilder()
                         .setMessage(request)
-                        .setDigitalSignature(generateSignature(request.toByteArray()))
+                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded()))
+                        .setDigitalSignature(generateSignature(request))
                         .build();
                 Payload response = stub.withDeadlineAfter(5, TimeUnit.SECONDS).checkAccount(requestPayload);
                 boolean result = verifySignature(response.getDigitalSignature(), response.getMessage());
                 if (result) {
-                    CheckAccountResponse parsedResponse = response.getMessage().unpack(CheckAccountResponse.class);
+                    CheckAccountResponse parsedResponse = Any.parseFrom(response.getMessage()).unpack(CheckAccountResponse.class);
 
                     if (this.sequenceNumber == parsedResponse.getSeqNum()) {
                         this.sequenceNumber++;
@@ -263,21 +267,22 @@ public class SecClient {
     public void receiveAmount() {
         for (int i = 0; i < MAX_RETRIES; i++) {
             try {
-                Any request = Any.pack(ReceiveAmountRequest.newBuilder().setSeqNum(this.sequenceNumber)
-                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build());
+                ByteString request = Any.pack(ReceiveAmountRequest.newBuilder().setSeqNum(this.sequenceNumber)
+                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build()).toByteString();
 
-                Any request2 = Any.pack(ReceiveAmountRequest.newBuilder().setSeqNum(this.sequenceNumber + 1)
-                .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build());
+                ByteString request2 = Any.pack(ReceiveAmountRequest.newBuilder().setSeqNum(this.sequenceNumber + 1)
+                .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build()).toByteString();
                 
                 Payload requestPayload = Payload.newBuilder()
                         .setMessage(request2)
-                        .setDigitalSignature(generateSignature(request.toByteArray()))
+                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded()))
+                        .setDigitalSignature(generateSignature(request))
                         .build();
 
                 Payload response = stub.withDeadlineAfter(5, TimeUnit.SECONDS).receiveAmount(requestPayload);
                 boolean result = verifySignature(response.getDigitalSignature(), response.getMessage());
                 if (result) {
-                    ReceiveAmountResponse parsedResponse = response.getMessage().unpack(ReceiveAmountResponse.class);
+                    ReceiveAmountResponse parsedResponse = Any.parseFrom(response.getMessage()).unpack(ReceiveAmountResponse.class);
     
                     if (this.sequenceNumber == parsedResponse.getSeqNum()) {
                         this.sequenceNumber++;
@@ -305,11 +310,12 @@ public class SecClient {
     public void audit() {
         for (int i = 0; i < MAX_RETRIES; i++) {
             try {
-                Any request = Any.pack(AuditRequest.newBuilder().setSeqNum(this.sequenceNumber)
-                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build());
+                ByteString request = Any.pack(AuditRequest.newBuilder().setSeqNum(this.sequenceNumber)
+                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded())).build()).toByteString();
                 Payload requestPayload = Payload.newBuilder()
                         .setMessage(request)
-                        .setDigitalSignature(generateSignature(request.toByteArray()))
+                        .setPublicKey(ByteString.copyFrom(publicKey.getEncoded()))
+                        .setDigitalSignature(generateSignature(request))
                         .build();
 
                 Payload response = stub.withDeadlineAfter(5, TimeUnit.SECONDS).audit(requestPayload);
@@ -317,7 +323,7 @@ public class SecClient {
 
                 if (result) {
 
-                    AuditResponse parsedResponse = response.getMessage().unpack(AuditResponse.class);
+                    AuditResponse parsedResponse = Any.parseFrom(response.getMessage()).unpack(AuditResponse.class);
 
                     if (this.sequenceNumber == parsedResponse.getSeqNum()) {
                         this.sequenceNumber++;
@@ -0,0 +1,223 @@
+package secserver.benchmarks;
+
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+import secserver.AccountShards;
+import secserver.AccountStore;
+import secserver.AuditIndex;
+import secserver.SecServerBackend;
+import secserver.grpc.Secserver.*;
+
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Backend operations over an in-memory log, at different account counts, pending list lengths and stores, run on
+ * the shard of the account like the server runs them.
+ * The first PROBES accounts get `pending` transfers during setup, which are both their pending list and their
+ * audit history. checkAccount and audit are answered for those accounts again with the current sequence number,
+ * which is the read path without a log append.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BackendBenchmark {
+    static final int PROBES = 64;
+    static final int SENDER_BALANCE = 1_000_000_000;
+
+    @Param({"1000", "100000"})
+    int accounts;
+
+    @Param({"0", "16", "256"})
+    int pending;
+
+    @Param({"heap", "mapped"})
+    String store;
+
+    Path directory;
+    MemoryLog log;
+    AuditIndex auditIndex;
+    AccountStore accountStore;
+    AccountShards shards;
+    SecServerBackend backend;
+    int[] ids;
+    ByteString[] keys;
+    final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Fixtures.temporaryDirectory();
+        log = new MemoryLog();
+        auditIndex = new AuditIndex(directory.resolve("log.idx"));
+        log.addListener(auditIndex);
+        accountStore = Fixtures.accountStore(store, directory);
+        shards = new AccountShards(Runtime.getRuntime().availableProcessors(), Runnable::run);
+        backend = Fixtures.backend(log, auditIndex, accountStore, shards);
+
+        Random random = new Random(42);
+        ids = new int[accounts];
+        keys = new ByteString[accounts];
+        for (int i = 0; i < accounts; i++) {
+            keys[i] = Fixtures.randomKey(random);
+            int id = backend.registerAccount(keys[i]);
+            ids[i] = id;
+            backend.execute(id, () -> backend.openAccount(id, 1, SignatureScheme.RSA_SHA256, false)).join();
+        }
+
+        int others = accounts - PROBES;
+        for (int probe = 0; probe < PROBES; probe++) {
+            for (int j = 0; j < pending; j++) {
+                int source = ids[PROBES + (probe * pending + j) % others];
+                ByteString destination = keys[probe];
+                backend.execute(source,
+                        () -> backend.sendAmount(source, destination, 1, accountStore.getSequenceNumber(source) + 1, false)).join();
+            }
+        }
+
+        log.freeze();
+    }
+
+    // Folds the transfers made by sendAmount into balances, so pending lists do not keep growing across iterations
+    @TearDown(Level.Iteration)
+    public void acceptTransfers() {
+        for (int i = PROBES; i < accounts; i++) {
+            int id = ids[i];
+            backend.execute(id, () -> {
+                accountStore.acceptPending(id);
+                return null;
+            }).join();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        shards.close();
+        accountStore.close(log.endPosition());
+        auditIndex.close();
+        Fixtures.delete(directory);
+    }
+
+    // Each thread sends from its own account, with a balance that does not run out, to all non probe accounts in turn
+    @State(Scope.Thread)
+    public static class Sender {
+        int id;
+        int probe;
+        long probeVersion;
+        long sequenceNumber;
+        int nextDestination;
+
+        @Setup(Level.Trial)
+        public void setUp(BackendBenchmark benchmark) {
+            int thread = benchmark.threads.getAndIncrement();
+            id = benchmark.ids[benchmark.accounts - 1 - thread];
+            probe = benchmark.ids[thread % PROBES];
+            probeVersion = benchmark.accountStore.read(probe).getVersion();
+            sequenceNumber = benchmark.accountStore.getSequenceNumber(id);
+            benchmark.accountStore.open(id, SENDER_BALANCE);
+        }
+
+        ByteString nextDestination(BackendBenchmark benchmark) {
+            int others = benchmark.accounts - PROBES;
+            int destination = PROBES + nextDestination++ % others;
+            return benchmark.ids[destination] == id ? nextDestination(benchmark) : benchmark.keys[destination];
+        }
+    }
+
+    // Gets `pending` transfers credited directly in the store before every receive
+    @State(Scope.Thread)
+    public static class Receiver {
+        int id;
+        long sequenceNumber;
+
+        @Setup(Level.Trial)
+        public void setUp(BackendBenchmark benchmark) {
+            id = benchmark.ids[PROBES + benchmark.threads.getAndIncrement()];
+            sequenceNumber = benchmark.accountStore.getSequenceNumber(id);
+        }
+
+        @Setup(Level.Invocation)
+        public void credit(BackendBenchmark benchmark) {
+            for (int j = 0; j < benchmark.pending; j++)
+                benchmark.accountStore.credit(id, benchmark.ids[j % benchmark.accounts], 1);
+        }
+    }
+
+    @State(Scope.Group)
+    public static class HotAccount {
+        int id;
+        ByteString key;
+        long sequenceNumber;
+
+        @Setup(Level.Trial)
+        public void setUp(BackendBenchmark benchmark) {
+            id = benchmark.ids[PROBES];
+            key = benchmark.keys[PROBES];
+            sequenceNumber = benchmark.accountStore.getSequenceNumber(id);
+        }
+    }
+
+    @Benchmark
+    public SendAmountResponse sendAmount(Sender sender) throws Exception {
+        ByteString destination = sender.nextDestination(this);
+        long sequenceNumber = ++sender.sequenceNumber;
+        return backend.execute(sender.id, () -> backend.sendAmount(sender.id, destination, 1, sequenceNumber, false)).join();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public SendAmountResponse sendAmountContended(Sender sender) throws Exception {
+        return sendAmount(sender);
+    }
+
+    @Benchmark
+    public CheckAccountResponse checkAccount(Sender sender) {
+        return backend.execute(sender.probe, () -> backend.checkAccount(sender.probe, accountStore.getSequenceNumber(sender.probe), 0)).join();
+    }
+
+    // Asked with the version the probe is at, which no benchmark changes, so the answer leaves out the pending list
+    @Benchmark
+    public CheckAccountResponse checkAccountNotModified(Sender sender) {
+        return backend.execute(sender.probe,
+                () -> backend.checkAccount(sender.probe, accountStore.getSequenceNumber(sender.probe), sender.probeVersion)).join();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public CheckAccountResponse checkAccountContended(Sender sender) {
+        return checkAccount(sender);
+    }
+
+    @Benchmark
+    public ReceiveAmountResponse receiveAmount(Receiver receiver) throws Exception {
+        long sequenceNumber = ++receiver.sequenceNumber;
+        return backend.execute(receiver.id, () -> backend.receiveAmount(receiver.id, sequenceNumber, false)).join();
+    }
+
+    @Benchmark
+    public AuditResponse audit(Sender sender) throws Exception {
+        AuditResponse response = backend.execute(sender.probe, () -> backend.audit(sender.probe, accountStore.getSequenceNumber(sender.probe))).join();
+        return backend.auditLines(sender.probe, response);
+    }
+
+    // Three threads keep crediting one account while a fourth keeps receiving into it
+    @Benchmark
+    @Group("hotAccount")
+    @GroupThreads(3)
+    public SendAmountResponse sendToHotAccount(Sender sender, HotAccount hot) throws Exception {
+        long sequenceNumber = ++sender.sequenceNumber;
+        return backend.execute(sender.id, () -> backend.sendAmount(sender.id, hot.key, 1, sequenceNumber, false)).join();
+    }
+
+    @Benchmark
+    @Group("hotAccount")
+    @GroupThreads(1)
+    public ReceiveAmountResponse receiveHotAccount(HotAccount hot) throws Exception {
+        long sequenceNumber = ++hot.sequenceNumber;
+        return backend.execute(hot.id, () -> backend.receiveAmount(hot.id, sequenceNumber, false)).join();
+    }
+}
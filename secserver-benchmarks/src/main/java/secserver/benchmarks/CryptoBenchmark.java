@@ -0,0 +1,111 @@
+package secserver.benchmarks;
+
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+import secserver.CryptoService;
+import secserver.PublicKeyCache;
+import secserver.grpc.Secserver.SignatureScheme;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Signing and verification as SecServerImpl does them through the crypto pool, next to a plain Signature call,
+// with 2048-bit RSA and P-256 ECDSA keys
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CryptoBenchmark {
+    @Param({"64", "1024"})
+    int messageSize;
+
+    @Param({"RSA_SHA256", "ECDSA_P256_SHA256"})
+    SignatureScheme scheme;
+
+    KeyPair keyPair;
+    CryptoService crypto;
+    PublicKeyCache keyCache;
+    ByteString message;
+    ByteString signature;
+    ByteString encodedKey;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(CryptoService.keyAlgorithm(scheme));
+        generator.initialize(scheme == SignatureScheme.ECDSA_P256_SHA256 ? 256 : 2048);
+        keyPair = generator.generateKeyPair();
+        crypto = new CryptoService(keyPair.getPrivate(), Runtime.getRuntime().availableProcessors());
+        keyCache = new PublicKeyCache(1000);
+
+        byte[] bytes = new byte[messageSize];
+        new Random(42).nextBytes(bytes);
+        message = ByteString.copyFrom(bytes);
+        signature = crypto.sign(message);
+        encodedKey = ByteString.copyFrom(keyPair.getPublic().getEncoded());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        crypto.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Signatures {
+        Signature signer;
+        Signature verifier;
+
+        @Setup(Level.Trial)
+        public void setUp(CryptoBenchmark benchmark) throws Exception {
+            signer = Signature.getInstance(CryptoService.signatureAlgorithm(benchmark.scheme));
+            verifier = Signature.getInstance(CryptoService.signatureAlgorithm(benchmark.scheme));
+        }
+    }
+
+    @Benchmark
+    public ByteString sign() throws Exception {
+        return crypto.sign(message);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ByteString signContended() throws Exception {
+        return crypto.sign(message);
+    }
+
+    @Benchmark
+    public boolean verify() throws Exception {
+        return crypto.verify(scheme, keyPair.getPublic(), message, signature);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean verifyContended() throws Exception {
+        return crypto.verify(scheme, keyPair.getPublic(), message, signature);
+    }
+
+    // Baselines without the hop to the crypto pool
+    @Benchmark
+    public byte[] signDirect(Signatures signatures) throws Exception {
+        signatures.signer.initSign(keyPair.getPrivate());
+        signatures.signer.update(message.asReadOnlyByteBuffer());
+        return signatures.signer.sign();
+    }
+
+    @Benchmark
+    public boolean verifyDirect(Signatures signatures) throws Exception {
+        signatures.verifier.initVerify(keyPair.getPublic());
+        signatures.verifier.update(message.asReadOnlyByteBuffer());
+        return signatures.verifier.verify(signature.toByteArray());
+    }
+
+    @Benchmark
+    public PublicKey decodeCachedKey() throws Exception {
+        return keyCache.get(encodedKey, scheme);
+    }
+}
@@ -0,0 +1,79 @@
+package secserver.benchmarks;
+
+import com.google.protobuf.ByteString;
+import secserver.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+final class Fixtures {
+    // Size of an encoded 2048 bit RSA public key. The backend never decodes keys, so random bytes do.
+    static final int KEY_SIZE = 294;
+
+    private Fixtures() {
+    }
+
+    static ByteString randomKey(Random random) {
+        byte[] key = new byte[KEY_SIZE];
+        random.nextBytes(key);
+        return ByteString.copyFrom(key);
+    }
+
+    // Builds a backend over the given log with either the heap or the mapped account store
+    static SecServerBackend backend(LogStorage log, AuditIndex auditIndex, AccountStore accounts, AccountShards shards) throws Exception {
+        return new SecServerBackend(log, null, auditIndex, (AccountRegistry) accounts, accounts, shards);
+    }
+
+    static AccountStore accountStore(String type, Path directory) throws IOException {
+        switch (type) {
+            case "heap":
+                return new HeapStore();
+            case "mapped":
+                return new MappedAccountTable(directory.resolve("accounts"), 0);
+            default:
+                throw new IllegalArgumentException("unknown store " + type);
+        }
+    }
+
+    // The heap registry and store are separate classes, benchmarks handle them as one like the mapped table
+    static class HeapStore extends HeapAccountStore implements AccountRegistry {
+        private final HeapAccountRegistry registry = new HeapAccountRegistry();
+
+        @Override
+        public int idOf(ByteString encodedKey) {
+            return registry.idOf(encodedKey);
+        }
+
+        @Override
+        public int register(ByteString encodedKey) {
+            return registry.register(encodedKey);
+        }
+
+        @Override
+        public ByteString keyOf(int id) {
+            return registry.keyOf(id);
+        }
+
+        @Override
+        public int size() {
+            return registry.size();
+        }
+    }
+
+    static Path temporaryDirectory() throws IOException {
+        return Files.createTempDirectory("secserver-benchmarks");
+    }
+
+    static void delete(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory))
+            return;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+}
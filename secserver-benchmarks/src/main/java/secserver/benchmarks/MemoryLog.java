@@ -0,0 +1,85 @@
+package secserver.benchmarks;
+
+import secserver.LogRecord;
+import secserver.LogStorage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Log kept in memory, so backend benchmarks measure the backend and not the disk. Positions are record indexes.
+ * Records are kept and listeners called until freeze(), after that appends only hand out positions, so long
+ * benchmark runs do not fill the heap.
+ */
+public class MemoryLog implements LogStorage {
+    private final List<LogRecord> records = new ArrayList<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong nextPosition = new AtomicLong();
+    private volatile boolean recording = true;
+
+    @Override
+    public Appended sequence(LogRecord record) {
+        if (!recording) {
+            long position = nextPosition.getAndIncrement();
+            return new Appended(position, CompletableFuture.completedFuture(position));
+        }
+
+        synchronized (records) {
+            long position = nextPosition.getAndIncrement();
+            records.add(record);
+            try {
+                for (Listener listener : listeners) {
+                    listener.onDurable(position, record);
+                    listener.onSynced(position + 1);
+                }
+            } catch (IOException e) {
+                return new Appended(position, CompletableFuture.failedFuture(e));
+            }
+            return new Appended(position, CompletableFuture.completedFuture(position));
+        }
+    }
+
+    public void freeze() {
+        recording = false;
+    }
+
+    @Override
+    public void replay(long fromPosition, long toPosition, Visitor visitor) throws Exception {
+        synchronized (records) {
+            for (int i = (int) fromPosition; i < Math.min(toPosition, records.size()); i++)
+                visitor.visit(i, records.get(i));
+        }
+    }
+
+    @Override
+    public LogRecord read(long position) throws IOException {
+        synchronized (records) {
+            if (position >= records.size())
+                throw new IOException("no record at position " + position);
+            return records.get((int) position);
+        }
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public long endPosition() {
+        return nextPosition.get();
+    }
+
+    @Override
+    public long nextPosition() {
+        return nextPosition.get();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,85 @@
+package secserver.benchmarks;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+import secserver.PayloadMarshaller;
+import secserver.grpc.Secserver.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Wrapping messages in Any and back, for a request and for a checkAccount response with `pending` transactions
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProtobufBenchmark {
+    @Param({"0", "16", "256"})
+    int pending;
+
+    SendAmountRequest request;
+    CheckAccountResponse response;
+    ByteString packedRequest;
+    ByteString packedResponse;
+    byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        ByteString source = Fixtures.randomKey(random);
+        request = SendAmountRequest.newBuilder()
+                .setPublicKeySource(source)
+                .setPublicKeyDestination(Fixtures.randomKey(random))
+                .setAmount(10)
+                .setSeqNum(7).build();
+
+        CheckAccountResponse.Builder builder = CheckAccountResponse.newBuilder().setSuccess(true).setBalance(50).setSeqNum(7);
+        for (int i = 0; i < pending; i++)
+            builder.addIncoming(Transaction.newBuilder().setPublicKeySource(Fixtures.randomKey(random)).setAmount(1));
+        response = builder.build();
+
+        packedRequest = Any.pack(request).toByteString();
+        packedResponse = Any.pack(response).toByteString();
+
+        byte[] signature = new byte[256];
+        random.nextBytes(signature);
+        payload = Payload.newBuilder()
+                .setMessage(packedRequest)
+                .setDigitalSignature(ByteString.copyFrom(signature))
+                .setPublicKey(source).build().toByteArray();
+    }
+
+    @Benchmark
+    public ByteString packRequest() {
+        return Any.pack(request).toByteString();
+    }
+
+    @Benchmark
+    public SendAmountRequest unpackRequest() throws Exception {
+        return Any.parseFrom(packedRequest).unpack(SendAmountRequest.class);
+    }
+
+    @Benchmark
+    public ByteString packResponse() {
+        return Any.pack(response).toByteString();
+    }
+
+    @Benchmark
+    public CheckAccountResponse unpackResponse() throws Exception {
+        return Any.parseFrom(packedResponse).unpack(CheckAccountResponse.class);
+    }
+
+    @Benchmark
+    public Payload parsePayload() throws Exception {
+        return Payload.parseFrom(new ByteArrayInputStream(payload));
+    }
+
+    @Benchmark
+    public Payload parsePayloadAliasing() {
+        return PayloadMarshaller.INSTANCE.parse(new ByteArrayInputStream(payload));
+    }
+}
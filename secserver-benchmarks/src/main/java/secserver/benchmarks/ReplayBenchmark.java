@@ -0,0 +1,91 @@
+package secserver.benchmarks;
+
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+import secserver.*;
+import secserver.LogRecord.Operation;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Reading back a write-ahead log of `records` records: a bare scan, restoring a backend from it without a
+ * snapshot, and rebuilding the audit index. The log holds rounds in which every account sends 1 to the next
+ * account and that one receives it, so balances never run out.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplayBenchmark {
+    @Param({"1000"})
+    int accounts;
+
+    @Param({"10000", "100000", "1000000"})
+    int records;
+
+    Path directory;
+    WriteAheadLog log;
+    AccountShards shards;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Fixtures.temporaryDirectory();
+        log = new WriteAheadLog(directory.resolve("log.wal"), 0, 4096);
+        shards = new AccountShards(1, Runnable::run);
+
+        Random random = new Random(42);
+        ByteString[] keys = new ByteString[accounts];
+        long[] sequenceNumbers = new long[accounts];
+        CompletableFuture<Long> last = null;
+        int written = 0;
+        for (int i = 0; i < accounts && written < records; i++, written++) {
+            keys[i] = Fixtures.randomKey(random);
+            last = log.append(new LogRecord(Operation.OPEN, true, keys[i], null, 50, ++sequenceNumbers[i]));
+        }
+        for (int i = 0; written < records; i = (i + 1) % accounts) {
+            int next = (i + 1) % accounts;
+            last = log.append(new LogRecord(Operation.SEND, true, keys[i], keys[next], 1, ++sequenceNumbers[i]));
+            if (++written < records) {
+                last = log.append(new LogRecord(Operation.RECEIVE, true, keys[next], null, 0, ++sequenceNumbers[next]));
+                written++;
+            }
+        }
+        last.join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        shards.close();
+        log.close();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public long scan() throws Exception {
+        long[] count = new long[1];
+        log.replay(0, (position, record) -> count[0]++);
+        return count[0];
+    }
+
+    @Benchmark
+    public SecServerBackend restoreState() throws Exception {
+        return new SecServerBackend(log, null, null, new HeapAccountRegistry(), new HeapAccountStore(), shards);
+    }
+
+    @Benchmark
+    public long rebuildAuditIndex() throws Exception {
+        Path path = directory.resolve("log.idx");
+        try (AuditIndex auditIndex = new AuditIndex(path)) {
+            auditIndex.recover(log);
+            return auditIndex.positions(ByteString.EMPTY).length;
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
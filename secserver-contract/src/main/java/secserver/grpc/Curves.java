@@ -0,0 +1,31 @@
+package secserver.grpc;
+
+import java.security.AlgorithmParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+
+// The curve of ECDSA_P256_SHA256, the same for the server and its clients
+public final class Curves {
+    private static final ECParameterSpec P256 = namedCurve("secp256r1");
+
+    private Curves() {
+    }
+
+    // Compares the parameters, keys from another provider name the curve their own way
+    public static boolean isP256(ECParameterSpec params) {
+        return params.getCurve().equals(P256.getCurve()) && params.getGenerator().equals(P256.getGenerator())
+                && params.getOrder().equals(P256.getOrder()) && params.getCofactor() == P256.getCofactor();
+    }
+
+    private static ECParameterSpec namedCurve(String name) {
+        try {
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec(name));
+            return parameters.getParameterSpec(ECParameterSpec.class);
+        } catch (NoSuchAlgorithmException | InvalidParameterSpecException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package secserver.loadgen;
+
+/*
+ * What a request does to the protocol, after the secclient_test modules. The server should answer an honest or a
+ * replayed request, answer a request from the future with an error once it gives up waiting for the gap before it,
+ * and drop a tampered one without answering.
+ */
+public enum Behavior {
+    // a correctly signed request with the next sequence number
+    HONEST,
+    // the previous request sent again, with its already used sequence number (secclient_test1)
+    REPLAY,
+    // a correctly signed request that skips a sequence number
+    FUTURE,
+    // a request whose message is not the one that was signed (secclient_test2 and secclient_test3)
+    TAMPER;
+
+    public String label() {
+        return name().toLowerCase();
+    }
+}
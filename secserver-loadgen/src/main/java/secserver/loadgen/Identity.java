@@ -0,0 +1,52 @@
+package secserver.loadgen;
+
+import com.google.protobuf.ByteString;
+import secserver.CryptoService;
+import secserver.grpc.Secserver.SignatureScheme;
+
+import java.security.*;
+
+// Account owner generated in memory, only ever used by one thread at a time
+public class Identity {
+    private final KeyPair keyPair;
+    private final ByteString publicKey;
+    private final SignatureScheme signatureScheme;
+    private final Signature signer;
+    private long sequenceNumber;
+
+    public Identity(KeyPair keyPair) throws GeneralSecurityException {
+        this.keyPair = keyPair;
+        this.publicKey = ByteString.copyFrom(keyPair.getPublic().getEncoded());
+        this.signatureScheme = CryptoService.schemeOf(keyPair.getPrivate());
+        this.signer = Signature.getInstance(CryptoService.signatureAlgorithm(signatureScheme));
+    }
+
+    // 2048-bit RSA or P-256 EC keys
+    public static Identity generate(SignatureScheme scheme) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(CryptoService.keyAlgorithm(scheme));
+        generator.initialize(scheme == SignatureScheme.ECDSA_P256_SHA256 ? 256 : 2048);
+        return new Identity(generator.generateKeyPair());
+    }
+
+    public ByteString getPublicKey() {
+        return publicKey;
+    }
+
+    public SignatureScheme getSignatureScheme() {
+        return signatureScheme;
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public void setSequenceNumber(long sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    public ByteString sign(ByteString data) throws InvalidKeyException, SignatureException {
+        signer.initSign(keyPair.getPrivate());
+        signer.update(data.asReadOnlyByteBuffer());
+        return ByteString.copyFrom(signer.sign());
+    }
+}
@@ -0,0 +1,99 @@
+package secserver.loadgen;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import secserver.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/*
+ * A complete server running inside the load generator on the in-process transport, put together like SecServerMain
+ * does but with a key of its own and its log, index and snapshots in a temporary folder.
+ */
+public class InProcessTarget implements Closeable {
+    private final Path directory;
+    private final WriteAheadLog log;
+    private final AuditIndex auditIndex;
+    private final SecServerBackend backend;
+    private final CryptoService crypto;
+    private final ReorderBuffer reorderBuffer;
+    private final ExecutorService streamExecutor;
+    private final AccountShards shards;
+    private final AccountEvents events;
+    private final Server server;
+    private final PublicKey publicKey;
+    private final String name = "secserver-loadgen";
+
+    public InProcessTarget(int cryptoThreads) throws Exception {
+        directory = Files.createTempDirectory("secserver-loadgen");
+        log = new WriteAheadLog(directory.resolve("log.wal"), 0, 1024);
+        auditIndex = new AuditIndex(directory.resolve("log.idx"));
+        log.addListener(auditIndex);
+
+        SnapshotStore snapshots = new SnapshotStore(directory.resolve("snapshots"), 2);
+        streamExecutor = Executors.newCachedThreadPool();
+        shards = new AccountShards(Runtime.getRuntime().availableProcessors(), streamExecutor);
+        backend = new SecServerBackend(log, snapshots, auditIndex, new HeapAccountRegistry(), new HeapAccountStore(), shards);
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        publicKey = keyPair.getPublic();
+        crypto = new CryptoService(keyPair.getPrivate(), cryptoThreads);
+
+        reorderBuffer = new ReorderBuffer(backend, 64, 2000);
+        events = new AccountEvents(log, auditIndex, backend, streamExecutor, 1024);
+        log.addListener(events);
+
+        SessionManager sessions = new SessionManager(100000, 3600000);
+        SecServerImpl impl = new SecServerImpl(backend, new PublicKeyCache(100000), crypto, reorderBuffer,
+                sessions, events, streamExecutor, 32, 1000, AdmissionControl.unlimited(sessions));
+        server = InProcessServerBuilder.forName(name)
+                .addService(PayloadMarshaller.withAliasingRequests(impl.bindService()))
+                .build()
+                .start();
+    }
+
+    public ManagedChannel newChannel() {
+        return InProcessChannelBuilder.forName(name).build();
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    @Override
+    public void close() throws IOException {
+        events.close();
+        server.shutdown();
+        try {
+            server.awaitTermination();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        shards.close();
+        streamExecutor.shutdown();
+        reorderBuffer.close();
+        crypto.close();
+        backend.close();
+        log.close();
+        auditIndex.close();
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package secserver.loadgen;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import io.grpc.Channel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import secserver.CryptoService;
+import secserver.grpc.SecServerServiceGrpc;
+import secserver.grpc.Secserver.*;
+import secserver.loadgen.OperationStats.Outcome;
+
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Speaks the same protocol as SecClient, for many identities at once and without printing anything.
+ * Calls block, the load generator runs them from as many threads as it needs.
+ */
+public class LoadClient {
+    private final SecServerServiceGrpc.SecServerServiceBlockingStub[] stubs;
+    private final PublicKey serverPublicKey;
+    private final Identity[] identities;
+    private final long timeoutMillis;
+    private final long byzantineTimeoutMillis;
+    private final int batchSize;
+    private final ThreadLocal<Signature> verifiers;
+
+    public LoadClient(Channel[] channels, PublicKey serverPublicKey, Identity[] identities, long timeoutMillis, long byzantineTimeoutMillis,
+            int batchSize) throws InvalidKeyException {
+        this.stubs = new SecServerServiceGrpc.SecServerServiceBlockingStub[channels.length];
+        for (int i = 0; i < channels.length; i++)
+            stubs[i] = SecServerServiceGrpc.newBlockingStub(channels[i]);
+        this.serverPublicKey = serverPublicKey;
+        String serverAlgorithm = CryptoService.signatureAlgorithm(CryptoService.schemeOf(serverPublicKey));
+        this.verifiers = ThreadLocal.withInitial(() -> {
+            try {
+                return Signature.getInstance(serverAlgorithm);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        this.identities = identities;
+        this.timeoutMillis = timeoutMillis;
+        this.byzantineTimeoutMillis = byzantineTimeoutMillis;
+        this.batchSize = batchSize;
+    }
+
+    private SecServerServiceGrpc.SecServerServiceBlockingStub stub(Identity identity, long timeout) {
+        int channel = Math.floorMod(identity.getPublicKey().hashCode(), stubs.length);
+        return stubs[channel].withDeadlineAfter(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    // Asks for the current sequence number, the next request uses the one after it
+    public Outcome sequenceNumber(Identity identity) {
+        try {
+            byte[] nonce = new byte[12];
+            new SecureRandom().nextBytes(nonce);
+            ByteString request = Any.pack(SequenceNumberRequest.newBuilder()
+                    .setPublicKey(identity.getPublicKey())
+                    .setNonce(ByteString.copyFrom(nonce)).build()).toByteString();
+
+            Payload response = stub(identity, timeoutMillis).sequenceNumber(payload(identity, request, request));
+            if (!verify(response))
+                return Outcome.ERROR;
+
+            SequenceNumberResponse parsed = Any.parseFrom(response.getMessage()).unpack(SequenceNumberResponse.class);
+            if (!parsed.getNonce().equals(ByteString.copyFrom(nonce)))
+                return Outcome.ERROR;
+
+            identity.setSequenceNumber(parsed.getSeqNum() + 1);
+            return Outcome.OK;
+        } catch (StatusRuntimeException e) {
+            return e.getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED ? Outcome.DROPPED : Outcome.ERROR;
+        } catch (Exception e) {
+            return Outcome.ERROR;
+        }
+    }
+
+    public Outcome execute(Identity identity, Operation operation, Behavior behavior) {
+        long sequenceNumber = identity.getSequenceNumber();
+        if (behavior == Behavior.REPLAY)
+            sequenceNumber--;
+        else if (behavior == Behavior.FUTURE)
+            sequenceNumber++;
+
+        try {
+            ByteString request = request(identity, operation, sequenceNumber);
+            ByteString sent = behavior == Behavior.TAMPER ? request(identity, operation, sequenceNumber + 1) : request;
+            Payload payload = payload(identity, request, sent);
+            SecServerServiceGrpc.SecServerServiceBlockingStub stub = stub(identity, behavior == Behavior.HONEST ? timeoutMillis : byzantineTimeoutMillis);
+
+            Payload response;
+            Class<? extends Message> type;
+            switch (operation) {
+                case OPEN:
+                    response = stub.openAccount(payload);
+                    type = OpenAccountResponse.class;
+                    break;
+                case SEND:
+                    response = stub.sendAmount(payload);
+                    type = SendAmountResponse.class;
+                    break;
+                case BATCH:
+                    response = stub.sendAmountBatch(payload);
+                    type = SendAmountBatchResponse.class;
+                    break;
+                case CHECK:
+                    response = stub.checkAccount(payload);
+                    type = CheckAccountResponse.class;
+                    break;
+                case RECEIVE:
+                    response = stub.receiveAmount(payload);
+                    type = ReceiveAmountResponse.class;
+                    break;
+                default:
+                    response = stub.audit(payload);
+                    type = AuditResponse.class;
+                    break;
+            }
+
+            if (!verify(response))
+                return Outcome.ERROR;
+
+            Any message = Any.parseFrom(response.getMessage());
+            if (message.is(ErrorResponse.class))
+                return message.unpack(ErrorResponse.class).getSeqNum() == sequenceNumber ? Outcome.REJECTED : Outcome.ERROR;
+
+            Message parsed = message.unpack(type);
+            long answeredSequenceNumber = (long) parsed.getField(parsed.getDescriptorForType().findFieldByName("seqNum"));
+            boolean success = (boolean) parsed.getField(parsed.getDescriptorForType().findFieldByName("success"));
+            if (answeredSequenceNumber != sequenceNumber)
+                return Outcome.ERROR;
+
+            if (behavior == Behavior.HONEST)
+                identity.setSequenceNumber(sequenceNumber + 1);
+            return success ? Outcome.OK : Outcome.REJECTED;
+        } catch (StatusRuntimeException e) {
+            return e.getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED ? Outcome.DROPPED : Outcome.ERROR;
+        } catch (Exception e) {
+            return Outcome.ERROR;
+        }
+    }
+
+    private ByteString request(Identity identity, Operation operation, long sequenceNumber) {
+        Message request;
+        switch (operation) {
+            case OPEN:
+                request = OpenAccountRequest.newBuilder().setSeqNum(sequenceNumber).setPublicKey(identity.getPublicKey()).build();
+                break;
+            case SEND:
+                request = SendAmountRequest.newBuilder()
+                        .setSeqNum(sequenceNumber)
+                        .setPublicKeySource(identity.getPublicKey())
+                        .setPublicKeyDestination(destination(identity).getPublicKey())
+                        .setAmount(1).build();
+                break;
+            case BATCH:
+                SendAmountBatchRequest.Builder batch = SendAmountBatchRequest.newBuilder()
+                        .setSeqNum(sequenceNumber)
+                        .setPublicKeySource(identity.getPublicKey());
+                for (int i = 0; i < batchSize; i++)
+                    batch.addLegs(TransferLeg.newBuilder().setPublicKeyDestination(destination(identity).getPublicKey()).setAmount(1));
+                request = batch.build();
+                break;
+            case CHECK:
+                request = CheckAccountRequest.newBuilder().setSeqNum(sequenceNumber).setPublicKey(identity.getPublicKey()).build();
+                break;
+            case RECEIVE:
+                request = ReceiveAmountRequest.newBuilder().setSeqNum(sequenceNumber).setPublicKey(identity.getPublicKey()).build();
+                break;
+            default:
+                request = AuditRequest.newBuilder().setSeqNum(sequenceNumber).setPublicKey(identity.getPublicKey()).build();
+                break;
+        }
+        return Any.pack(request).toByteString();
+    }
+
+    // Any other identity, chosen at random
+    private Identity destination(Identity source) {
+        if (identities.length < 2)
+            return source;
+        while (true) {
+            Identity destination = identities[ThreadLocalRandom.current().nextInt(identities.length)];
+            if (destination != source)
+                return destination;
+        }
+    }
+
+    private static Payload payload(Identity identity, ByteString signed, ByteString sent) throws Exception {
+        return Payload.newBuilder()
+                .setMessage(sent)
+                .setPublicKey(identity.getPublicKey())
+                .setDigitalSignature(identity.sign(signed))
+                .setSignatureScheme(identity.getSignatureScheme()).build();
+    }
+
+    private boolean verify(Payload response) throws Exception {
+        Signature verifier = verifiers.get();
+        verifier.initVerify(serverPublicKey);
+        verifier.update(response.getMessage().asReadOnlyByteBuffer());
+        return verifier.verify(response.getDigitalSignature().toByteArray());
+    }
+}
@@ -0,0 +1,274 @@
+package secserver.loadgen;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import secserver.grpc.Secserver.SignatureScheme;
+import secserver.loadgen.OperationStats.Outcome;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Opens the accounts of a number of generated identities and then sends them a mix of requests for a while,
+ * either from a fixed number of threads that each wait for their answer (closed loop) or at a fixed rate no matter
+ * how fast the server answers (open loop). Open loop latencies are taken from when a request should have been sent,
+ * so a slow server is not hidden by the generator sending less.
+ */
+public class LoadGeneratorMain {
+    private static final Operation[] MIXED = { Operation.SEND, Operation.CHECK, Operation.RECEIVE, Operation.AUDIT, Operation.BATCH };
+
+    private final LoadClient client;
+    private final Identity[] identities;
+    private final int[] mix;
+    private final int mixTotal;
+    private final Behavior byzantine;
+    private final double byzantineRatio;
+    private final Map<String, OperationStats> stats = new LinkedHashMap<>();
+
+    private LoadGeneratorMain(LoadClient client, Identity[] identities, int[] mix, Behavior byzantine, double byzantineRatio) {
+        this.client = client;
+        this.identities = identities;
+        this.mix = mix;
+        this.mixTotal = Arrays.stream(mix).sum();
+        this.byzantine = byzantine;
+        this.byzantineRatio = byzantineRatio;
+
+        for (Operation operation : Operation.values()) {
+            stats.put(operation.label(), new OperationStats(operation.label()));
+            if (byzantine != Behavior.HONEST)
+                stats.put(operation.label() + "-" + byzantine.label(), new OperationStats(operation.label() + "-" + byzantine.label()));
+        }
+        stats.put("sequenceNumber", new OperationStats("sequenceNumber"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(LoadGeneratorMain.class.getSimpleName());
+
+        String target = System.getProperty("loadgen.target", "localhost:8888");
+        int identityCount = Integer.getInteger("loadgen.identities", 100);
+        int channelCount = Integer.getInteger("loadgen.channels", 4);
+        String mode = System.getProperty("loadgen.mode", "closed");
+        int concurrency = Integer.getInteger("loadgen.concurrency", 16);
+        double rate = Double.parseDouble(System.getProperty("loadgen.rate", "1000"));
+        long duration = Long.getLong("loadgen.duration", 30);
+        long warmup = Long.getLong("loadgen.warmupSeconds", 5);
+        int[] mix = parseMix(System.getProperty("loadgen.mix", "send:50,check:30,receive:15,audit:5"));
+        Behavior byzantine = Behavior.valueOf(System.getProperty("loadgen.byzantine", "honest").toUpperCase());
+        double byzantineRatio = Double.parseDouble(System.getProperty("loadgen.byzantineRatio", "0.1"));
+        long timeoutMillis = Long.getLong("loadgen.timeoutMillis", 5000);
+        long byzantineTimeoutMillis = Long.getLong("loadgen.byzantineTimeoutMillis", 500);
+        int batchSize = Integer.getInteger("loadgen.batchSize", 10);
+        String output = System.getProperty("loadgen.output");
+        SignatureScheme scheme = System.getProperty("loadgen.keyAlgorithm", "rsa").equalsIgnoreCase("ec")
+                ? SignatureScheme.ECDSA_P256_SHA256 : SignatureScheme.RSA_SHA256;
+
+        if (identityCount < concurrency && mode.equals("closed"))
+            throw new IllegalArgumentException("loadgen.identities must be at least loadgen.concurrency");
+
+        InProcessTarget inProcess = null;
+        PublicKey serverPublicKey;
+        ManagedChannel[] channels = new ManagedChannel[channelCount];
+        if (target.equals("inprocess")) {
+            inProcess = new InProcessTarget(Runtime.getRuntime().availableProcessors());
+            serverPublicKey = inProcess.getPublicKey();
+            for (int i = 0; i < channelCount; i++)
+                channels[i] = inProcess.newChannel();
+        } else {
+            serverPublicKey = readPublicKey(Path.of(System.getProperty("loadgen.serverKey", "server_public.pem")));
+            for (int i = 0; i < channelCount; i++)
+                channels[i] = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
+        }
+
+        try {
+            System.out.println("Generating " + identityCount + " " + scheme + " identities");
+            Identity[] identities = generateIdentities(identityCount, scheme);
+            LoadClient client = new LoadClient(channels, serverPublicKey, identities, timeoutMillis, byzantineTimeoutMillis, batchSize);
+            LoadGeneratorMain generator = new LoadGeneratorMain(client, identities, mix, byzantine, byzantineRatio);
+
+            System.out.println("Opening accounts");
+            generator.openAccounts(concurrency);
+
+            System.out.println("Running " + mode + " loop for " + warmup + "s of warmup and " + duration + "s");
+            long seconds = mode.equals("open")
+                    ? generator.runOpenLoop(rate, concurrency, warmup, duration)
+                    : generator.runClosedLoop(concurrency, warmup, duration);
+
+            Report report = new Report(new ArrayList<>(generator.stats.values()), seconds / 1e9);
+            report.print(System.out);
+            if (output != null)
+                report.write(Path.of(output));
+        } finally {
+            for (ManagedChannel channel : channels) {
+                channel.shutdown();
+                channel.awaitTermination(5, TimeUnit.SECONDS);
+            }
+            if (inProcess != null)
+                inProcess.close();
+        }
+    }
+
+    private void openAccounts(int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> opened = new ArrayList<>();
+        for (Identity identity : identities) {
+            opened.add(executor.submit(() -> {
+                timed(stats.get("sequenceNumber"), System.nanoTime(), client.sequenceNumber(identity));
+                timed(stats.get(Operation.OPEN.label()), System.nanoTime(), client.execute(identity, Operation.OPEN, Behavior.HONEST));
+            }));
+        }
+        for (Future<?> future : opened)
+            future.get();
+        executor.shutdown();
+
+        long failed = stats.get(Operation.OPEN.label()).getCount() - stats.get(Operation.OPEN.label()).getCount(Outcome.OK);
+        if (failed > 0)
+            System.out.println(failed + " accounts could not be opened");
+    }
+
+    // Every thread owns a slice of the identities and goes through them round robin, one request at a time
+    private long runClosedLoop(int threads, long warmup, long duration) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            workers.add(executor.submit(() -> {
+                for (int i = first; running.get(); i += threads) {
+                    if (i >= identities.length)
+                        i = first;
+                    step(identities[i], System.nanoTime());
+                }
+            }));
+        }
+
+        long measured = measure(warmup, duration);
+        running.set(false);
+        for (Future<?> worker : workers)
+            worker.get();
+        executor.shutdown();
+        return measured;
+    }
+
+    /*
+     * A scheduler thread starts a request every 1/rate seconds on an identity that has no request in flight.
+     * When all identities are busy the request waits for one, and that wait counts towards its latency.
+     */
+    private long runOpenLoop(double rate, int threads, long warmup, long duration) throws Exception {
+        BlockingQueue<Identity> idle = new LinkedBlockingQueue<>(Arrays.asList(identities));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicBoolean running = new AtomicBoolean(true);
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+
+        Thread scheduler = new Thread(() -> {
+            long next = System.nanoTime();
+            try {
+                while (running.get()) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+
+                    long intended = next;
+                    Identity identity = idle.take();
+                    executor.execute(() -> {
+                        try {
+                            step(identity, intended);
+                        } finally {
+                            idle.add(identity);
+                        }
+                    });
+                    next += interval;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "loadgen-scheduler");
+        scheduler.start();
+
+        long measured = measure(warmup, duration);
+        running.set(false);
+        scheduler.join();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        return measured;
+    }
+
+    // Sleeps through the warmup, forgets what was recorded during it and then sleeps through the measurement
+    private long measure(long warmup, long duration) throws InterruptedException {
+        TimeUnit.SECONDS.sleep(warmup);
+        for (OperationStats operation : stats.values())
+            operation.reset();
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(duration);
+        return System.nanoTime() - start;
+    }
+
+    private void step(Identity identity, long start) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Operation operation = pick(random.nextInt(mixTotal));
+        Behavior behavior = byzantine != Behavior.HONEST && random.nextDouble() < byzantineRatio ? byzantine : Behavior.HONEST;
+
+        Outcome outcome = client.execute(identity, operation, behavior);
+        timed(stats.get(behavior == Behavior.HONEST ? operation.label() : operation.label() + "-" + behavior.label()), start, outcome);
+
+        // an honest request without an answer may or may not have been executed
+        if (outcome == Outcome.ERROR || (outcome == Outcome.DROPPED && behavior == Behavior.HONEST))
+            timed(stats.get("sequenceNumber"), System.nanoTime(), client.sequenceNumber(identity));
+    }
+
+    private static void timed(OperationStats operation, long start, Outcome outcome) {
+        operation.record(outcome, System.nanoTime() - start);
+    }
+
+    private Operation pick(int value) {
+        for (int i = 0; i < MIXED.length; i++) {
+            if (value < mix[i])
+                return MIXED[i];
+            value -= mix[i];
+        }
+        return MIXED[MIXED.length - 1];
+    }
+
+    // Weights like "send:50,check:30,receive:15,audit:5,batch:10", operations left out are not sent
+    private static int[] parseMix(String value) {
+        int[] mix = new int[MIXED.length];
+        for (String entry : value.split(",")) {
+            String[] parts = entry.trim().split(":");
+            Operation operation = Operation.valueOf(parts[0].trim().toUpperCase());
+            int index = Arrays.asList(MIXED).indexOf(operation);
+            if (index < 0)
+                throw new IllegalArgumentException("Operation " + parts[0] + " cannot be part of the mix");
+            mix[index] = Integer.parseInt(parts[1].trim());
+        }
+        if (Arrays.stream(mix).sum() <= 0)
+            throw new IllegalArgumentException("The mix needs at least one operation");
+        return mix;
+    }
+
+    private static Identity[] generateIdentities(int count, SignatureScheme scheme) throws Exception {
+        Identity[] identities = new Identity[count];
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Future<Identity>> generated = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            generated.add(executor.submit(() -> Identity.generate(scheme)));
+        for (int i = 0; i < count; i++)
+            identities[i] = generated.get(i).get();
+        executor.shutdown();
+        return identities;
+    }
+
+    private static PublicKey readPublicKey(Path path) throws Exception {
+        String publicKeyPEM = Files.readString(path)
+                .replace("-----BEGIN PUBLIC KEY-----", "")
+                .replace("-----END PUBLIC KEY-----", "")
+                .replaceAll("\\s", "");
+
+        byte[] encoded = Base64.getDecoder().decode(publicKeyPEM);
+        return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+    }
+}
@@ -0,0 +1,9 @@
+package secserver.loadgen;
+
+public enum Operation {
+    OPEN, SEND, CHECK, RECEIVE, AUDIT, BATCH;
+
+    public String label() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,61 @@
+package secserver.loadgen;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Outcome counts and a latency histogram in microseconds for one kind of request
+public class OperationStats {
+    public enum Outcome {
+        // signed answer with success set
+        OK,
+        // signed answer with an error message, such as a balance that would become negative
+        REJECTED,
+        // no answer before the deadline, which is what the server does with requests it refuses
+        DROPPED,
+        // anything else: a bad signature or sequence number in the answer, or a failed call
+        ERROR
+    }
+
+    private final String name;
+    private final Histogram latencies = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(1), 3);
+    private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+
+    public OperationStats(String name) {
+        this.name = name;
+        for (int i = 0; i < outcomes.length; i++)
+            outcomes[i] = new LongAdder();
+    }
+
+    public void record(Outcome outcome, long nanos) {
+        outcomes[outcome.ordinal()].increment();
+        latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), latencies.getHighestTrackableValue()));
+    }
+
+    public void reset() {
+        latencies.reset();
+        for (LongAdder outcome : outcomes)
+            outcome.reset();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder outcome : outcomes)
+            count += outcome.sum();
+        return count;
+    }
+
+    public long getCount(Outcome outcome) {
+        return outcomes[outcome.ordinal()].sum();
+    }
+
+    public Histogram getLatencies() {
+        return latencies;
+    }
+}
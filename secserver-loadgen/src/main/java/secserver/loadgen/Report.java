@@ -0,0 +1,76 @@
+package secserver.loadgen;
+
+import org.HdrHistogram.Histogram;
+import secserver.loadgen.OperationStats.Outcome;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+
+// Prints a table of the results and writes them to a CSV or JSON file, chosen by the file extension
+public class Report {
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private final List<OperationStats> stats;
+    private final double seconds;
+
+    public Report(List<OperationStats> stats, double seconds) {
+        this.stats = stats;
+        this.seconds = seconds;
+    }
+
+    public void print(PrintStream out) {
+        out.printf(Locale.ROOT, "%-16s %9s %9s %9s %9s %9s %10s %10s %10s %10s %10s %10s%n", "operation", "count", "ok",
+                "rejected", "dropped", "errors", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        for (OperationStats operation : stats) {
+            if (operation.getCount() == 0)
+                continue;
+            Histogram latencies = operation.getLatencies();
+            out.printf(Locale.ROOT, "%-16s %9d %9d %9d %9d %9d %10.1f %10d %10d %10d %10d %10d%n", operation.getName(),
+                    operation.getCount(), operation.getCount(Outcome.OK), operation.getCount(Outcome.REJECTED),
+                    operation.getCount(Outcome.DROPPED), operation.getCount(Outcome.ERROR), operation.getCount() / seconds,
+                    latencies.getValueAtPercentile(PERCENTILES[0]), latencies.getValueAtPercentile(PERCENTILES[1]),
+                    latencies.getValueAtPercentile(PERCENTILES[2]), latencies.getValueAtPercentile(PERCENTILES[3]),
+                    latencies.getMaxValue());
+        }
+    }
+
+    public void write(Path path) throws IOException {
+        String content = path.toString().endsWith(".json") ? json() : csv();
+        Files.writeString(path, content);
+    }
+
+    private String csv() {
+        StringBuilder csv = new StringBuilder("operation,count,ok,rejected,dropped,errors,ops_per_second,p50_us,p90_us,p99_us,p999_us,max_us\n");
+        for (OperationStats operation : stats) {
+            Histogram latencies = operation.getLatencies();
+            csv.append(String.format(Locale.ROOT, "%s,%d,%d,%d,%d,%d,%.1f,%d,%d,%d,%d,%d%n", operation.getName(),
+                    operation.getCount(), operation.getCount(Outcome.OK), operation.getCount(Outcome.REJECTED),
+                    operation.getCount(Outcome.DROPPED), operation.getCount(Outcome.ERROR), operation.getCount() / seconds,
+                    latencies.getValueAtPercentile(PERCENTILES[0]), latencies.getValueAtPercentile(PERCENTILES[1]),
+                    latencies.getValueAtPercentile(PERCENTILES[2]), latencies.getValueAtPercentile(PERCENTILES[3]),
+                    latencies.getMaxValue()));
+        }
+        return csv.toString();
+    }
+
+    private String json() {
+        StringBuilder json = new StringBuilder(String.format(Locale.ROOT, "{\n  \"seconds\": %.3f,\n  \"operations\": [", seconds));
+        for (int i = 0; i < stats.size(); i++) {
+            OperationStats operation = stats.get(i);
+            Histogram latencies = operation.getLatencies();
+            json.append(i == 0 ? "\n" : ",\n").append(String.format(Locale.ROOT,
+                    "    {\"operation\": \"%s\", \"count\": %d, \"ok\": %d, \"rejected\": %d, \"dropped\": %d, \"errors\": %d, "
+                            + "\"opsPerSecond\": %.1f, \"latencyMicros\": {\"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}}",
+                    operation.getName(), operation.getCount(), operation.getCount(Outcome.OK), operation.getCount(Outcome.REJECTED),
+                    operation.getCount(Outcome.DROPPED), operation.getCount(Outcome.ERROR), operation.getCount() / seconds,
+                    latencies.getValueAtPercentile(PERCENTILES[0]), latencies.getValueAtPercentile(PERCENTILES[1]),
+                    latencies.getValueAtPercentile(PERCENTILES[2]), latencies.getValueAtPercentile(PERCENTILES[3]),
+                    latencies.getMaxValue()));
+        }
+        return json.append("\n  ]\n}\n").toString();
+    }
+}
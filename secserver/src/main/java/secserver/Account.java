@@ -1,25 +1,30 @@
 package secserver;
 
-import java.security.PublicKey;
 import java.util.ArrayList;
 
+/*
+ * The version of an account goes up by one with every change to its balance or pending transactions, starting at 1
+ * when it is opened, and clearedVersion is the version at which its pending transactions were last accepted.
+ * Both stores count the same way, so replaying the log gives every account the version it had before.
+ *
+ * Only the shard the account belongs to reads and changes it, credits from other shards included, which reach it
+ * through the change queue of the shard in log order, see AccountShards. So it needs no locks.
+ */
 public class Account {
-    private PublicKey publicKey;
     private int currentBalance;
     private ArrayList<Transaction> pendingTransactions;
+    private long version;
+    private long clearedVersion;
 
-    public Account(PublicKey publicKey, int currentBalance) {
-        this.publicKey = publicKey;
-        this.currentBalance = currentBalance;
-        this.pendingTransactions = new ArrayList<Transaction>();
+    public Account(int currentBalance) {
+        this(currentBalance, 1, 1);
     }
 
-    public PublicKey getPublicKey() {
-        return publicKey;
-    }
-
-    public void setPublicKey(PublicKey publicKey) {
-        this.publicKey = publicKey;
+    public Account(int currentBalance, long version, long clearedVersion) {
+        this.currentBalance = currentBalance;
+        this.pendingTransactions = new ArrayList<Transaction>();
+        this.version = version;
+        this.clearedVersion = clearedVersion;
     }
 
     public int getCurrentBalance() {
@@ -30,32 +35,73 @@ public class Account {
         this.currentBalance = currentBalance;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public long getClearedVersion() {
+        return clearedVersion;
+    }
+
     public void addToBalance(int amount) {
         this.currentBalance += amount;
     }
 
+    // Whether subtractFromBalance would leave a positive balance
+    public boolean canSubtract(int amount) {
+        return this.currentBalance - amount > 0;
+    }
+
     public boolean subtractFromBalance(int amount) {
-        if (this.currentBalance - amount <= 0) {
+        if (!canSubtract(amount)) {
             return false;
         }
 
         this.currentBalance -= amount;
+        this.version++;
         return true;
     }
 
+    // Adds a transaction as it is, with the version it already has
     public void addTransaction(Transaction transaction) {
         this.pendingTransactions.add(transaction);
     }
 
+    public void credit(int sourceId, int amount) {
+        this.version++;
+        this.pendingTransactions.add(new Transaction(sourceId, amount, version));
+    }
+
     public ArrayList<Transaction> getPendingTransactions() {
         return pendingTransactions;
     }
 
+    public Account copy() {
+        return changesSince(0);
+    }
+
+    // Copy with only the pending transactions added after sinceVersion, or all of them if they were accepted since
+    public Account changesSince(long sinceVersion) {
+        Account copy = new Account(currentBalance, version, clearedVersion);
+        int first = pendingTransactions.size();
+        if (clearedVersion > sinceVersion)
+            first = 0;
+        while (first > 0 && pendingTransactions.get(first - 1).getVersion() > sinceVersion)
+            first--;
+        copy.pendingTransactions.addAll(pendingTransactions.subList(first, pendingTransactions.size()));
+        return copy;
+    }
+
     public void acceptTransactions() {
+        if (this.pendingTransactions.isEmpty())
+            return;
+
         for (Transaction transaction : this.pendingTransactions) {
             this.addToBalance(transaction.getAmount());
         }
 
         this.pendingTransactions.clear();
+        this.version++;
+        this.clearedVersion = version;
     }
 }
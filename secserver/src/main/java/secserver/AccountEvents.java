@@ -0,0 +1,276 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import secserver.grpc.Secserver.AccountEvent;
+import secserver.grpc.Secserver.AccountEventKind;
+import secserver.grpc.Secserver.Payload;
+import secserver.grpc.Secserver.SubscribeRequest;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+ * Pushes the changes to an account to the clients subscribed to it. Registered as a log listener after the audit
+ * index, so it sees every accepted record once it is durable, in log order, and only looks further at records of
+ * keys that have a subscription. Accounts nobody subscribed to cost a map lookup per record.
+ *
+ * The cursor of an event is one past the log position of its record. A subscription first sends what the audit index
+ * holds for the account from the requested cursor on and then the records that arrived since, skipping the ones it
+ * already sent, so a client that reconnects with its last cursor misses nothing and gets nothing twice. A subscriber
+ * that falls more than maxQueued events behind is ended with ABORTED and has to subscribe again from its cursor.
+ */
+public class AccountEvents implements LogStorage.Listener, Closeable {
+    private static class Committed {
+        private final long position;
+        private final LogRecord record;
+
+        private Committed(long position, LogRecord record) {
+            this.position = position;
+            this.record = record;
+        }
+    }
+
+    private final LogStorage log;
+    private final AuditIndex auditIndex;
+    private final SecServerBackend backend;
+    private final Executor executor;
+    private final int maxQueued;
+    private final ConcurrentHashMap<ByteString, List<Subscription>> subscriptions = new ConcurrentHashMap<>();
+
+    public AccountEvents(LogStorage log, AuditIndex auditIndex, SecServerBackend backend, Executor executor, int maxQueued) {
+        this.log = log;
+        this.auditIndex = auditIndex;
+        this.backend = backend;
+        this.executor = executor;
+        this.maxQueued = maxQueued;
+    }
+
+    // Has to be called from the call that asked for it, the handlers of the stream can only be set there
+    public void subscribe(ByteString encodedKey, int id, SubscribeRequest request, ServerCallStreamObserver<Payload> responseObserver,
+            ResponseSigner signer) {
+        Subscription subscription = new Subscription(encodedKey, id, request, responseObserver, signer);
+        subscriptions.computeIfAbsent(encodedKey, key -> new CopyOnWriteArrayList<>()).add(subscription);
+        responseObserver.setOnCancelHandler(() -> unsubscribe(subscription));
+        responseObserver.setOnReadyHandler(subscription::schedule);
+
+        // Read after registering, anything the index does not have yet reaches the subscription through onDurable
+        subscription.start(auditIndex.positions(encodedKey));
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        subscriptions.computeIfPresent(subscription.encodedKey, (key, list) -> {
+            list.remove(subscription);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    @Override
+    public void onDurable(long position, LogRecord record) {
+        if (subscriptions.isEmpty() || !record.isAccepted())
+            return;
+
+        switch (record.getOperation()) {
+            case OPEN:
+            case SEND:
+            case RECEIVE:
+                offer(record.getPublicKey(), position, record);
+                offer(record.getPublicKeyDestination(), position, record);
+                break;
+            case SEND_BATCH:
+                offer(record.getPublicKey(), position, record);
+                for (ByteString destination : new LinkedHashSet<>(record.getLegDestinations()))
+                    offer(destination, position, record);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void onSynced(long endPosition) {
+    }
+
+    private void offer(ByteString encodedKey, long position, LogRecord record) {
+        List<Subscription> list = subscriptions.get(encodedKey);
+        if (list == null)
+            return;
+        for (Subscription subscription : list)
+            subscription.offer(new Committed(position, record));
+    }
+
+    // What the record did to the account with that key, or null if it did not touch it
+    static AccountEvent.Builder eventOf(LogRecord record, ByteString encodedKey) {
+        AccountEvent.Builder event = AccountEvent.newBuilder().setSeqNum(record.getSeqNum());
+        boolean source = record.getPublicKey().equals(encodedKey);
+        switch (record.getOperation()) {
+            case OPEN:
+                return source ? event.setKind(AccountEventKind.OPENED).setAmount(record.getAmount()) : null;
+            case RECEIVE:
+                return source ? event.setKind(AccountEventKind.RECEIVED) : null;
+            case SEND:
+                if (source)
+                    return event.setKind(AccountEventKind.SENT).setPublicKeyOther(record.getPublicKeyDestination()).setAmount(record.getAmount());
+                return event.setKind(AccountEventKind.INCOMING).setPublicKeyOther(record.getPublicKey()).setAmount(record.getAmount());
+            case SEND_BATCH:
+                if (source)
+                    return event.setKind(AccountEventKind.SENT).setAmount(record.getAmount());
+                int amount = 0;
+                for (int i = 0; i < record.getLegDestinations().size(); i++) {
+                    if (record.getLegDestinations().get(i).equals(encodedKey))
+                        amount += record.getLegAmounts()[i];
+                }
+                return event.setKind(AccountEventKind.INCOMING).setPublicKeyOther(record.getPublicKey()).setAmount(amount);
+            default:
+                return null;
+        }
+    }
+
+    // Ends every subscription, clients resubscribe from their cursor once the server is back
+    @Override
+    public void close() {
+        for (List<Subscription> list : subscriptions.values()) {
+            for (Subscription subscription : list)
+                subscription.end(Status.UNAVAILABLE.withDescription("Server is shutting down"));
+        }
+    }
+
+    /*
+     * Events are built, signed and sent by one task on the executor at a time, and only while the client reads them,
+     * so a slow subscriber holds nothing but its queue.
+     */
+    private class Subscription implements Runnable {
+        private final ByteString encodedKey;
+        private final int id;
+        private final ByteString nonce;
+        private final ServerCallStreamObserver<Payload> responseObserver;
+        private final ResponseSigner signer;
+
+        private final ArrayDeque<Committed> queue = new ArrayDeque<>();
+        private long[] backlog = new long[0];
+        private int backlogIndex = 0;
+        private long cursor;
+        private boolean started = false;
+        private boolean subscribed = false;
+        private boolean scheduled = false;
+        private boolean done = false;
+        private Status failure;
+
+        private Subscription(ByteString encodedKey, int id, SubscribeRequest request, ServerCallStreamObserver<Payload> responseObserver,
+                ResponseSigner signer) {
+            this.encodedKey = encodedKey;
+            this.id = id;
+            this.nonce = request.getNonce();
+            this.cursor = request.getCursor();
+            this.responseObserver = responseObserver;
+            this.signer = signer;
+        }
+
+        private synchronized void start(long[] backlog) {
+            this.backlog = backlog;
+            started = true;
+            schedule();
+        }
+
+        private synchronized void offer(Committed committed) {
+            if (done || failure != null)
+                return;
+            if (queue.size() >= maxQueued) {
+                queue.clear();
+                end(Status.ABORTED.withDescription("Too many events not read, subscribe again from the last cursor"));
+                return;
+            }
+            queue.add(committed);
+            schedule();
+        }
+
+        private synchronized void end(Status status) {
+            if (failure == null)
+                failure = status;
+            schedule();
+        }
+
+        private synchronized void schedule() {
+            if (scheduled || done || !started)
+                return;
+            scheduled = true;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                scheduled = false;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    long position;
+                    LogRecord record = null;
+                    synchronized (this) {
+                        if (failure != null) {
+                            done = true;
+                            break;
+                        }
+                        if (!responseObserver.isReady() || responseObserver.isCancelled()) {
+                            scheduled = false;
+                            return;
+                        }
+
+                        if (!subscribed) {
+                            subscribed = true;
+                            position = -1;
+                        } else if (backlogIndex < backlog.length) {
+                            position = backlog[backlogIndex++];
+                        } else if (!queue.isEmpty()) {
+                            Committed committed = queue.poll();
+                            position = committed.position;
+                            record = committed.record;
+                        } else {
+                            scheduled = false;
+                            return;
+                        }
+                    }
+
+                    if (position < 0) {
+                        send(AccountEvent.newBuilder().setKind(AccountEventKind.SUBSCRIBED));
+                        continue;
+                    }
+                    if (position < cursor)
+                        continue;
+                    if (record == null)
+                        record = log.read(position);
+
+                    AccountEvent.Builder event = eventOf(record, encodedKey);
+                    cursor = position + 1;
+                    if (event != null)
+                        send(event);
+                }
+            } catch (Exception e) {
+                System.out.println("Subscription failed: " + e.getMessage());
+                synchronized (this) {
+                    done = true;
+                    if (failure == null)
+                        failure = Status.INTERNAL.withDescription("Subscription failed");
+                }
+            }
+
+            unsubscribe(this);
+            responseObserver.onError(failure.asRuntimeException());
+        }
+
+        private void send(AccountEvent.Builder event) throws Exception {
+            Account account = backend.readAccount(id);
+            if (account != null)
+                event.setBalance(account.getCurrentBalance()).setPendingCount(account.getPendingTransactions().size());
+            responseObserver.onNext(signer.sign(event.setCursor(cursor).setNonce(nonce).build()));
+        }
+    }
+}
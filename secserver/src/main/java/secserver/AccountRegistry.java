@@ -0,0 +1,18 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+
+/*
+ * Hands out a dense int id to every encoded public key the server sees. Everything behind the RPC layer
+ * refers to accounts by id, the key bytes are only needed again to answer clients and to write the log.
+ */
+public interface AccountRegistry {
+    // Returns -1 for a key that was never registered
+    int idOf(ByteString encodedKey);
+
+    int register(ByteString encodedKey);
+
+    ByteString keyOf(int id);
+
+    int size();
+}
@@ -0,0 +1,266 @@
+package secserver;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/*
+ * Runs the commands of every account on one of a fixed number of single-threaded shards, picked by account id, so the
+ * commands of an account run one at a time, in the order they reached the shard, and the stores need no locks.
+ *
+ * Only the shard of an account changes it. A record that changes accounts, a transfer debiting its source and
+ * crediting its destinations for instance, hands every change to the shard of its account, tagged with the position the
+ * log gave the record, through a lock-free queue ordered by position. A shard applies the changes handed to it in that
+ * order, once no shard can still hand it one with a lower position: a shard announces a lower bound of the position it
+ * is about to get before it appends, and withdraws it once its changes are handed out. So every account changes in log
+ * order, whichever shards its changes come from, and a replay of the log makes the same changes in the same order. The
+ * log is only held while it gives a record its place, the changes themselves are applied by the shards in parallel.
+ *
+ * Shards do not wait for the records they append. The result of a command is handed out once everything its shard
+ * appended up to the end of the command is durable, and the shard runs the next commands in the meantime, so the
+ * records of all shards go out in the same syncs of the log writer.
+ *
+ * While the log is replayed, outside of the shards, the changes run right away on the calling thread.
+ */
+public class AccountShards implements Closeable {
+    // A change is ordered by the position of its record, then by its place among the changes of the record
+    private static class Change implements Comparable<Change> {
+        private final long position;
+        private final int order;
+
+        private Change(long position, int order) {
+            this.position = position;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Change other) {
+            int byPosition = Long.compare(position, other.position);
+            return byPosition != 0 ? byPosition : Integer.compare(order, other.order);
+        }
+    }
+
+    private static class Shard {
+        private final ExecutorService executor;
+        private final ConcurrentSkipListMap<Change, Runnable> changes = new ConcurrentSkipListMap<>();
+        // At most the position the shard is appending changes at, Long.MAX_VALUE when it is not
+        private volatile long appending = Long.MAX_VALUE;
+        // Changes other shards handed it up to this position wait to be applied, see wake
+        private final AtomicLong wanted = new AtomicLong();
+        private final AtomicBoolean woken = new AtomicBoolean();
+        // Only used by the shard thread
+        private CompletableFuture<?> lastAppend = CompletableFuture.completedFuture(null);
+
+        private Shard(ExecutorService executor) {
+            this.executor = executor;
+        }
+    }
+
+    private final Shard[] shards;
+    private final Executor callbacks;
+    private final ThreadLocal<Shard> current = new ThreadLocal<>();
+    // Like the bound of a shard, while atCut hands out its copies
+    private volatile long cutting = Long.MAX_VALUE;
+
+    // callbacks runs what waits for the appends of a shard, so neither the shard nor the log writer does that work
+    public AccountShards(int count, Executor callbacks) {
+        this.shards = new Shard[Math.max(1, count)];
+        this.callbacks = callbacks;
+        for (int i = 0; i < shards.length; i++) {
+            String name = "shard-" + i;
+            Shard[] shard = new Shard[1];
+            shard[0] = new Shard(Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(() -> {
+                    current.set(shard[0]);
+                    runnable.run();
+                }, name);
+                thread.setDaemon(true);
+                return thread;
+            }));
+            shards[i] = shard[0];
+        }
+    }
+
+    public int size() {
+        return shards.length;
+    }
+
+    private Shard shardOf(int id) {
+        return shards[id % shards.length];
+    }
+
+    // Runs the command on the shard of the account, completing once what it appended is durable
+    public <T> CompletableFuture<T> submit(int id, Callable<T> command) {
+        Shard shard = shardOf(id);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable task = () -> {
+            try {
+                apply(shard, Long.MAX_VALUE, false);
+                T value = command.call();
+                shard.lastAppend.whenComplete((position, failure) -> {
+                    if (failure != null)
+                        result.completeExceptionally(failure);
+                    else
+                        result.complete(value);
+                });
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        };
+
+        if (current.get() == shard)
+            task.run();
+        else
+            shard.executor.execute(task);
+        return result;
+    }
+
+    /*
+     * Appends a record changing the accounts of ids, changes[i] changing ids[i], on the shard of the running command,
+     * and returns once the changes to accounts of this shard, and every change before them, are applied.
+     */
+    public void append(LogStorage log, LogRecord record, int[] ids, Runnable[] changes) {
+        Shard shard = current.get();
+        if (shard == null)
+            throw new IllegalStateException("accounts are only changed on their shard");
+
+        LogStorage.Appended appended;
+        shard.appending = log.endPosition();
+        try {
+            appended = log.sequence(record);
+            if (appended.position >= 0) {
+                for (int i = 0; i < ids.length; i++)
+                    shardOf(ids[i]).changes.put(new Change(appended.position, i), changes[i]);
+            }
+        } finally {
+            shard.appending = Long.MAX_VALUE;
+        }
+
+        shard.lastAppend = appended.durable;
+        if (appended.position < 0)
+            return;
+        for (int id : ids) {
+            if (shardOf(id) != shard)
+                wake(shardOf(id), appended.position + 1);
+        }
+        apply(shard, appended.position + 1, true);
+    }
+
+    // Has the shard apply the changes handed to it below upTo, with one task for all the credits handed out meanwhile
+    private void wake(Shard shard, long upTo) {
+        shard.wanted.accumulateAndGet(upTo, Math::max);
+        if (!shard.woken.compareAndSet(false, true))
+            return;
+        try {
+            shard.executor.execute(() -> {
+                shard.woken.set(false);
+                apply(shard, shard.wanted.get(), true);
+            });
+        } catch (RejectedExecutionException e) {
+            // closing, the changes are only in the log now and a restart replays them
+            shard.woken.set(false);
+        }
+    }
+
+    // Below it no shard can hand out a change anymore
+    private long handedOut() {
+        long position = cutting;
+        for (Shard shard : shards)
+            position = Math.min(position, shard.appending);
+        return position;
+    }
+
+    /*
+     * Applies the changes handed to the shard below position upTo, in order, as far as they were all handed out. With
+     * wait, it waits for the shards still appending to hand out theirs, which they do without waiting for anything.
+     * The bound is read after the change is seen: a shard that announced its bound before the change was handed out,
+     * for a lower position, is still announcing it then.
+     */
+    private void apply(Shard shard, long upTo, boolean wait) {
+        while (true) {
+            Map.Entry<Change, Runnable> first = shard.changes.firstEntry();
+            if (first == null || first.getKey().position >= upTo)
+                return;
+            if (first.getKey().position >= handedOut()) {
+                if (!wait)
+                    return;
+                Thread.yield();
+                continue;
+            }
+            shard.changes.remove(first.getKey());
+            first.getValue().run();
+        }
+    }
+
+    // Runs the action on callbacks once the appends of the running command are durable
+    public void afterAppends(Runnable action) {
+        Shard shard = current.get();
+        if (shard == null)
+            action.run();
+        else
+            shard.lastAppend.whenCompleteAsync((position, failure) -> action.run(), callbacks);
+    }
+
+    /*
+     * Has every shard run copy, with its index, once it applied the changes of every record before the returned
+     * position and none after, and returns that position once all of them did and those records are durable. The
+     * copies are handed out like changes, ahead of the ones of the record at the position, so each shard copies its
+     * accounts between two of its changes and the others go on meanwhile. Records are only appended by the shards and
+     * made durable in log order, so the last append of every shard when it copies covers the records before the cut.
+     */
+    public synchronized long atCut(LogStorage log, IntConsumer copy) throws InterruptedException, ExecutionException {
+        long position;
+        CompletableFuture<?>[] copied = new CompletableFuture<?>[shards.length];
+        cutting = log.endPosition();
+        try {
+            position = log.nextPosition();
+            for (int i = 0; i < shards.length; i++) {
+                int index = i;
+                CompletableFuture<Object> done = new CompletableFuture<>();
+                copied[i] = done;
+                shards[i].changes.put(new Change(position, -1), () -> {
+                    try {
+                        copy.accept(index);
+                        shards[index].lastAppend.whenComplete((appended, failure) -> {
+                            if (failure != null)
+                                done.completeExceptionally(failure);
+                            else
+                                done.complete(appended);
+                        });
+                    } catch (Throwable t) {
+                        done.completeExceptionally(t);
+                    }
+                });
+            }
+        } finally {
+            cutting = Long.MAX_VALUE;
+        }
+
+        for (Shard shard : shards)
+            wake(shard, position + 1);
+        CompletableFuture.allOf(copied).get();
+        return position;
+    }
+
+    // Runs the commands already submitted and applies the changes handed out, then stops the shards
+    @Override
+    public void close() {
+        for (Shard shard : shards)
+            shard.executor.shutdown();
+        for (Shard shard : shards) {
+            try {
+                shard.executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Shard shard : shards)
+            shard.lastAppend.exceptionally(failure -> null).join();
+        // Credits handed to a shard after its last command, now that no shard is left to hand out more
+        for (Shard shard : shards)
+            apply(shard, Long.MAX_VALUE, false);
+    }
+}
@@ -0,0 +1,42 @@
+package secserver;
+
+import java.io.IOException;
+
+// Balances, pending transactions and sequence numbers, indexed by the ids of AccountRegistry. An account is only read and
+// changed by the shard it belongs to, in log order, credits from other accounts included, see AccountShards. Whether it
+// exists may be asked from any shard.
+public interface AccountStore {
+    long getSequenceNumber(int id);
+
+    void setSequenceNumber(int id, long sequenceNumber);
+
+    boolean exists(int id);
+
+    void open(int id, int balance);
+
+    // Whether debit would leave the balance positive
+    boolean canDebit(int id, int amount);
+
+    // Fails if the balance would not stay positive
+    boolean debit(int id, int amount);
+
+    // Adds a pending transaction from sourceId to the account
+    void credit(int id, int sourceId, int amount);
+
+    void acceptPending(int id);
+
+    // Consistent copy of the balance and pending transactions, or null if the account does not exist
+    Account read(int id);
+
+    // Like read, with only the pending transactions added after sinceVersion, or all of them if they were accepted since
+    Account readChanges(int id, long sinceVersion);
+
+    // Puts back an account as a snapshot holds it, versions included
+    void restore(int id, Account account);
+
+    // Log position the store already reflects when it is opened, or -1 if it has to be rebuilt from snapshots and the log
+    long getRecoveredPosition();
+
+    // Called on shutdown once every record before position has been applied
+    void close(long position) throws IOException;
+}
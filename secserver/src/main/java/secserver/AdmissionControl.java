@@ -0,0 +1,299 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+import io.grpc.*;
+import secserver.grpc.Secserver.Payload;
+import secserver.grpc.Secserver.SignatureScheme;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleUnaryOperator;
+
+/*
+ * Turns requests away before any signature is checked. Registered as the outermost interceptor, it looks at the one
+ * Payload of every unary and server streaming call on the transport thread:
+ *   - a payload that cannot verify, no message, no key or signature or ones too long to be real, or a mac of the
+ *     wrong length, is answered INVALID_ARGUMENT
+ *   - every request takes a token from the global bucket, the bucket of the client address and the bucket of the
+ *     key, the one of the session for requests in a session, and is answered RESOURCE_EXHAUSTED when one is empty
+ *   - unary calls also count against a concurrency limit that grows by one per limit calls answered within
+ *     targetLatency and shrinks by a tenth, at most once per targetLatency, when they take longer. A call whose
+ *     request waited in the ReorderBuffer for the ones before it is left out, its latency is the client's doing
+ * The key in a signed payload is not verified yet, so a client sending with the key of another only empties that
+ * bucket as fast as its own address allows. Requests on a stream call are checked by SecServerImpl, which ends the
+ * stream when one is refused, and count against the rates only, the window of the stream already bounds them.
+ *
+ * A rate of 0 turns its bucket off. Buckets that are full are dropped once more than maxTracked are held.
+ */
+public class AdmissionControl implements ServerInterceptor {
+    public static final Context.Key<String> PEER = Context.key("peer");
+    private static final Context.Key<AtomicBoolean> PARKED = Context.key("parked");
+
+    private static final int MAX_KEY_BYTES = 1024;
+    private static final int MAX_SIGNATURE_BYTES = 1024;
+    private static final int MAC_BYTES = 32;
+    private static final int MAX_SESSION_ID_BYTES = 64;
+    private static final double MIN_LIMIT = 4;
+
+    // Holds the time it was empty at, tokens come back at rate from then on, up to burst of them
+    private static class TokenBucket {
+        private final long interval;
+        private final long burstNanos;
+        private final AtomicLong emptyAt;
+
+        private TokenBucket(double rate, double burst, long now) {
+            this.interval = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / rate));
+            this.burstNanos = Math.round(burst * interval);
+            this.emptyAt = new AtomicLong(now - burstNanos);
+        }
+
+        private boolean take(long now) {
+            while (true) {
+                long current = emptyAt.get();
+                long next = Math.max(current, now - burstNanos) + interval;
+                if (next > now)
+                    return false;
+                if (emptyAt.compareAndSet(current, next))
+                    return true;
+            }
+        }
+
+        private boolean full(long now) {
+            return now - emptyAt.get() >= burstNanos;
+        }
+    }
+
+    private final SessionManager sessions;
+    private final TokenBucket global;
+    private final double peerRate;
+    private final double keyRate;
+    private final double burstSeconds;
+    private final int maxTracked;
+    private final long targetLatencyNanos;
+    private final double maxLimit;
+
+    private final ConcurrentHashMap<String, TokenBucket> peers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ByteString, TokenBucket> keys = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong limit = new AtomicLong();
+    private final AtomicLong decreasedAt;
+    private final AtomicLong sweptAt;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder overRate = new LongAdder();
+    private final LongAdder overLimit = new LongAdder();
+
+    // burstSeconds is how many seconds of its rate a bucket holds, maxConcurrent 0 leaves concurrency unlimited
+    public AdmissionControl(SessionManager sessions, double globalRate, double peerRate, double keyRate, double burstSeconds,
+            int maxConcurrent, long targetLatencyMillis, int maxTracked) {
+        long now = System.nanoTime();
+        this.sessions = sessions;
+        this.global = globalRate > 0 ? new TokenBucket(globalRate, Math.max(1, globalRate * burstSeconds), now) : null;
+        this.peerRate = peerRate;
+        this.keyRate = keyRate;
+        this.burstSeconds = burstSeconds;
+        this.maxTracked = maxTracked;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.maxLimit = maxConcurrent;
+        this.limit.set(Double.doubleToLongBits(maxConcurrent));
+        this.decreasedAt = new AtomicLong(now);
+        this.sweptAt = new AtomicLong(now);
+    }
+
+    // Checks the payload only, for servers that want no limits
+    public static AdmissionControl unlimited(SessionManager sessions) {
+        return new AdmissionControl(sessions, 0, 0, 0, 1, 0, 0, 0);
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+            ServerCallHandler<ReqT, RespT> next) {
+        String peer = peerOf(call.getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR));
+        Context context = Context.current().withValue(PEER, peer);
+        if (!call.getMethodDescriptor().getType().clientSendsOneMessage())
+            return Contexts.interceptCall(context, call, headers, next);
+
+        boolean unary = call.getMethodDescriptor().getType() == MethodDescriptor.MethodType.UNARY;
+        AtomicBoolean finished = new AtomicBoolean();
+        AtomicBoolean parked = new AtomicBoolean();
+        long[] admittedAt = new long[1];
+        if (unary)
+            context = context.withValue(PARKED, parked);
+        ServerCall<ReqT, RespT> counted = !unary ? call : new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                if (admittedAt[0] != 0 && finished.compareAndSet(false, true)) {
+                    if (parked.get())
+                        leave();
+                    else
+                        finished(System.nanoTime() - admittedAt[0]);
+                }
+                super.close(status, trailers);
+            }
+        };
+        ServerCall.Listener<ReqT> delegate = Contexts.interceptCall(context, counted, headers, next);
+
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(delegate) {
+            private boolean refused = false;
+
+            @Override
+            public void onMessage(ReqT message) {
+                Status status = message instanceof Payload ? admit((Payload) message, peer) : null;
+                if (status == null && unary) {
+                    status = enter();
+                    if (status == null)
+                        admittedAt[0] = System.nanoTime();
+                }
+                if (status != null) {
+                    refused = true;
+                    call.close(status, new Metadata());
+                    return;
+                }
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onHalfClose() {
+                if (!refused)
+                    super.onHalfClose();
+            }
+
+            @Override
+            public void onReady() {
+                if (!refused)
+                    super.onReady();
+            }
+
+            @Override
+            public void onCancel() {
+                if (admittedAt[0] != 0 && finished.compareAndSet(false, true))
+                    leave();
+                super.onCancel();
+            }
+        };
+    }
+
+    // Called in the context of a unary call whose request the ReorderBuffer held back
+    public static void parked() {
+        AtomicBoolean parked = PARKED.get();
+        if (parked != null)
+            parked.set(true);
+    }
+
+    private static String peerOf(SocketAddress address) {
+        if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null)
+            return ((InetSocketAddress) address).getAddress().getHostAddress();
+        return String.valueOf(address);
+    }
+
+    // The status a request is refused with, or null once it took its tokens
+    public Status admit(Payload request, String peer) {
+        if (!wellFormed(request)) {
+            malformed.increment();
+            return Status.INVALID_ARGUMENT.withDescription("Malformed request");
+        }
+
+        ByteString key = request.getPublicKey();
+        if (!request.getSessionId().isEmpty()) {
+            SessionManager.Session session = sessions.get(request.getSessionId());
+            key = session == null ? null : session.getPublicKey();
+        }
+
+        long now = System.nanoTime();
+        if ((global != null && !global.take(now))
+                || (peerRate > 0 && peer != null && !bucket(peers, peer, peerRate, now).take(now))
+                || (keyRate > 0 && key != null && !bucket(keys, key, keyRate, now).take(now))) {
+            overRate.increment();
+            return Status.RESOURCE_EXHAUSTED.withDescription("Too many requests, try again later");
+        }
+        admitted.increment();
+        return null;
+    }
+
+    private static boolean wellFormed(Payload request) {
+        if (request.getMessage().isEmpty())
+            return false;
+        if (!request.getSessionId().isEmpty())
+            return request.getSessionId().size() <= MAX_SESSION_ID_BYTES && request.getMac().size() == MAC_BYTES;
+        return !request.getPublicKey().isEmpty() && request.getPublicKey().size() <= MAX_KEY_BYTES
+                && !request.getDigitalSignature().isEmpty() && request.getDigitalSignature().size() <= MAX_SIGNATURE_BYTES
+                && request.getSignatureScheme() != SignatureScheme.UNRECOGNIZED;
+    }
+
+    private <K> TokenBucket bucket(ConcurrentHashMap<K, TokenBucket> buckets, K id, double rate, long now) {
+        TokenBucket bucket = buckets.get(id);
+        if (bucket != null)
+            return bucket;
+        if (buckets.size() >= maxTracked)
+            sweep(buckets, now);
+        return buckets.computeIfAbsent(id, ignored -> new TokenBucket(rate, Math.max(1, rate * burstSeconds), now));
+    }
+
+    // Drops the buckets that are full again, a new one would start the same, at most once a second
+    private <K> void sweep(ConcurrentHashMap<K, TokenBucket> buckets, long now) {
+        long swept = sweptAt.get();
+        if (now - swept < TimeUnit.SECONDS.toNanos(1) || !sweptAt.compareAndSet(swept, now))
+            return;
+        for (Iterator<TokenBucket> it = buckets.values().iterator(); it.hasNext(); ) {
+            if (it.next().full(now))
+                it.remove();
+        }
+    }
+
+    private Status enter() {
+        if (maxLimit <= 0)
+            return null;
+        if (inFlight.incrementAndGet() > (int) limit()) {
+            inFlight.decrementAndGet();
+            overLimit.increment();
+            return Status.RESOURCE_EXHAUSTED.withDescription("Server is overloaded, try again later");
+        }
+        return null;
+    }
+
+    private void leave() {
+        if (maxLimit > 0)
+            inFlight.decrementAndGet();
+    }
+
+    private void finished(long latencyNanos) {
+        if (maxLimit <= 0)
+            return;
+        inFlight.decrementAndGet();
+        if (latencyNanos <= targetLatencyNanos) {
+            changeLimit(current -> Math.min(maxLimit, current + 1 / current));
+        } else {
+            long now = System.nanoTime();
+            long decreased = decreasedAt.get();
+            if (now - decreased >= targetLatencyNanos && decreasedAt.compareAndSet(decreased, now))
+                changeLimit(current -> Math.max(MIN_LIMIT, current * 0.9));
+        }
+    }
+
+    private double limit() {
+        return Double.longBitsToDouble(limit.get());
+    }
+
+    private void changeLimit(DoubleUnaryOperator change) {
+        while (true) {
+            long current = limit.get();
+            long changed = Double.doubleToLongBits(change.applyAsDouble(Double.longBitsToDouble(current)));
+            if (limit.compareAndSet(current, changed))
+                return;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("admitted=%d malformed=%d overRate=%d overLimit=%d limit=%.0f inFlight=%d peers=%d keys=%d", admitted.sum(),
+                malformed.sum(), overRate.sum(), overLimit.sum(), limit(), inFlight.get(), peers.size(), keys.size());
+    }
+}
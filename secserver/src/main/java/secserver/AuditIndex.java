@@ -0,0 +1,329 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+import secserver.LogRecord.Operation;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Maps every public key to the log positions of the accepted open, send, batch and receive records it takes part in,
+ * to the position of the RESPONSE record holding the last answer it was sent and to the position of its last accepted
+ * audit, which bounds the lines the audit is answered with.
+ * Updated by the log writer and appended to an index file next to the log. Checkpoint entries in the file
+ * tell up to which log position it is complete, so recovery only indexes the log written after that.
+ *
+ * The log writer only updates the index in memory, before the records are handed out as durable, and buffers the
+ * entries for the file. The index writer thread appends them up to each checkpoint, so the log writer does no index
+ * I/O. A file that cannot be written is left at its last complete checkpoint, the log after it is indexed again on
+ * restart.
+ */
+public class AuditIndex implements LogStorage.Listener, Closeable {
+    private static final int KEY = 0;
+    private static final int POSITION = 1;
+    private static final int CHECKPOINT = 2;
+    private static final int RESPONSE = 3;
+    private static final int AUDIT = 4;
+    private static final long CHECKPOINT_INTERVAL = 1 << 20;
+
+    private static class Response {
+        private final long position;
+        private final ByteString requestDigest;
+
+        private Response(long position, ByteString requestDigest) {
+            this.position = position;
+            this.requestDigest = requestDigest;
+        }
+    }
+
+    private static class Audit {
+        private final long position;
+        private final long seqNum;
+
+        private Audit(long position, long seqNum) {
+            this.position = position;
+            this.seqNum = seqNum;
+        }
+    }
+
+    // Only the log writer adds positions, audits read them concurrently
+    private static class Positions {
+        private final int id;
+        private volatile long[] positions = new long[4];
+        private volatile int size = 0;
+        private volatile Response response;
+        private volatile Audit audit;
+
+        private Positions(int id) {
+            this.id = id;
+        }
+
+        private void add(long position) {
+            long[] current = positions;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+                positions = current;
+            }
+            current[size] = position;
+            size = size + 1;
+        }
+
+        private long[] toArray() {
+            int count = size;
+            return Arrays.copyOf(positions, count);
+        }
+    }
+
+    private final Path path;
+    private final ConcurrentHashMap<ByteString, Positions> index = new ConcurrentHashMap<>();
+    // Entries since the last checkpoint, only used by the log writer
+    private final ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+    private final DataOutputStream entries = new DataOutputStream(buffered);
+    private long checkpoint = 0;
+    private boolean dirty = false;
+    // Only used by the index writer once the index is recovered
+    private DataOutputStream out;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "audit-index-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public AuditIndex(Path path) throws IOException {
+        this.path = path;
+        load();
+    }
+
+    private void load() throws IOException {
+        List<Positions> byId = new ArrayList<>();
+        List<ByteString> stagedKeys = new ArrayList<>();
+        List<long[]> stagedPositions = new ArrayList<>();
+        List<Integer> stagedResponseIds = new ArrayList<>();
+        List<Response> stagedResponses = new ArrayList<>();
+        List<Integer> stagedAuditIds = new ArrayList<>();
+        List<Audit> stagedAudits = new ArrayList<>();
+        long offset = 0;
+        long validLength = 0;
+
+        if (Files.exists(path)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+                reading:
+                while (true) {
+                    switch (in.read()) {
+                        case KEY:
+                            byte[] key = new byte[in.readInt()];
+                            in.readFully(key);
+                            stagedKeys.add(ByteString.copyFrom(key));
+                            offset += 1 + 4 + key.length;
+                            break;
+                        case POSITION:
+                            stagedPositions.add(new long[] { in.readInt(), in.readLong() });
+                            offset += 1 + 4 + 8;
+                            break;
+                        case RESPONSE:
+                            int id = in.readInt();
+                            long responsePosition = in.readLong();
+                            byte[] digest = new byte[in.readInt()];
+                            in.readFully(digest);
+                            stagedResponseIds.add(id);
+                            stagedResponses.add(new Response(responsePosition, ByteString.copyFrom(digest)));
+                            offset += 1 + 4 + 8 + 4 + digest.length;
+                            break;
+                        case AUDIT:
+                            stagedAuditIds.add(in.readInt());
+                            stagedAudits.add(new Audit(in.readLong(), in.readLong()));
+                            offset += 1 + 4 + 8 + 8;
+                            break;
+                        case CHECKPOINT:
+                            long position = in.readLong();
+                            offset += 1 + 8;
+
+                            for (ByteString stagedKey : stagedKeys) {
+                                Positions positions = new Positions(byId.size());
+                                byId.add(positions);
+                                index.put(stagedKey, positions);
+                            }
+                            for (long[] entry : stagedPositions)
+                                byId.get((int) entry[0]).add(entry[1]);
+                            for (int i = 0; i < stagedResponses.size(); i++)
+                                byId.get(stagedResponseIds.get(i)).response = stagedResponses.get(i);
+                            for (int i = 0; i < stagedAudits.size(); i++)
+                                byId.get(stagedAuditIds.get(i)).audit = stagedAudits.get(i);
+                            stagedKeys.clear();
+                            stagedPositions.clear();
+                            stagedResponseIds.clear();
+                            stagedResponses.clear();
+                            stagedAuditIds.clear();
+                            stagedAudits.clear();
+
+                            checkpoint = position;
+                            validLength = offset;
+                            break;
+                        default:
+                            break reading;
+                    }
+                }
+            } catch (EOFException | IndexOutOfBoundsException e) {
+                // torn or corrupted tail, everything after the last checkpoint gets indexed again from the log
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(validLength);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path.toFile(), true), 1 << 16));
+    }
+
+    // Indexes the records written to the log after the last checkpoint of the index file
+    public void recover(LogStorage log) throws Exception {
+        if (checkpoint > log.endPosition()) {
+            System.out.println("Audit index is ahead of the log, rebuilding it");
+            out.close();
+            Files.delete(path);
+            index.clear();
+            buffered.reset();
+            checkpoint = 0;
+            load();
+        }
+
+        log.replay(checkpoint, (position, record) -> onDurable(position, record));
+        onSynced(log.endPosition());
+    }
+
+    public long[] positions(ByteString encodedKey) {
+        Positions positions = index.get(encodedKey);
+        return positions == null ? new long[0] : positions.toArray();
+    }
+
+    // Position of the RESPONSE record answering the request with this digest, if it is the last one the key was answered, or -1
+    public long responsePosition(ByteString encodedKey, ByteString requestDigest) {
+        Positions positions = index.get(encodedKey);
+        Response response = positions == null ? null : positions.response;
+        return response != null && response.requestDigest.equals(requestDigest) ? response.position : -1;
+    }
+
+    // Position of the accepted AUDIT record of the key with this sequence number, if it is its last one, or -1
+    public long auditPosition(ByteString encodedKey, long seqNum) {
+        Positions positions = index.get(encodedKey);
+        Audit audit = positions == null ? null : positions.audit;
+        return audit != null && audit.seqNum == seqNum ? audit.position : -1;
+    }
+
+    @Override
+    public void onDurable(long position, LogRecord record) throws IOException {
+        if (!record.isAccepted())
+            return;
+
+        Operation operation = record.getOperation();
+        if (operation == Operation.OPEN || operation == Operation.SEND || operation == Operation.RECEIVE)
+            add(record.getPublicKey(), position);
+        if (operation == Operation.SEND)
+            add(record.getPublicKeyDestination(), position);
+        if (operation == Operation.SEND_BATCH) {
+            add(record.getPublicKey(), position);
+            for (ByteString destination : new LinkedHashSet<>(record.getLegDestinations()))
+                add(destination, position);
+        }
+        if (operation == Operation.RESPONSE)
+            addResponse(record.getPublicKey(), position, record.getRequestDigest());
+        if (operation == Operation.AUDIT)
+            addAudit(record.getPublicKey(), position, record.getSeqNum());
+    }
+
+    private Positions positionsOf(ByteString encodedKey) throws IOException {
+        Positions positions = index.get(encodedKey);
+        if (positions == null) {
+            positions = new Positions(index.size());
+            entries.writeByte(KEY);
+            entries.writeInt(encodedKey.size());
+            encodedKey.writeTo(entries);
+            index.put(encodedKey, positions);
+        }
+        return positions;
+    }
+
+    private void addResponse(ByteString encodedKey, long position, ByteString requestDigest) throws IOException {
+        Positions positions = positionsOf(encodedKey);
+        positions.response = new Response(position, requestDigest);
+        entries.writeByte(RESPONSE);
+        entries.writeInt(positions.id);
+        entries.writeLong(position);
+        entries.writeInt(requestDigest.size());
+        requestDigest.writeTo(entries);
+        dirty = true;
+    }
+
+    private void addAudit(ByteString encodedKey, long position, long seqNum) throws IOException {
+        Positions positions = positionsOf(encodedKey);
+        positions.audit = new Audit(position, seqNum);
+        entries.writeByte(AUDIT);
+        entries.writeInt(positions.id);
+        entries.writeLong(position);
+        entries.writeLong(seqNum);
+        dirty = true;
+    }
+
+    private void add(ByteString encodedKey, long position) throws IOException {
+        Positions positions = positionsOf(encodedKey);
+
+        positions.add(position);
+        entries.writeByte(POSITION);
+        entries.writeInt(positions.id);
+        entries.writeLong(position);
+        dirty = true;
+    }
+
+    @Override
+    public void onSynced(long endPosition) throws IOException {
+        if (!dirty && endPosition - checkpoint < CHECKPOINT_INTERVAL)
+            return;
+
+        entries.writeByte(CHECKPOINT);
+        entries.writeLong(endPosition);
+        byte[] chunk = buffered.toByteArray();
+        buffered.reset();
+        writer.execute(() -> write(chunk));
+        checkpoint = endPosition;
+        dirty = false;
+    }
+
+    private void write(byte[] chunk) {
+        if (out == null)
+            return;
+        try {
+            out.write(chunk);
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Audit index file failed, it is rebuilt from the log on restart: " + e.getMessage());
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // already failed
+            }
+            out = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (out != null)
+            out.close();
+    }
+}
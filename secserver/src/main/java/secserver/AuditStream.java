@@ -0,0 +1,162 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import secserver.grpc.Secserver.AuditPage;
+import secserver.grpc.Secserver.AuditPageRequest;
+import secserver.grpc.Secserver.HistoryOperation;
+import secserver.grpc.Secserver.HistoryRecord;
+import secserver.grpc.Secserver.Payload;
+import secserver.grpc.Secserver.TransferLeg;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+ * Sends the history of an account as signed pages. The positions come from the audit index when the call starts, the
+ * records themselves are only read from the log when their page is built, and a page is only built while the client
+ * reads them, so a long history costs one page at a time. The cursor of a page is one past the log position of the
+ * last record it looked at, the same as for subscription events, and a client that lost the stream asks again from it.
+ *
+ * A page looks at no more than MAX_SCANNED records, so a narrow range over a long history goes out as pages with few
+ * or no records rather than holding a thread until it fills one.
+ */
+public class AuditStream implements Runnable {
+    private static final int MAX_SCANNED = 4096;
+
+    private final SecServerBackend backend;
+    private final long[] positions;
+    private final ByteString encodedKey;
+    private final AuditPageRequest request;
+    private final int pageSize;
+    private final ServerCallStreamObserver<Payload> responseObserver;
+    private final ResponseSigner signer;
+    private final Executor executor;
+
+    private int index;
+    private long cursor;
+    private boolean scheduled = false;
+    private boolean done = false;
+
+    public AuditStream(SecServerBackend backend, long[] positions, ByteString encodedKey, AuditPageRequest request, int pageSize,
+            ServerCallStreamObserver<Payload> responseObserver, ResponseSigner signer, Executor executor) {
+        this.backend = backend;
+        this.positions = positions;
+        this.encodedKey = encodedKey;
+        this.request = request;
+        this.pageSize = pageSize;
+        this.responseObserver = responseObserver;
+        this.signer = signer;
+        this.executor = executor;
+
+        int start = Arrays.binarySearch(positions, request.getCursor());
+        this.index = start >= 0 ? start : -start - 1;
+        this.cursor = request.getCursor();
+    }
+
+    // Has to be called from the call that asked for it, the handlers of the stream can only be set there
+    public void start() {
+        responseObserver.setOnCancelHandler(this::cancel);
+        responseObserver.setOnReadyHandler(this::schedule);
+        schedule();
+    }
+
+    private synchronized void cancel() {
+        done = true;
+    }
+
+    private synchronized void schedule() {
+        if (scheduled || done)
+            return;
+        scheduled = true;
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            scheduled = false;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (done || !responseObserver.isReady()) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+
+                AuditPage.Builder page = nextPage();
+                responseObserver.onNext(signer.sign(page.setCursor(cursor).setNonce(request.getNonce()).build()));
+                if (page.getLast()) {
+                    synchronized (this) {
+                        done = true;
+                    }
+                    responseObserver.onCompleted();
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Audit stream failed: " + e.getMessage());
+            synchronized (this) {
+                done = true;
+            }
+            responseObserver.onError(Status.INTERNAL.withDescription("Audit stream failed").asRuntimeException());
+        }
+    }
+
+    private AuditPage.Builder nextPage() throws Exception {
+        AuditPage.Builder page = AuditPage.newBuilder();
+        int scanned = 0;
+        while (index < positions.length && page.getRecordsCount() < pageSize && scanned < MAX_SCANNED) {
+            long position = positions[index++];
+            scanned++;
+            cursor = position + 1;
+
+            LogRecord record = backend.readRecord(position);
+            if (record.getTimestamp() < request.getFromTimestamp()
+                    || (request.getToTimestamp() != 0 && record.getTimestamp() > request.getToTimestamp()))
+                continue;
+            if (request.getFromSeqNum() != 0 || request.getToSeqNum() != 0) {
+                if (!record.getPublicKey().equals(encodedKey) || record.getSeqNum() < request.getFromSeqNum()
+                        || (request.getToSeqNum() != 0 && record.getSeqNum() > request.getToSeqNum()))
+                    continue;
+            }
+
+            HistoryRecord.Builder history = historyOf(record, encodedKey);
+            if (history != null)
+                page.addRecords(history);
+        }
+        return page.setLast(index >= positions.length);
+    }
+
+    // The record as the account with that key sees it, or null if it did not take part in it
+    static HistoryRecord.Builder historyOf(LogRecord record, ByteString encodedKey) {
+        HistoryRecord.Builder history = HistoryRecord.newBuilder().setTimestamp(record.getTimestamp()).setSeqNum(record.getSeqNum())
+                .setPublicKey(record.getPublicKey()).setAmount(record.getAmount());
+        switch (record.getOperation()) {
+            case OPEN:
+                return history.setOperation(HistoryOperation.OPEN_ACCOUNT);
+            case SEND:
+                return history.setOperation(HistoryOperation.SEND).setPublicKeyDestination(record.getPublicKeyDestination());
+            case RECEIVE:
+                return history.setOperation(HistoryOperation.RECEIVE);
+            case SEND_BATCH:
+                boolean source = record.getPublicKey().equals(encodedKey);
+                int amount = 0;
+                for (int i = 0; i < record.getLegDestinations().size(); i++) {
+                    ByteString destination = record.getLegDestinations().get(i);
+                    if (source || destination.equals(encodedKey)) {
+                        history.addLegs(TransferLeg.newBuilder().setPublicKeyDestination(destination).setAmount(record.getLegAmounts()[i]));
+                        amount += record.getLegAmounts()[i];
+                    }
+                }
+                return history.setOperation(HistoryOperation.SEND_BATCH).setAmount(amount);
+            default:
+                return null;
+        }
+    }
+}
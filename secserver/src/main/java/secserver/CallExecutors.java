@@ -0,0 +1,124 @@
+package secserver;
+
+import io.grpc.*;
+import secserver.grpc.SecServerServiceGrpc;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Runs every call on the executor of its kind, the ones that change accounts on writes and everything else, checks,
+ * audits, streams of events and handshakes, on reads, so a burst of slow audits cannot take the threads transfers
+ * need. The server has to use a direct executor, the transport threads only hand the calls over.
+ *
+ * The callbacks of a call run one at a time, in order, like gRPC runs them. A call whose first callback finds the
+ * executor full is closed with RESOURCE_EXHAUSTED before anything ran for it. Once a call has started, a callback the
+ * executor turns away runs on the transport thread instead, since closing the call could race with its answer.
+ */
+public class CallExecutors implements ServerInterceptor {
+    private static final Set<String> WRITES = Set.of(
+            SecServerServiceGrpc.getOpenAccountMethod().getFullMethodName(),
+            SecServerServiceGrpc.getSendAmountMethod().getFullMethodName(),
+            SecServerServiceGrpc.getSendAmountBatchMethod().getFullMethodName(),
+            SecServerServiceGrpc.getReceiveAmountMethod().getFullMethodName(),
+            SecServerServiceGrpc.getStreamMethod().getFullMethodName());
+
+    private final Executor reads;
+    private final Executor writes;
+
+    public CallExecutors(Executor reads, Executor writes) {
+        this.reads = reads;
+        this.writes = writes;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+            ServerCallHandler<ReqT, RespT> next) {
+        Executor executor = WRITES.contains(call.getMethodDescriptor().getFullMethodName()) ? writes : reads;
+        return new SerialListener<>(call, next.startCall(call, headers), executor);
+    }
+
+    private static class SerialListener<ReqT> extends ServerCall.Listener<ReqT> {
+        private final ServerCall<ReqT, ?> call;
+        private final ServerCall.Listener<ReqT> delegate;
+        private final Executor executor;
+        private final ConcurrentLinkedQueue<Runnable> callbacks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean running = new AtomicBoolean();
+        // Only used by the transport thread
+        private boolean started = false;
+        private boolean rejected = false;
+
+        private SerialListener(ServerCall<ReqT, ?> call, ServerCall.Listener<ReqT> delegate, Executor executor) {
+            this.call = call;
+            this.delegate = delegate;
+            this.executor = executor;
+        }
+
+        private void run(Runnable callback, boolean last) {
+            if (rejected) {
+                if (last)
+                    callback.run();
+                return;
+            }
+
+            callbacks.add(callback);
+            if (!running.compareAndSet(false, true))
+                return;
+            try {
+                executor.execute(this::drain);
+                started = true;
+            } catch (RejectedExecutionException e) {
+                if (started || last) {
+                    drain();
+                    return;
+                }
+                callbacks.clear();
+                running.set(false);
+                rejected = true;
+                call.close(Status.RESOURCE_EXHAUSTED.withDescription("Server is overloaded, try again later"), new Metadata());
+            }
+        }
+
+        private void drain() {
+            do {
+                Runnable callback;
+                while ((callback = callbacks.poll()) != null) {
+                    try {
+                        callback.run();
+                    } catch (RuntimeException e) {
+                        System.out.println("Call failed: " + e.getMessage());
+                    }
+                }
+                running.set(false);
+            } while (!callbacks.isEmpty() && running.compareAndSet(false, true));
+        }
+
+        @Override
+        public void onMessage(ReqT message) {
+            run(() -> delegate.onMessage(message), false);
+        }
+
+        @Override
+        public void onHalfClose() {
+            run(delegate::onHalfClose, false);
+        }
+
+        @Override
+        public void onReady() {
+            run(delegate::onReady, false);
+        }
+
+        @Override
+        public void onCancel() {
+            run(delegate::onCancel, true);
+        }
+
+        @Override
+        public void onComplete() {
+            run(delegate::onComplete, true);
+        }
+    }
+}
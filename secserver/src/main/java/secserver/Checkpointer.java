@@ -0,0 +1,90 @@
+package secserver;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Periodically snapshots the backend in the background once enough log has been written since the last snapshot.
+// With a tableCheckpoint, the copy of the mapped account table there is brought up to the end of the log and closed
+// clean there instead, a crash restarts from that copy and no snapshot is written.
+public class Checkpointer implements Closeable {
+    private final SecServerBackend backend;
+    private final SnapshotStore store;
+    private final LogStorage log;
+    private final long minLogBytes;
+    private final Path tableCheckpoint;
+    private final ScheduledExecutorService executor;
+
+    private long lastPosition;
+
+    public Checkpointer(SecServerBackend backend, SnapshotStore store, LogStorage log, long intervalMillis, long minLogBytes,
+            Path tableCheckpoint) {
+        this.backend = backend;
+        this.store = store;
+        this.log = log;
+        this.minLogBytes = minLogBytes;
+        this.tableCheckpoint = tableCheckpoint;
+        this.lastPosition = backend.getRestoredPosition();
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::checkpointIfNeeded, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkpointIfNeeded() {
+        if (log.endPosition() - lastPosition >= minLogBytes)
+            checkpoint();
+    }
+
+    private void checkpoint() {
+        try {
+            if (tableCheckpoint == null)
+                writeSnapshot();
+            else
+                checkpointTable();
+        } catch (Exception e) {
+            System.out.println("Snapshot failed: " + e.getMessage());
+        }
+    }
+
+    private void writeSnapshot() throws Exception {
+        long start = System.nanoTime();
+        StateSnapshot snapshot = backend.captureState();
+        long captured = System.nanoTime();
+        store.write(snapshot);
+        lastPosition = snapshot.getPosition();
+        System.out.println("Snapshot at log position " + snapshot.getPosition() + " (captured in "
+                + TimeUnit.NANOSECONDS.toMillis(captured - start) + " ms, written in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - captured) + " ms)");
+    }
+
+    // Only the log written since the last checkpoint is replayed into the copy, which stays marked open if that fails
+    private void checkpointTable() throws Exception {
+        long start = System.nanoTime();
+        long position = -1;
+        MappedAccountTable table = new MappedAccountTable(tableCheckpoint, log.endPosition());
+        try {
+            position = backend.catchUp(table, table);
+        } finally {
+            table.close(position);
+        }
+        lastPosition = position;
+        System.out.println("Account table checkpoint at log position " + position + " (in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)");
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
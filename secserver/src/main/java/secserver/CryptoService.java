@@ -0,0 +1,170 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+import secserver.grpc.Curves;
+import secserver.grpc.Secserver.SignatureScheme;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.interfaces.ECKey;
+import java.util.concurrent.*;
+
+/*
+ * Signs responses with the server key, unlocked once at startup, and verifies client signatures.
+ * The work runs on a fixed pool sized for the CPU instead of on the gRPC threads, reusing one
+ * Signature object per pool thread and scheme. When the queue of the pool is full the calling thread does the work
+ * itself, which slows down whoever sends more than the pool keeps up with.
+ */
+public class CryptoService implements Closeable {
+    private static final SignatureScheme[] SCHEMES = { SignatureScheme.RSA_SHA256, SignatureScheme.ECDSA_P256_SHA256 };
+
+    private final PrivateKey privateKey;
+    private final SignatureScheme scheme;
+    private final WorkerPool pool;
+    private final ThreadLocal<Signature> signer;
+    private final ThreadLocal<Signature[]> verifiers = ThreadLocal.withInitial(() -> {
+        Signature[] signatures = new Signature[SCHEMES.length];
+        for (SignatureScheme scheme : SCHEMES)
+            signatures[scheme.getNumber()] = newSignature(scheme);
+        return signatures;
+    });
+
+    private final LatencyStats queueTime = new LatencyStats();
+    private final LatencyStats signTime = new LatencyStats();
+    private final LatencyStats verifyTime = new LatencyStats();
+
+    public CryptoService(PrivateKey privateKey, int threads) throws InvalidKeyException {
+        this(privateKey, threads, Integer.MAX_VALUE);
+    }
+
+    public CryptoService(PrivateKey privateKey, int threads, int maxQueued) throws InvalidKeyException {
+        this.privateKey = privateKey;
+        this.scheme = schemeOf(privateKey);
+        this.signer = ThreadLocal.withInitial(() -> newSignature(scheme));
+        this.pool = WorkerPool.bounded("crypto", threads, maxQueued, true);
+    }
+
+    private static Signature newSignature(SignatureScheme scheme) {
+        try {
+            return Signature.getInstance(signatureAlgorithm(scheme));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String signatureAlgorithm(SignatureScheme scheme) {
+        switch (scheme) {
+            case RSA_SHA256:
+                return "SHA256withRSA";
+            case ECDSA_P256_SHA256:
+                return "SHA256withECDSA";
+            default:
+                throw new IllegalArgumentException("Unknown signature scheme " + scheme);
+        }
+    }
+
+    public static String keyAlgorithm(SignatureScheme scheme) {
+        switch (scheme) {
+            case RSA_SHA256:
+                return "RSA";
+            case ECDSA_P256_SHA256:
+                return "EC";
+            default:
+                throw new IllegalArgumentException("Unknown signature scheme " + scheme);
+        }
+    }
+
+    // EC keys are only accepted on P-256, the one curve the scheme names, other 256 bit curves excluded
+    public static SignatureScheme schemeOf(Key key) throws InvalidKeyException {
+        switch (key.getAlgorithm()) {
+            case "RSA":
+                return SignatureScheme.RSA_SHA256;
+            case "EC":
+                if (key instanceof ECKey && Curves.isP256(((ECKey) key).getParams()))
+                    return SignatureScheme.ECDSA_P256_SHA256;
+                break;
+            default:
+                break;
+        }
+        throw new InvalidKeyException("Unsupported key " + key.getAlgorithm());
+    }
+
+    public SignatureScheme getSignatureScheme() {
+        return scheme;
+    }
+
+    public boolean verify(SignatureScheme scheme, PublicKey publicKey, ByteString data, ByteString signature) throws Exception {
+        if (scheme == SignatureScheme.UNRECOGNIZED)
+            return false;
+
+        long submitted = System.nanoTime();
+        return run(() -> {
+            long start = System.nanoTime();
+            queueTime.record(start - submitted);
+
+            Signature dsaForVerify = verifiers.get()[scheme.getNumber()];
+            dsaForVerify.initVerify(publicKey);
+            update(dsaForVerify, data);
+            boolean valid = dsaForVerify.verify(signature.toByteArray());
+
+            verifyTime.record(System.nanoTime() - start);
+            return valid;
+        });
+    }
+
+    public ByteString sign(ByteString data) throws Exception {
+        long submitted = System.nanoTime();
+        return run(() -> {
+            long start = System.nanoTime();
+            queueTime.record(start - submitted);
+
+            Signature dsaForSign = signer.get();
+            dsaForSign.initSign(privateKey);
+            update(dsaForSign, data);
+            ByteString signature = ByteString.copyFrom(dsaForSign.sign());
+
+            signTime.record(System.nanoTime() - start);
+            return signature;
+        });
+    }
+
+    // Feeds the bytes without copying them out of the ByteString
+    private static void update(Signature signature, ByteString data) throws SignatureException {
+        for (ByteBuffer buffer : data.asReadOnlyByteBufferList())
+            signature.update(buffer);
+    }
+
+    private <T> T run(Callable<T> task) throws Exception {
+        try {
+            FutureTask<T> future = new FutureTask<>(task);
+            pool.execute(future);
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    public LatencyStats getQueueTime() {
+        return queueTime;
+    }
+
+    public LatencyStats getSignTime() {
+        return signTime;
+    }
+
+    public LatencyStats getVerifyTime() {
+        return verifyTime;
+    }
+
+    public WorkerPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
@@ -0,0 +1,47 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class HeapAccountRegistry implements AccountRegistry {
+    private final ConcurrentHashMap<ByteString, Integer> ids = new ConcurrentHashMap<>();
+    private volatile ByteString[] keys = new ByteString[1024];
+    private int size = 0;
+
+    @Override
+    public int idOf(ByteString encodedKey) {
+        Integer id = ids.get(encodedKey);
+        return id == null ? -1 : id;
+    }
+
+    @Override
+    public int register(ByteString encodedKey) {
+        Integer id = ids.get(encodedKey);
+        if (id != null)
+            return id;
+
+        synchronized (this) {
+            id = ids.get(encodedKey);
+            if (id != null)
+                return id;
+
+            if (size == keys.length)
+                keys = Arrays.copyOf(keys, size * 2);
+            keys[size] = encodedKey;
+            ids.put(encodedKey, size);
+            return size++;
+        }
+    }
+
+    @Override
+    public ByteString keyOf(int id) {
+        return keys[id];
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+}
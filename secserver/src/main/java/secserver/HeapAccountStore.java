@@ -0,0 +1,120 @@
+package secserver;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Keeps the state in fixed size chunks of arrays indexed by account id. Chunks are only ever added,
+ * so lookups never take a lock and never see an array being copied. Accounts are not locked either,
+ * only their shard changes them, see Account.
+ */
+public class HeapAccountStore implements AccountStore {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static class Chunk {
+        private final AtomicLongArray sequenceNumbers = new AtomicLongArray(CHUNK_SIZE);
+        private final AtomicReferenceArray<Account> accounts = new AtomicReferenceArray<>(CHUNK_SIZE);
+    }
+
+    private volatile Chunk[] chunks = new Chunk[0];
+
+    private Chunk chunk(int id) {
+        Chunk[] current = chunks;
+        int index = id >>> CHUNK_BITS;
+        return index < current.length ? current[index] : null;
+    }
+
+    private Chunk chunkForWrite(int id) {
+        Chunk chunk = chunk(id);
+        if (chunk != null)
+            return chunk;
+
+        synchronized (this) {
+            Chunk[] current = chunks;
+            int index = id >>> CHUNK_BITS;
+            if (index >= current.length) {
+                Chunk[] grown = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+                for (int i = current.length; i < grown.length; i++)
+                    grown[i] = new Chunk();
+                chunks = grown;
+                current = grown;
+            }
+            return current[index];
+        }
+    }
+
+    private Account account(int id) {
+        Chunk chunk = chunk(id);
+        return chunk == null ? null : chunk.accounts.get(id & CHUNK_MASK);
+    }
+
+    @Override
+    public long getSequenceNumber(int id) {
+        Chunk chunk = chunk(id);
+        return chunk == null ? 0 : chunk.sequenceNumbers.get(id & CHUNK_MASK);
+    }
+
+    @Override
+    public void setSequenceNumber(int id, long sequenceNumber) {
+        chunkForWrite(id).sequenceNumbers.set(id & CHUNK_MASK, sequenceNumber);
+    }
+
+    @Override
+    public boolean exists(int id) {
+        return account(id) != null;
+    }
+
+    @Override
+    public void open(int id, int balance) {
+        chunkForWrite(id).accounts.set(id & CHUNK_MASK, new Account(balance));
+    }
+
+    @Override
+    public boolean canDebit(int id, int amount) {
+        return account(id).canSubtract(amount);
+    }
+
+    @Override
+    public boolean debit(int id, int amount) {
+        return account(id).subtractFromBalance(amount);
+    }
+
+    @Override
+    public void credit(int id, int sourceId, int amount) {
+        account(id).credit(sourceId, amount);
+    }
+
+    @Override
+    public void acceptPending(int id) {
+        account(id).acceptTransactions();
+    }
+
+    @Override
+    public Account read(int id) {
+        Account account = account(id);
+        return account == null ? null : account.copy();
+    }
+
+    @Override
+    public Account readChanges(int id, long sinceVersion) {
+        Account account = account(id);
+        return account == null ? null : account.changesSince(sinceVersion);
+    }
+
+    @Override
+    public void restore(int id, Account account) {
+        chunkForWrite(id).accounts.set(id & CHUNK_MASK, account.copy());
+    }
+
+    @Override
+    public long getRecoveredPosition() {
+        return -1;
+    }
+
+    @Override
+    public void close(long position) {
+    }
+}
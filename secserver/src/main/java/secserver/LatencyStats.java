@@ -0,0 +1,30 @@
+package secserver;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyStats {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+    public void record(long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        long n = getCount();
+        return String.format("count=%d avg=%.1fus max=%.1fus", n, n == 0 ? 0.0 : getTotalNanos() / 1000.0 / n, maxNanos.get() / 1000.0);
+    }
+}
@@ -0,0 +1,274 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+import secserver.grpc.Secserver.SignatureScheme;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class LogRecord {
+    public enum Operation {
+        OPEN, SEND, RECEIVE, CHECK, AUDIT, RESPONSE, SEND_BATCH;
+
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final Operation operation;
+    private final boolean accepted;
+    private final long timestamp;
+    private final long seqNum;
+    private final int amount;
+    private final ByteString publicKey;
+    private final ByteString publicKeyDestination;
+    // Only in OPEN records, the scheme the account signs with, RSA in records written before it was kept
+    private final SignatureScheme signatureScheme;
+    // Only in SEND_BATCH records, one destination and amount per leg, amount holding their total
+    private final List<ByteString> legDestinations;
+    private final int[] legAmounts;
+    // Only in RESPONSE records, which keep the signed answer to the request with that digest
+    private final ByteString requestDigest;
+    private final ByteString response;
+
+    public LogRecord(Operation operation, boolean accepted, ByteString publicKey, ByteString publicKeyDestination, int amount, long seqNum) {
+        this(operation, accepted, System.currentTimeMillis(), publicKey, publicKeyDestination, amount, seqNum);
+    }
+
+    public LogRecord(Operation operation, boolean accepted, long timestamp, ByteString publicKey, ByteString publicKeyDestination, int amount, long seqNum) {
+        this(operation, accepted, timestamp, publicKey, publicKeyDestination, amount, seqNum, SignatureScheme.RSA_SHA256,
+                Collections.emptyList(), new int[0], ByteString.EMPTY, ByteString.EMPTY);
+    }
+
+    private LogRecord(Operation operation, boolean accepted, long timestamp, ByteString publicKey, ByteString publicKeyDestination, int amount, long seqNum,
+            SignatureScheme signatureScheme, List<ByteString> legDestinations, int[] legAmounts, ByteString requestDigest, ByteString response) {
+        this.operation = operation;
+        this.accepted = accepted;
+        this.timestamp = timestamp;
+        this.publicKey = publicKey;
+        this.publicKeyDestination = publicKeyDestination == null ? ByteString.EMPTY : publicKeyDestination;
+        this.amount = amount;
+        this.seqNum = seqNum;
+        this.signatureScheme = signatureScheme;
+        this.legDestinations = legDestinations;
+        this.legAmounts = legAmounts;
+        this.requestDigest = requestDigest;
+        this.response = response;
+    }
+
+    public static LogRecord open(boolean accepted, ByteString publicKey, int balance, long seqNum, SignatureScheme signatureScheme) {
+        return new LogRecord(Operation.OPEN, accepted, System.currentTimeMillis(), publicKey, null, balance, seqNum, signatureScheme,
+                Collections.emptyList(), new int[0], ByteString.EMPTY, ByteString.EMPTY);
+    }
+
+    public static LogRecord sendBatch(boolean accepted, ByteString publicKey, List<ByteString> legDestinations, int[] legAmounts, int total, long seqNum) {
+        return new LogRecord(Operation.SEND_BATCH, accepted, System.currentTimeMillis(), publicKey, null, total, seqNum, SignatureScheme.RSA_SHA256,
+                legDestinations, legAmounts, ByteString.EMPTY, ByteString.EMPTY);
+    }
+
+    public static LogRecord response(ByteString publicKey, ByteString requestDigest, ByteString response) {
+        return new LogRecord(Operation.RESPONSE, true, System.currentTimeMillis(), publicKey, null, 0, 0, SignatureScheme.RSA_SHA256,
+                Collections.emptyList(), new int[0], requestDigest, response);
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public boolean isAccepted() {
+        return accepted;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getSeqNum() {
+        return seqNum;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    public ByteString getPublicKey() {
+        return publicKey;
+    }
+
+    public ByteString getPublicKeyDestination() {
+        return publicKeyDestination;
+    }
+
+    public SignatureScheme getSignatureScheme() {
+        return signatureScheme;
+    }
+
+    public List<ByteString> getLegDestinations() {
+        return legDestinations;
+    }
+
+    public int[] getLegAmounts() {
+        return legAmounts;
+    }
+
+    public ByteString getRequestDigest() {
+        return requestDigest;
+    }
+
+    public ByteString getResponse() {
+        return response;
+    }
+
+    public boolean involves(ByteString encodedKey) {
+        return publicKey.equals(encodedKey) || publicKeyDestination.equals(encodedKey) || legDestinations.contains(encodedKey);
+    }
+
+    public int serializedSize() {
+        int size = 1 + 1 + 8 + 8 + 4 + 4 + publicKey.size() + 4 + publicKeyDestination.size();
+        if (operation == Operation.OPEN)
+            size += 1;
+        if (operation == Operation.SEND_BATCH) {
+            size += 4;
+            for (ByteString destination : legDestinations)
+                size += 4 + destination.size() + 4;
+        }
+        if (operation == Operation.RESPONSE)
+            size += 4 + requestDigest.size() + 4 + response.size();
+        return size;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put((byte) operation.ordinal());
+        buffer.put((byte) (accepted ? 1 : 0));
+        buffer.putLong(timestamp);
+        buffer.putLong(seqNum);
+        buffer.putInt(amount);
+        buffer.putInt(publicKey.size());
+        publicKey.copyTo(buffer);
+        buffer.putInt(publicKeyDestination.size());
+        publicKeyDestination.copyTo(buffer);
+        if (operation == Operation.OPEN)
+            buffer.put((byte) signatureScheme.getNumber());
+        if (operation == Operation.SEND_BATCH) {
+            buffer.putInt(legDestinations.size());
+            for (int i = 0; i < legDestinations.size(); i++) {
+                buffer.putInt(legDestinations.get(i).size());
+                legDestinations.get(i).copyTo(buffer);
+                buffer.putInt(legAmounts[i]);
+            }
+        }
+        if (operation == Operation.RESPONSE) {
+            buffer.putInt(requestDigest.size());
+            requestDigest.copyTo(buffer);
+            buffer.putInt(response.size());
+            response.copyTo(buffer);
+        }
+    }
+
+    public static LogRecord readFrom(ByteBuffer buffer) {
+        Operation operation = Operation.values()[buffer.get()];
+        boolean accepted = buffer.get() != 0;
+        long timestamp = buffer.getLong();
+        long seqNum = buffer.getLong();
+        int amount = buffer.getInt();
+        ByteString publicKey = ByteString.copyFrom(buffer, buffer.getInt());
+        ByteString publicKeyDestination = ByteString.copyFrom(buffer, buffer.getInt());
+        if (operation == Operation.OPEN && buffer.hasRemaining()) {
+            SignatureScheme signatureScheme = SignatureScheme.forNumber(buffer.get());
+            return new LogRecord(operation, accepted, timestamp, publicKey, publicKeyDestination, amount, seqNum,
+                    signatureScheme == null ? SignatureScheme.UNRECOGNIZED : signatureScheme, Collections.emptyList(), new int[0],
+                    ByteString.EMPTY, ByteString.EMPTY);
+        }
+        if (operation == Operation.SEND_BATCH) {
+            int legs = buffer.getInt();
+            List<ByteString> legDestinations = new ArrayList<>(legs);
+            int[] legAmounts = new int[legs];
+            for (int i = 0; i < legs; i++) {
+                legDestinations.add(ByteString.copyFrom(buffer, buffer.getInt()));
+                legAmounts[i] = buffer.getInt();
+            }
+            return new LogRecord(operation, accepted, timestamp, publicKey, publicKeyDestination, amount, seqNum, SignatureScheme.RSA_SHA256,
+                    legDestinations, legAmounts, ByteString.EMPTY, ByteString.EMPTY);
+        }
+        if (operation != Operation.RESPONSE)
+            return new LogRecord(operation, accepted, timestamp, publicKey, publicKeyDestination, amount, seqNum);
+
+        ByteString requestDigest = ByteString.copyFrom(buffer, buffer.getInt());
+        ByteString response = ByteString.copyFrom(buffer, buffer.getInt());
+        return new LogRecord(operation, accepted, timestamp, publicKey, publicKeyDestination, amount, seqNum, SignatureScheme.RSA_SHA256,
+                Collections.emptyList(), new int[0], requestDigest, response);
+    }
+
+    // Parses a line of the old text log.txt format, returns null if the line is incomplete
+    public static LogRecord fromLegacyLine(String line) {
+        String[] splitLine = line.split(" ");
+        if (splitLine.length < 2 || !Objects.equals(splitLine[splitLine.length - 1], "."))
+            return null;
+
+        boolean accepted = splitLine[1].equals("accept");
+        Base64.Decoder decoder = Base64.getDecoder();
+        switch (splitLine[0]) {
+            case "open":
+                if (splitLine.length != 6)
+                    return null;
+                return new LogRecord(Operation.OPEN, accepted, 0, ByteString.copyFrom(decoder.decode(splitLine[2])), null,
+                        Integer.parseInt(splitLine[3]), Long.parseLong(splitLine[4]));
+            case "send":
+                if (splitLine.length != 7)
+                    return null;
+                return new LogRecord(Operation.SEND, accepted, 0, ByteString.copyFrom(decoder.decode(splitLine[2])), ByteString.copyFrom(decoder.decode(splitLine[3])),
+                        Integer.parseInt(splitLine[4]), Long.parseLong(splitLine[5]));
+            case "receive":
+            case "check":
+            case "audit":
+                if (splitLine.length != 5)
+                    return null;
+                return new LogRecord(Operation.valueOf(splitLine[0].toUpperCase()), accepted, 0, ByteString.copyFrom(decoder.decode(splitLine[2])), null,
+                        0, Long.parseLong(splitLine[3]));
+            default:
+                return null;
+        }
+    }
+
+    /*
+     * What audit returns to the account with that key. A batch reads as one send line per leg, only the legs to the
+     * account when it is not the source, so recipients do not learn about each other.
+     */
+    public List<String> auditLines(ByteString encodedKey) {
+        if (operation != Operation.SEND_BATCH)
+            return Collections.singletonList(toString());
+
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < legDestinations.size(); i++) {
+            if (publicKey.equals(encodedKey) || legDestinations.get(i).equals(encodedKey))
+                lines.add(new LogRecord(Operation.SEND, accepted, timestamp, publicKey, legDestinations.get(i), legAmounts[i], seqNum).toString());
+        }
+        return lines;
+    }
+
+    // Same layout as the lines of the old text log, which is what audit returns to clients
+    @Override
+    public String toString() {
+        Base64.Encoder encoder = Base64.getEncoder();
+        StringBuilder line = new StringBuilder()
+                .append(operation.label()).append(accepted ? " accept " : " reject ")
+                .append(encoder.encodeToString(publicKey.toByteArray())).append(' ');
+
+        switch (operation) {
+            case OPEN:
+                line.append(amount).append(' ');
+                break;
+            case SEND:
+                line.append(encoder.encodeToString(publicKeyDestination.toByteArray())).append(' ').append(amount).append(' ');
+                break;
+            case SEND_BATCH:
+                for (int i = 0; i < legDestinations.size(); i++)
+                    line.append(encoder.encodeToString(legDestinations.get(i).toByteArray())).append(' ').append(legAmounts[i]).append(' ');
+                break;
+            default:
+                break;
+        }
+
+        return line.append(seqNum).append(" .").toString();
+    }
+}
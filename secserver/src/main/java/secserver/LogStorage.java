@@ -0,0 +1,56 @@
+package secserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+public interface LogStorage extends Closeable {
+
+    interface Visitor {
+        void visit(long position, LogRecord record) throws Exception;
+    }
+
+    // Called by the log writer, in log order, once records are durable
+    interface Listener {
+        void onDurable(long position, LogRecord record) throws IOException;
+
+        void onSynced(long endPosition) throws IOException;
+    }
+
+    // A record that has its place in the log, at position, or -1 if it was refused, durable completes once it is durable
+    final class Appended {
+        public final long position;
+        public final CompletableFuture<Long> durable;
+
+        public Appended(long position, CompletableFuture<Long> durable) {
+            this.position = position;
+            this.durable = durable;
+        }
+    }
+
+    // Completes with the position of the record once it is durable
+    default CompletableFuture<Long> append(LogRecord record) {
+        return sequence(record).durable;
+    }
+
+    // Like append, and tells right away which position the record was given
+    Appended sequence(LogRecord record);
+
+    // Visits every durable record starting at the given position, in log order
+    default void replay(long fromPosition, Visitor visitor) throws Exception {
+        replay(fromPosition, endPosition(), visitor);
+    }
+
+    // Visits the durable records from the given position up to toPosition, an end position the log had before
+    void replay(long fromPosition, long toPosition, Visitor visitor) throws Exception;
+
+    // Reads the single record that starts at the given position
+    LogRecord read(long position) throws IOException;
+
+    void addListener(Listener listener);
+
+    long endPosition();
+
+    // The position the next record will get, records before it may not be durable yet
+    long nextPosition();
+}
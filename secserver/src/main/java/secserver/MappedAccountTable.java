@@ -0,0 +1,464 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Registry and account state kept off the heap in memory-mapped files:
+ *   table.dat    header followed by one fixed size slot per account id (sequence number, balance, pending list, key,
+ *                versions)
+ *   keys.dat     the encoded keys, [length][bytes] padded to 4 bytes
+ *   index.dat    open addressing hash table from key hash to account id
+ *   pending.dat  fixed size pending transaction entries linked from the slots, reused through a free list
+ *
+ * The log stays the source of durability. On shutdown the files are flushed and the header is marked clean with the
+ * log position they reflect, so the next start maps them and only replays what came after. The live files run ahead of
+ * the durable log, so a table that was not closed cleanly cannot be trusted. It is replaced by the copy in checkpoint/,
+ * a second table the Checkpointer brings up to the end of the log every time enough was written and closes clean
+ * there, and the log is replayed from the position in its header. Without a clean copy the table is reset and rebuilt
+ * from the log.
+ */
+public class MappedAccountTable implements AccountRegistry, AccountStore {
+    private static final int MAGIC = 0x53454354;
+    private static final int VERSION = 2;
+    private static final int OPEN = 0;
+    private static final int CLEAN = 1;
+
+    private static final int HEADER_SIZE = 4096;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_STATE = 8;
+    private static final int H_SIZE = 12;
+    private static final int H_POSITION = 16;
+    private static final int H_KEYS_END = 24;
+    private static final int H_INDEX_BASE = 32;
+    private static final int H_INDEX_CAPACITY = 40;
+    private static final int H_PENDING_END = 44;
+    private static final int H_FREE_HEAD = 48;
+
+    private static final int SLOT_SIZE = 48;
+    private static final int S_SEQUENCE_NUMBER = 0;
+    private static final int S_EXISTS = 8;
+    private static final int S_BALANCE = 12;
+    private static final int S_PENDING_HEAD = 16;
+    private static final int S_PENDING_TAIL = 20;
+    private static final int S_KEY = 24;
+    private static final int S_VERSION = 32;
+    private static final int S_CLEARED_VERSION = 40;
+
+    private static final int ENTRY_SIZE = 24;
+    private static final int E_SOURCE = 0;
+    private static final int E_AMOUNT = 4;
+    private static final int E_NEXT = 8;
+    private static final int E_VERSION = 16;
+
+    private static final int INDEX_ENTRY_SIZE = 8;
+    private static final int INITIAL_INDEX_CAPACITY = 1 << 16;
+    private static final int NONE = -1;
+
+    private final MappedFile table;
+    private final MappedFile keys;
+    private final MappedFile index;
+    private final MappedFile pending;
+    private final long recoveredPosition;
+
+    // Guards the index, the keys file and registration of new slots
+    private final ReentrantReadWriteLock registryLock = new ReentrantReadWriteLock();
+    private volatile int size;
+    private long keysEnd;
+    private long indexBase;
+    private int indexCapacity;
+
+    /*
+     * Accounts are only read and changed on their shard, in log order, see AccountShards, but the shards share the
+     * entries. Free ones form a stack pushed and popped with a compare-and-set on its head, which carries a count of
+     * its changes in the upper half, so a pop racing with a pop and a push of the same entry fails and retries.
+     */
+    private final AtomicInteger pendingEnd = new AtomicInteger();
+    private final AtomicLong freeHead = new AtomicLong();
+
+    public MappedAccountTable(Path directory, long logEndPosition) throws IOException {
+        Files.createDirectories(directory);
+        restoreCheckpoint(directory, logEndPosition);
+        this.table = new MappedFile(directory.resolve("table.dat"));
+        this.keys = new MappedFile(directory.resolve("keys.dat"));
+        this.index = new MappedFile(directory.resolve("index.dat"));
+        this.pending = new MappedFile(directory.resolve("pending.dat"));
+
+        boolean clean = table.getInt(H_MAGIC) == MAGIC && table.getInt(H_VERSION) == VERSION
+                && table.getInt(H_STATE) == CLEAN && table.getLong(H_POSITION) <= logEndPosition;
+        if (clean) {
+            size = table.getInt(H_SIZE);
+            keysEnd = table.getLong(H_KEYS_END);
+            indexBase = table.getLong(H_INDEX_BASE);
+            indexCapacity = table.getInt(H_INDEX_CAPACITY);
+            pendingEnd.set(table.getInt(H_PENDING_END));
+            freeHead.set(freeHead(0, table.getInt(H_FREE_HEAD)));
+            recoveredPosition = table.getLong(H_POSITION);
+        } else {
+            if (table.getInt(H_MAGIC) == MAGIC)
+                System.out.println("Account table was not closed cleanly, rebuilding it");
+            size = 0;
+            keysEnd = 0;
+            indexBase = 0;
+            indexCapacity = INITIAL_INDEX_CAPACITY;
+            index.fill(0, (long) indexCapacity * INDEX_ENTRY_SIZE, (byte) 0);
+            pendingEnd.set(0);
+            freeHead.set(freeHead(0, NONE));
+            recoveredPosition = -1;
+        }
+
+        // Anything written from now on is only trusted again after a clean close
+        table.putInt(H_MAGIC, MAGIC);
+        table.putInt(H_VERSION, VERSION);
+        table.putInt(H_STATE, OPEN);
+        table.force();
+    }
+
+    // The directory of the copy a crash restarts from, see Checkpointer
+    public static Path checkpointDirectory(Path directory) {
+        return directory.resolve("checkpoint");
+    }
+
+    private static void restoreCheckpoint(Path directory, long logEndPosition) throws IOException {
+        if (cleanPosition(directory.resolve("table.dat"), logEndPosition) >= 0)
+            return;
+        Path checkpoint = checkpointDirectory(directory);
+        long position = cleanPosition(checkpoint.resolve("table.dat"), logEndPosition);
+        if (position < 0)
+            return;
+
+        System.out.println("Account table was not closed cleanly, restoring the checkpoint at log position " + position);
+        for (String file : new String[] { "keys.dat", "index.dat", "pending.dat" })
+            copy(checkpoint.resolve(file), directory.resolve(file));
+        // The clean header goes in last and whole, a copy cut short is made again on the next start
+        Path temporary = directory.resolve("table.dat.tmp");
+        copy(checkpoint.resolve("table.dat"), temporary);
+        Files.move(temporary, directory.resolve("table.dat"), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(to, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    // The log position the table file was closed cleanly at, or -1 if it was not or is ahead of the log
+    private static long cleanPosition(Path tableFile, long logEndPosition) throws IOException {
+        if (!Files.exists(tableFile))
+            return -1;
+        ByteBuffer header = ByteBuffer.allocate(H_POSITION + 8).order(ByteOrder.nativeOrder());
+        try (FileChannel channel = FileChannel.open(tableFile, StandardOpenOption.READ)) {
+            if (channel.read(header, 0) < header.capacity())
+                return -1;
+        }
+        if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION
+                || header.getInt(H_STATE) != CLEAN || header.getLong(H_POSITION) > logEndPosition)
+            return -1;
+        return header.getLong(H_POSITION);
+    }
+
+    private static long slot(int id) {
+        return HEADER_SIZE + (long) id * SLOT_SIZE;
+    }
+
+    private static long entry(int entry) {
+        return (long) entry * ENTRY_SIZE;
+    }
+
+    @Override
+    public int idOf(ByteString encodedKey) {
+        registryLock.readLock().lock();
+        try {
+            return find(encodedKey, encodedKey.hashCode());
+        } finally {
+            registryLock.readLock().unlock();
+        }
+    }
+
+    private int find(ByteString encodedKey, int hash) {
+        int mask = indexCapacity - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            long offset = indexBase + (long) i * INDEX_ENTRY_SIZE;
+            int id = index.getInt(offset + 4) - 1;
+            if (id == NONE)
+                return NONE;
+            if (index.getInt(offset) == hash && keyOf(id).equals(encodedKey))
+                return id;
+        }
+    }
+
+    private void insert(int id, int hash) {
+        int mask = indexCapacity - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            long offset = indexBase + (long) i * INDEX_ENTRY_SIZE;
+            if (index.getInt(offset + 4) == 0) {
+                index.putInt(offset, hash);
+                index.putInt(offset + 4, id + 1);
+                return;
+            }
+        }
+    }
+
+    // Rehashes into a table twice as large placed after the current one, the old region is simply abandoned
+    private void growIndex() {
+        long oldBase = indexBase;
+        int oldCapacity = indexCapacity;
+        indexBase = oldBase + (long) oldCapacity * INDEX_ENTRY_SIZE;
+        indexCapacity = oldCapacity * 2;
+        index.fill(indexBase, (long) indexCapacity * INDEX_ENTRY_SIZE, (byte) 0);
+
+        for (int i = 0; i < oldCapacity; i++) {
+            long offset = oldBase + (long) i * INDEX_ENTRY_SIZE;
+            int id = index.getInt(offset + 4) - 1;
+            if (id != NONE)
+                insert(id, index.getInt(offset));
+        }
+    }
+
+    @Override
+    public int register(ByteString encodedKey) {
+        int hash = encodedKey.hashCode();
+        int id = idOf(encodedKey);
+        if (id != NONE)
+            return id;
+
+        registryLock.writeLock().lock();
+        try {
+            id = find(encodedKey, hash);
+            if (id != NONE)
+                return id;
+
+            id = size;
+            keys.putInt(keysEnd, encodedKey.size());
+            keys.write(keysEnd + 4, encodedKey.toByteArray());
+
+            long slot = slot(id);
+            table.putLong(slot + S_SEQUENCE_NUMBER, 0);
+            table.putInt(slot + S_EXISTS, 0);
+            table.putInt(slot + S_BALANCE, 0);
+            table.putInt(slot + S_PENDING_HEAD, NONE);
+            table.putInt(slot + S_PENDING_TAIL, NONE);
+            table.putLong(slot + S_KEY, keysEnd);
+            table.putLong(slot + S_VERSION, 0);
+            table.putLong(slot + S_CLEARED_VERSION, 0);
+            keysEnd += (4 + encodedKey.size() + 3) & ~3;
+
+            if ((long) (size + 1) * 4 > (long) indexCapacity * 3)
+                growIndex();
+            insert(id, hash);
+            size = id + 1;
+            return id;
+        } finally {
+            registryLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ByteString keyOf(int id) {
+        long offset = table.getLong(slot(id) + S_KEY);
+        byte[] encodedKey = new byte[keys.getInt(offset)];
+        keys.read(offset + 4, encodedKey);
+        return ByteString.copyFrom(encodedKey);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long getSequenceNumber(int id) {
+        return table.getLongVolatile(slot(id) + S_SEQUENCE_NUMBER);
+    }
+
+    @Override
+    public void setSequenceNumber(int id, long sequenceNumber) {
+        table.putLongVolatile(slot(id) + S_SEQUENCE_NUMBER, sequenceNumber);
+    }
+
+    @Override
+    public boolean exists(int id) {
+        return table.getIntVolatile(slot(id) + S_EXISTS) != 0;
+    }
+
+    @Override
+    public void open(int id, int balance) {
+        restore(id, new Account(balance));
+    }
+
+    @Override
+    public void restore(int id, Account account) {
+        long slot = slot(id);
+        table.putInt(slot + S_BALANCE, account.getCurrentBalance());
+        table.putLong(slot + S_VERSION, account.getVersion());
+        table.putLong(slot + S_CLEARED_VERSION, account.getClearedVersion());
+        table.putInt(slot + S_PENDING_HEAD, NONE);
+        table.putInt(slot + S_PENDING_TAIL, NONE);
+        for (Transaction transaction : account.getPendingTransactions())
+            append(slot, transaction.getSourceId(), transaction.getAmount(), transaction.getVersion());
+        table.putIntVolatile(slot + S_EXISTS, 1);
+    }
+
+    @Override
+    public boolean canDebit(int id, int amount) {
+        return table.getInt(slot(id) + S_BALANCE) - amount > 0;
+    }
+
+    @Override
+    public boolean debit(int id, int amount) {
+        long slot = slot(id);
+        int balance = table.getInt(slot + S_BALANCE);
+        if (balance - amount <= 0)
+            return false;
+        table.putInt(slot + S_BALANCE, balance - amount);
+        table.putLong(slot + S_VERSION, table.getLong(slot + S_VERSION) + 1);
+        return true;
+    }
+
+    @Override
+    public void credit(int id, int sourceId, int amount) {
+        long slot = slot(id);
+        long version = table.getLong(slot + S_VERSION) + 1;
+        append(slot, sourceId, amount, version);
+        table.putLong(slot + S_VERSION, version);
+    }
+
+    private void append(long slot, int sourceId, int amount, long version) {
+        int entry = allocateEntry();
+        pending.putInt(entry(entry) + E_SOURCE, sourceId);
+        pending.putInt(entry(entry) + E_AMOUNT, amount);
+        pending.putInt(entry(entry) + E_NEXT, NONE);
+        pending.putLong(entry(entry) + E_VERSION, version);
+
+        int tail = table.getInt(slot + S_PENDING_TAIL);
+        if (tail == NONE)
+            table.putInt(slot + S_PENDING_HEAD, entry);
+        else
+            pending.putInt(entry(tail) + E_NEXT, entry);
+        table.putInt(slot + S_PENDING_TAIL, entry);
+    }
+
+    private static long freeHead(long changes, int entry) {
+        return changes << 32 | (entry & 0xFFFFFFFFL);
+    }
+
+    private int allocateEntry() {
+        while (true) {
+            long head = freeHead.get();
+            int entry = (int) head;
+            if (entry == NONE)
+                return pendingEnd.getAndIncrement();
+            int next = pending.getInt(entry(entry) + E_NEXT);
+            if (freeHead.compareAndSet(head, freeHead((head >>> 32) + 1, next)))
+                return entry;
+        }
+    }
+
+    // Pushes the list from first to last back onto the free entries at once
+    private void freeEntries(int first, int last) {
+        while (true) {
+            long head = freeHead.get();
+            pending.putInt(entry(last) + E_NEXT, (int) head);
+            if (freeHead.compareAndSet(head, freeHead((head >>> 32) + 1, first)))
+                return;
+        }
+    }
+
+    @Override
+    public void acceptPending(int id) {
+        long slot = slot(id);
+        int head;
+        int tail;
+        head = table.getInt(slot + S_PENDING_HEAD);
+        tail = table.getInt(slot + S_PENDING_TAIL);
+        if (head == NONE)
+            return;
+
+        int received = 0;
+        for (int entry = head; entry != NONE; entry = pending.getInt(entry(entry) + E_NEXT))
+            received += pending.getInt(entry(entry) + E_AMOUNT);
+        table.putInt(slot + S_BALANCE, table.getInt(slot + S_BALANCE) + received);
+        table.putInt(slot + S_PENDING_HEAD, NONE);
+        table.putInt(slot + S_PENDING_TAIL, NONE);
+        long version = table.getLong(slot + S_VERSION) + 1;
+        table.putLong(slot + S_CLEARED_VERSION, version);
+        table.putLong(slot + S_VERSION, version);
+
+        freeEntries(head, tail);
+    }
+
+    @Override
+    public Account read(int id) {
+        return readChanges(id, 0);
+    }
+
+    // The list is only linked forward, so entries up to sinceVersion are skipped over without being copied
+    @Override
+    public Account readChanges(int id, long sinceVersion) {
+        if (!exists(id))
+            return null;
+
+        long slot = slot(id);
+        long clearedVersion = table.getLong(slot + S_CLEARED_VERSION);
+        long after = clearedVersion > sinceVersion ? 0 : sinceVersion;
+        Account account = new Account(table.getInt(slot + S_BALANCE), table.getLong(slot + S_VERSION), clearedVersion);
+        for (int entry = table.getInt(slot + S_PENDING_HEAD); entry != NONE; entry = pending.getInt(entry(entry) + E_NEXT)) {
+            long version = pending.getLong(entry(entry) + E_VERSION);
+            if (version > after)
+                account.addTransaction(new Transaction(pending.getInt(entry(entry) + E_SOURCE), pending.getInt(entry(entry) + E_AMOUNT), version));
+        }
+        return account;
+    }
+
+    @Override
+    public long getRecoveredPosition() {
+        return recoveredPosition;
+    }
+
+    // A negative position leaves the table marked open, for a copy that could not be brought up to date
+    @Override
+    public void close(long position) throws IOException {
+        if (position >= 0)
+            markClean(position);
+        table.close();
+        keys.close();
+        index.close();
+        pending.close();
+    }
+
+    private void markClean(long position) {
+        registryLock.writeLock().lock();
+        try {
+            keys.force();
+            index.force();
+            pending.force();
+
+            table.putInt(H_SIZE, size);
+            table.putLong(H_KEYS_END, keysEnd);
+            table.putLong(H_INDEX_BASE, indexBase);
+            table.putInt(H_INDEX_CAPACITY, indexCapacity);
+            table.putInt(H_PENDING_END, pendingEnd.get());
+            table.putInt(H_FREE_HEAD, (int) freeHead.get());
+            table.putLong(H_POSITION, position);
+            table.force();
+
+            table.putInt(H_STATE, CLEAN);
+            table.force();
+        } finally {
+            registryLock.writeLock().unlock();
+        }
+    }
+}
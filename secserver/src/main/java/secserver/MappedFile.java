@@ -0,0 +1,127 @@
+package secserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+ * File mapped in fixed size segments that are added as it grows, so existing mappings never move and
+ * reads never take a lock. Fixed size values must not cross a segment boundary, byte arrays may.
+ */
+public class MappedFile implements Closeable {
+    private static final int SEGMENT_BITS = 24;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    public MappedFile(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        if (size > 0)
+            grow((int) ((size - 1) >>> SEGMENT_BITS));
+    }
+
+    private MappedByteBuffer segment(long offset) {
+        MappedByteBuffer[] current = segments;
+        int index = (int) (offset >>> SEGMENT_BITS);
+        return index < current.length ? current[index] : grow(index);
+    }
+
+    private synchronized MappedByteBuffer grow(int index) {
+        MappedByteBuffer[] current = segments;
+        if (index < current.length)
+            return current[index];
+
+        MappedByteBuffer[] grown = Arrays.copyOf(current, index + 1);
+        try {
+            for (int i = current.length; i < grown.length; i++) {
+                grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_SIZE, SEGMENT_SIZE);
+                grown[i].order(ByteOrder.nativeOrder());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        segments = grown;
+        return grown[index];
+    }
+
+    public long getLong(long offset) {
+        return segment(offset).getLong((int) (offset & SEGMENT_MASK));
+    }
+
+    public void putLong(long offset, long value) {
+        segment(offset).putLong((int) (offset & SEGMENT_MASK), value);
+    }
+
+    public int getInt(long offset) {
+        return segment(offset).getInt((int) (offset & SEGMENT_MASK));
+    }
+
+    public void putInt(long offset, int value) {
+        segment(offset).putInt((int) (offset & SEGMENT_MASK), value);
+    }
+
+    public long getLongVolatile(long offset) {
+        return (long) LONGS.getVolatile(segment(offset), (int) (offset & SEGMENT_MASK));
+    }
+
+    public void putLongVolatile(long offset, long value) {
+        LONGS.setVolatile(segment(offset), (int) (offset & SEGMENT_MASK), value);
+    }
+
+    public int getIntVolatile(long offset) {
+        return (int) INTS.getVolatile(segment(offset), (int) (offset & SEGMENT_MASK));
+    }
+
+    public void putIntVolatile(long offset, int value) {
+        INTS.setVolatile(segment(offset), (int) (offset & SEGMENT_MASK), value);
+    }
+
+    public void read(long offset, byte[] destination) {
+        int done = 0;
+        while (done < destination.length) {
+            int inSegment = (int) ((offset + done) & SEGMENT_MASK);
+            int length = Math.min(destination.length - done, SEGMENT_SIZE - inSegment);
+            segment(offset + done).duplicate().position(inSegment).get(destination, done, length);
+            done += length;
+        }
+    }
+
+    public void write(long offset, byte[] source) {
+        int done = 0;
+        while (done < source.length) {
+            int inSegment = (int) ((offset + done) & SEGMENT_MASK);
+            int length = Math.min(source.length - done, SEGMENT_SIZE - inSegment);
+            segment(offset + done).duplicate().position(inSegment).put(source, done, length);
+            done += length;
+        }
+    }
+
+    public void fill(long offset, long length, byte value) {
+        for (long i = 0; i < length; i++)
+            segment(offset + i).put((int) ((offset + i) & SEGMENT_MASK), value);
+    }
+
+    public void force() {
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,39 @@
+package secserver;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Prints the registered metrics to stdout at a fixed interval
+public class MetricsReporter implements Closeable {
+    private final Map<String, Supplier<String>> metrics = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService executor;
+
+    public MetricsReporter(long intervalMillis) {
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (intervalMillis > 0)
+            this.executor.scheduleAtFixedRate(this::report, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void register(String name, Supplier<String> metric) {
+        metrics.put(name, metric);
+    }
+
+    private void report() {
+        for (Map.Entry<String, Supplier<String>> metric : metrics.entrySet())
+            System.out.println("[metrics] " + metric.getKey() + ": " + metric.getValue().get());
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,93 @@
+package secserver;
+
+import com.google.protobuf.CodedInputStream;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import secserver.grpc.Secserver.Payload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Parses incoming Payloads with aliasing enabled, so the message and signature ByteStrings point into the
+ * received buffer instead of being copied out of it. Responses keep the regular protobuf marshaller.
+ */
+public class PayloadMarshaller implements MethodDescriptor.PrototypeMarshaller<Payload> {
+    public static final PayloadMarshaller INSTANCE = new PayloadMarshaller();
+
+    private PayloadMarshaller() {
+    }
+
+    @Override
+    public InputStream stream(Payload payload) {
+        return payload.toByteString().newInput();
+    }
+
+    @Override
+    public Payload parse(InputStream stream) {
+        try {
+            byte[] buffer = readAll(stream);
+            CodedInputStream input = CodedInputStream.newInstance(buffer);
+            input.enableAliasing(true);
+            return Payload.parseFrom(input);
+        } catch (IOException e) {
+            throw Status.INTERNAL.withDescription("Invalid payload").withCause(e).asRuntimeException();
+        }
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        if (stream instanceof KnownLength) {
+            byte[] buffer = new byte[stream.available()];
+            int read = 0;
+            while (read < buffer.length) {
+                int count = stream.read(buffer, read, buffer.length - read);
+                if (count < 0)
+                    break;
+                read += count;
+            }
+            if (read == buffer.length && stream.read() < 0)
+                return buffer;
+
+            ByteArrayOutputStream rest = new ByteArrayOutputStream();
+            rest.write(buffer, 0, read);
+            stream.transferTo(rest);
+            return rest.toByteArray();
+        }
+        return stream.readAllBytes();
+    }
+
+    @Override
+    public Payload getMessagePrototype() {
+        return Payload.getDefaultInstance();
+    }
+
+    @Override
+    public Class<Payload> getMessageClass() {
+        return Payload.class;
+    }
+
+    // Rebinds every method of the service that takes a Payload to parse it with this marshaller
+    public static ServerServiceDefinition withAliasingRequests(ServerServiceDefinition definition) {
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(definition.getServiceDescriptor().getName());
+        for (ServerMethodDefinition<?, ?> method : definition.getMethods())
+            builder.addMethod(rebind(method));
+        return builder.build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <ReqT, RespT> ServerMethodDefinition<?, RespT> rebind(ServerMethodDefinition<ReqT, RespT> method) {
+        MethodDescriptor<ReqT, RespT> descriptor = method.getMethodDescriptor();
+        MethodDescriptor.Marshaller<ReqT> marshaller = descriptor.getRequestMarshaller();
+        if (!(marshaller instanceof MethodDescriptor.PrototypeMarshaller)
+                || !(((MethodDescriptor.PrototypeMarshaller<ReqT>) marshaller).getMessagePrototype() instanceof Payload))
+            return method;
+
+        MethodDescriptor<Payload, RespT> rebound = descriptor.toBuilder(INSTANCE, descriptor.getResponseMarshaller()).build();
+        return ServerMethodDefinition.create(rebound, (ServerCallHandler<Payload, RespT>) method.getServerCallHandler());
+    }
+}
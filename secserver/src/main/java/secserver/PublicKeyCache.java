@@ -0,0 +1,128 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+import secserver.grpc.Secserver.SignatureScheme;
+
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Bounded cache from X.509 encoded key bytes to the decoded PublicKey, so every path hands out the same instance
+ * and the ASN.1 parsing only happens once per key. Split in independently locked LRU segments.
+ * A key is only handed out for the signature scheme it belongs to, which is checked once, when it is decoded.
+ */
+public class PublicKeyCache {
+    private static final int SEGMENTS = 16;
+
+    private static class Entry {
+        private final PublicKey publicKey;
+        private final SignatureScheme scheme;
+
+        private Entry(PublicKey publicKey, SignatureScheme scheme) {
+            this.publicKey = publicKey;
+            this.scheme = scheme;
+        }
+    }
+
+    private static class Segment extends LinkedHashMap<ByteString, Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteString, Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final ThreadLocal<KeyFactory[]> keyFactories = ThreadLocal.withInitial(() -> {
+        try {
+            return new KeyFactory[] {
+                    KeyFactory.getInstance(CryptoService.keyAlgorithm(SignatureScheme.RSA_SHA256)),
+                    KeyFactory.getInstance(CryptoService.keyAlgorithm(SignatureScheme.ECDSA_P256_SHA256)) };
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public PublicKeyCache(int capacity) {
+        int segmentCapacity = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(segmentCapacity);
+    }
+
+    public PublicKey get(byte[] encodedKey) throws InvalidKeySpecException {
+        return get(ByteString.copyFrom(encodedKey), SignatureScheme.RSA_SHA256);
+    }
+
+    public PublicKey get(ByteString encodedKey) throws InvalidKeySpecException {
+        return get(encodedKey, SignatureScheme.RSA_SHA256);
+    }
+
+    public PublicKey get(ByteString encodedKey, SignatureScheme scheme) throws InvalidKeySpecException {
+        if (scheme == SignatureScheme.UNRECOGNIZED)
+            throw new InvalidKeySpecException("Unknown signature scheme");
+
+        Segment segment = segments[(encodedKey.hashCode() & 0x7fffffff) % SEGMENTS];
+
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(encodedKey);
+        }
+        if (entry != null) {
+            hits.increment();
+            if (entry.scheme != scheme)
+                throw notOf(scheme);
+            return entry.publicKey;
+        }
+
+        misses.increment();
+        PublicKey decoded = keyFactories.get()[scheme.getNumber()].generatePublic(new X509EncodedKeySpec(encodedKey.toByteArray()));
+        try {
+            if (CryptoService.schemeOf(decoded) != scheme)
+                throw notOf(scheme);
+        } catch (InvalidKeyException e) {
+            // not a key for any scheme
+            throw notOf(scheme);
+        }
+        synchronized (segment) {
+            entry = segment.putIfAbsent(encodedKey, new Entry(decoded, scheme));
+        }
+        return entry == null ? decoded : entry.publicKey;
+    }
+
+    private static InvalidKeySpecException notOf(SignatureScheme scheme) {
+        return new InvalidKeySpecException("Key is not a " + scheme + " key");
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = getHits();
+        long missCount = getMisses();
+        long total = hitCount + missCount;
+        return String.format("hits=%d misses=%d hitRate=%.1f%%", hitCount, missCount, total == 0 ? 0.0 : 100.0 * hitCount / total);
+    }
+}
@@ -0,0 +1,234 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import secserver.grpc.Secserver.ErrorResponse;
+
+import java.io.Closeable;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/*
+ * Holds requests that arrive with a sequence number ahead of the next one their account expects, up to `window`
+ * ahead, and runs them in order once the requests before them have run. A parked request that is still waiting after
+ * `timeoutMillis` is answered with an error, and one beyond the window is answered with an error right away.
+ * Requests with the expected or an older sequence number run immediately, the backend decides what to do with them.
+ * The requests of a key with no account yet wait the same way, by key, for the request that gives it its account id.
+ */
+public class ReorderBuffer implements Closeable {
+    public interface Operation {
+        Message execute() throws Exception;
+    }
+
+    private static class Parked {
+        private final long seqNum;
+        private final Operation operation;
+        private final Consumer<Message> respond;
+        private ScheduledFuture<?> timeout;
+
+        private Parked(long seqNum, Operation operation, Consumer<Message> respond) {
+            this.seqNum = seqNum;
+            this.operation = operation;
+            this.respond = respond;
+        }
+    }
+
+    // A request of a key with no account id yet, whose operation is only made once the key has one
+    private static class Unregistered {
+        private final long seqNum;
+        private final IntFunction<Operation> operation;
+        private final Consumer<Message> respond;
+        private ScheduledFuture<?> timeout;
+
+        private Unregistered(long seqNum, IntFunction<Operation> operation, Consumer<Message> respond) {
+            this.seqNum = seqNum;
+            this.operation = operation;
+            this.respond = respond;
+        }
+    }
+
+    private final SecServerBackend backend;
+    private final int window;
+    private final long timeoutMillis;
+    private final ConcurrentHashMap<Integer, TreeMap<Long, Parked>> parked = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ByteString, TreeMap<Long, Unregistered>> unregistered = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timeouts;
+
+    private final LongAdder parkedCount = new LongAdder();
+    private final LongAdder expiredCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public ReorderBuffer(SecServerBackend backend, int window, long timeoutMillis) {
+        this.backend = backend;
+        this.window = window;
+        this.timeoutMillis = timeoutMillis;
+        this.timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "reorder-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+     * Returns the response of a request that ran or was rejected, or null if it was parked. A parked request is
+     * answered later through `respond`, from the thread that runs or expires it. A request the backend has no answer
+     * for, one with a sequence number the account is already past, gets an error.
+     */
+    public Message submit(int id, long seqNum, Operation operation, Consumer<Message> respond) throws Exception {
+        if (id < 0)
+            return operation.execute();
+
+        long expected = backend.getSequenceNumber(id) + 1;
+        if (seqNum <= expected) {
+            Message response = operation.execute();
+            drain(id);
+            return response != null ? response : error(seqNum, "sequence number " + seqNum + " was already used, expected " + expected);
+        }
+
+        if (seqNum - expected >= window) {
+            rejectedCount.increment();
+            return error(seqNum, "sequence number " + seqNum + " is too far ahead, expected " + expected);
+        }
+
+        Parked request = new Parked(seqNum, operation, respond);
+        parked.compute(id, (key, requests) -> {
+            if (requests == null)
+                requests = new TreeMap<>();
+            // a retransmission replaces the request it repeats, whose call was abandoned by the client
+            Parked replaced = requests.put(seqNum, request);
+            if (replaced != null)
+                replaced.timeout.cancel(false);
+            request.timeout = timeouts.schedule(() -> expire(id, request), timeoutMillis, TimeUnit.MILLISECONDS);
+            return requests;
+        });
+        parkedCount.increment();
+
+        // the gap may have closed while the request was being parked
+        drain(id);
+        return null;
+    }
+
+    /*
+     * Parks a request of a key with no account id, which the request with sequence number 1 gives it, see registered.
+     * Returns null, or an error for a sequence number beyond the window.
+     */
+    public Message submit(ByteString key, long seqNum, IntFunction<Operation> operation, Consumer<Message> respond) {
+        if (seqNum - 1 >= window) {
+            rejectedCount.increment();
+            return error(seqNum, "sequence number " + seqNum + " is too far ahead, expected 1");
+        }
+
+        Unregistered request = new Unregistered(seqNum, operation, respond);
+        unregistered.compute(key, (k, requests) -> {
+            if (requests == null)
+                requests = new TreeMap<>();
+            Unregistered replaced = requests.put(seqNum, request);
+            if (replaced != null)
+                replaced.timeout.cancel(false);
+            request.timeout = timeouts.schedule(() -> expire(key, request), timeoutMillis, TimeUnit.MILLISECONDS);
+            return requests;
+        });
+        parkedCount.increment();
+
+        // the key may have got its id while the request was being parked
+        int id = backend.accountId(key);
+        if (id >= 0)
+            backend.execute(id, () -> {
+                registered(key, id);
+                return null;
+            });
+        return null;
+    }
+
+    // Called on the shard of the account once the key has its id, the requests parked by key wait for it from then on
+    public void registered(ByteString key, int id) {
+        TreeMap<Long, Unregistered> requests = unregistered.remove(key);
+        if (requests == null)
+            return;
+
+        for (Unregistered request : requests.values()) {
+            request.timeout.cancel(false);
+            Message response;
+            try {
+                response = submit(id, request.seqNum, request.operation.apply(id), request.respond);
+            } catch (Exception e) {
+                System.out.println(e.getMessage());
+                response = error(request.seqNum, "request with sequence number " + request.seqNum + " failed");
+            }
+            if (response != null)
+                request.respond.accept(response);
+        }
+    }
+
+    // Runs parked requests for as long as the next expected one is there
+    private void drain(int id) {
+        while (true) {
+            long expected = backend.getSequenceNumber(id) + 1;
+            Parked[] next = new Parked[1];
+            parked.computeIfPresent(id, (key, requests) -> {
+                next[0] = requests.remove(expected);
+                return requests.isEmpty() ? null : requests;
+            });
+            if (next[0] == null)
+                return;
+
+            next[0].timeout.cancel(false);
+            Message response;
+            try {
+                response = next[0].operation.execute();
+            } catch (Exception e) {
+                System.out.println(e.getMessage());
+                response = null;
+            }
+            next[0].respond.accept(response != null ? response : error(expected, "request with sequence number " + expected + " failed"));
+        }
+    }
+
+    private void expire(int id, Parked request) {
+        boolean[] removed = new boolean[1];
+        parked.computeIfPresent(id, (key, requests) -> {
+            removed[0] = requests.remove(request.seqNum, request);
+            return requests.isEmpty() ? null : requests;
+        });
+        if (!removed[0])
+            return;
+
+        expiredCount.increment();
+        request.respond.accept(error(request.seqNum, "timed out waiting for the requests before sequence number " + request.seqNum));
+    }
+
+    private void expire(ByteString key, Unregistered request) {
+        boolean[] removed = new boolean[1];
+        unregistered.computeIfPresent(key, (k, requests) -> {
+            removed[0] = requests.remove(request.seqNum, request);
+            return requests.isEmpty() ? null : requests;
+        });
+        if (!removed[0])
+            return;
+
+        expiredCount.increment();
+        request.respond.accept(error(request.seqNum, "timed out waiting for the request opening the account"));
+    }
+
+    private static ErrorResponse error(long seqNum, String errorMessage) {
+        return ErrorResponse.newBuilder().setErrorMessage(errorMessage).setSeqNum(seqNum).build();
+    }
+
+    @Override
+    public String toString() {
+        int waiting = 0;
+        for (TreeMap<Long, Parked> requests : parked.values())
+            waiting += requests.size();
+        for (TreeMap<Long, Unregistered> requests : unregistered.values())
+            waiting += requests.size();
+        return String.format("parked=%d expired=%d rejected=%d waiting=%d", parkedCount.sum(), expiredCount.sum(), rejectedCount.sum(), waiting);
+    }
+
+    @Override
+    public void close() {
+        timeouts.shutdownNow();
+    }
+}
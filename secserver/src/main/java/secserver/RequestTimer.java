@@ -0,0 +1,29 @@
+package secserver;
+
+import io.grpc.*;
+
+// Measures every unary call from its arrival until the server closes it, to compare against the time spent on crypto.
+// Streams stay open for as long as their client wants and are not counted.
+public class RequestTimer implements ServerInterceptor {
+    private final LatencyStats requests = new LatencyStats();
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+            ServerCallHandler<ReqT, RespT> next) {
+        if (call.getMethodDescriptor().getType() != MethodDescriptor.MethodType.UNARY)
+            return next.startCall(call, headers);
+
+        long start = System.nanoTime();
+        return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                requests.record(System.nanoTime() - start);
+                super.close(status, trailers);
+            }
+        }, headers);
+    }
+
+    public LatencyStats getRequests() {
+        return requests;
+    }
+}
@@ -0,0 +1,9 @@
+package secserver;
+
+import com.google.protobuf.Message;
+import secserver.grpc.Secserver.Payload;
+
+// Signs a response, or authenticates it with the session of the request, for answers sent after the call returned
+public interface ResponseSigner {
+    Payload sign(Message response) throws Exception;
+}
@@ -4,32 +4,46 @@ import com.google.protobuf.ByteString;
 import secserver.grpc.Secserver;
 import secserver.grpc.Secserver.*;
 
-import java.io.File;
-import java.io.FileWriter;
+import secserver.LogRecord.Operation;
+
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class SecServerBackend {
-    private ConcurrentHashMap<PublicKey, Account> accounts = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<PublicKey, Long> sequenceNumbers = new ConcurrentHashMap<>();
-    
+    private final AccountRegistry registry;
+    private final AccountStore accounts;
 
-    private final FileWriter log;
+    private final LogStorage log;
+    private final SnapshotStore snapshots;
+    private final AuditIndex auditIndex;
+    private final AccountShards shards;
+
+    private long restoredPosition = 0;
+    // Answers being built, by the digest of their request, until cachedResponse finds them, see answering
+    private final ConcurrentHashMap<ByteString, CompletableFuture<Payload>> answering = new ConcurrentHashMap<>();
 
     private int DEFAULT_BALANCE = 50;
+    private static final int MAX_BATCH_LEGS = 4096;
+    private static final int MAX_CACHED_RESPONSE_SIZE = 1 << 20;
 
-    public SecServerBackend(FileWriter log) throws Exception {
+    public SecServerBackend(LogStorage log, SnapshotStore snapshots, AuditIndex auditIndex, AccountRegistry registry, AccountStore accounts,
+            AccountShards shards) throws Exception {
+        this(log, snapshots, auditIndex, registry, accounts, shards, Long.MAX_VALUE);
+    }
+
+    // Restored from the log up to endPosition only, with no shards, see captureState
+    private SecServerBackend(LogStorage log, SnapshotStore snapshots, AuditIndex auditIndex, AccountRegistry registry, AccountStore accounts,
+            AccountShards shards, long endPosition) throws Exception {
         this.log = log;
-        restoreState();
+        this.snapshots = snapshots;
+        this.auditIndex = auditIndex;
+        this.registry = registry;
+        this.accounts = accounts;
+        this.shards = shards;
+        restoreState(endPosition);
     }
 
     private List<Secserver.Transaction> convertTransactionToGrpc(List<Transaction> transactions) {
@@ -38,302 +52,549 @@ public class SecServerBackend {
         for (Transaction i : transactions) {
             out.add(Secserver.Transaction.newBuilder()
                     .setAmount(i.getAmount())
-                    .setPublicKeySource(ByteString.copyFrom(i.getPublicKeySource().getEncoded())).build());
+                    .setPublicKeySource(registry.keyOf(i.getSourceId())).build());
         }
 
         return out;
     }
 
 
-    public PublicKey decodePublicKey(byte[] encodedKey) throws InvalidKeySpecException, NoSuchAlgorithmException {
-		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-		return keyFactory.generatePublic(new X509EncodedKeySpec(encodedKey));
-	}
+    /*
+     * Operations that change an account run through here, on the shard of the account, and so do the operations
+     * crediting it from other accounts. The future completes once the records they wrote are durable.
+     */
+    public <T> CompletableFuture<T> execute(int id, Callable<T> operation) {
+        return shards.submit(id, operation);
+    }
 
-    public OpenAccountResponse openAccount(PublicKey publicKey, long incomingSequenceNumber, boolean fromLog) throws IOException {
-        if (!sequenceNumbers.containsKey(publicKey) && fromLog) {
-            sequenceNumbers.put(publicKey, 0L);
-        }
-        long serverSequenceNumber = sequenceNumbers.get(publicKey);
+    // Runs the action once the records written so far by the running operation are durable
+    public void afterWrites(Runnable action) {
+        shards.afterAppends(action);
+    }
 
-        
+    // Returns -1 for keys that never signed a request the server logged, without adding them
+    public int accountId(ByteString encodedKey) {
+        return registry.idOf(encodedKey);
+    }
+
+    public int registerAccount(ByteString encodedKey) {
+        return registry.register(encodedKey);
+    }
+
+    private boolean exists(int id) {
+        return id >= 0 && accounts.exists(id);
+    }
+
+    // The scheme the account key signs with is kept in its open record
+    public OpenAccountResponse openAccount(int id, long incomingSequenceNumber, SignatureScheme signatureScheme, boolean fromLog) throws IOException {
+        if (id < 0)
+            return null;
+        long serverSequenceNumber = accounts.getSequenceNumber(id);
+
+    
         if(serverSequenceNumber == incomingSequenceNumber)  {
-            if (accounts.containsKey(publicKey))
+            if (accounts.exists(id))
                 return OpenAccountResponse.newBuilder().setSuccess(false).setErrorMessage("Account already opened").setSeqNum(serverSequenceNumber).build();
 
             return OpenAccountResponse.newBuilder().setSuccess(true).setSeqNum(serverSequenceNumber).build();
         }
         else if (serverSequenceNumber == incomingSequenceNumber -1) {
-            sequenceNumbers.put(publicKey, incomingSequenceNumber);
-            if (accounts.containsKey(publicKey)) {
-                writeToLog(fromLog, "open reject " + Base64.getEncoder().encodeToString(publicKey.getEncoded()) + " " + DEFAULT_BALANCE + " " + incomingSequenceNumber + " .\n");
-                sequenceNumbers.put(publicKey, incomingSequenceNumber);
+            if (accounts.exists(id)) {
+                writeToLog(fromLog, id, LogRecord.open(false, registry.keyOf(id), DEFAULT_BALANCE, incomingSequenceNumber, signatureScheme));
                 return OpenAccountResponse.newBuilder().setSuccess(false).setErrorMessage("Account already opened").setSeqNum(incomingSequenceNumber).build();
             }
 
-            Account account = new Account(publicKey, DEFAULT_BALANCE);
-            accounts.put(publicKey, account);
-            writeToLog(fromLog, "open accept " + Base64.getEncoder().encodeToString(publicKey.getEncoded()) + " " + DEFAULT_BALANCE + " " + incomingSequenceNumber + " .\n");
-            
+            writeToLog(fromLog, LogRecord.open(true, registry.keyOf(id), DEFAULT_BALANCE, incomingSequenceNumber, signatureScheme),
+                    new int[] { id }, () -> accounts.open(id, DEFAULT_BALANCE));
+        
             return OpenAccountResponse.newBuilder().setSuccess(true).setSeqNum(incomingSequenceNumber).build();
         }
 
         return null;
     }
 
-    public SendAmountResponse sendAmount(PublicKey publicKeySource, PublicKey publicKeyDestination, int amount, long incomingSequenceNumber, boolean fromLog) throws IOException {
-        if (!sequenceNumbers.containsKey(publicKeySource) && fromLog) {
-            sequenceNumbers.put(publicKeySource, 0L);
-        }
-        long serverSequenceNumber = sequenceNumbers.get(publicKeySource);
+    // A destination key that was never registered has no account, and the transfer fails without registering it
+    public SendAmountResponse sendAmount(int sourceId, ByteString destinationKey, int amount, long incomingSequenceNumber, boolean fromLog) throws IOException {
+        if (sourceId < 0)
+            return null;
+        int destinationId = registry.idOf(destinationKey);
+        long serverSequenceNumber = accounts.getSequenceNumber(sourceId);
 
         if(serverSequenceNumber == incomingSequenceNumber)  {
-            if (!accounts.containsKey(publicKeySource) || !accounts.containsKey(publicKeyDestination))
+            if (!accounts.exists(sourceId) || !exists(destinationId))
                 return SendAmountResponse.newBuilder().setSuccess(false).setSeqNum(serverSequenceNumber).setErrorMessage("sender or receiver does not have an account").build();
-            
+        
             if (amount <= 0)
                 return SendAmountResponse.newBuilder().setSuccess(false).setSeqNum(serverSequenceNumber).setErrorMessage("amount needs to be positive").build();
 
-            if (publicKeyDestination.equals(publicKeySource)) 
+            if (destinationId == sourceId) 
                 return SendAmountResponse.newBuilder().setSuccess(false).setSeqNum(serverSequenceNumber).setErrorMessage("can't send money to yourself").build();
-            
+        
 
             return SendAmountResponse.newBuilder().setSuccess(true).setSeqNum(serverSequenceNumber).build();
         }
         else if (serverSequenceNumber + 1 == incomingSequenceNumber) {
-            sequenceNumbers.put(publicKeySource, incomingSequenceNumber);
 
-            if (!accounts.containsKey(publicKeySource) || !accounts.containsKey(publicKeyDestination)){
-                writeToLog(fromLog, "send reject " + Base64.getEncoder().encodeToString(publicKeySource.getEncoded()) + " " + 
-                    Base64.getEncoder().encodeToString(publicKeyDestination.getEncoded()) + " " + amount + " " + incomingSequenceNumber + " .\n");
+            if (!accounts.exists(sourceId) || !exists(destinationId)){
+                writeToLog(fromLog, sourceId, new LogRecord(Operation.SEND, false, registry.keyOf(sourceId), destinationKey, amount, incomingSequenceNumber));
                  return SendAmountResponse.newBuilder().setSuccess(false).setSeqNum(incomingSequenceNumber).setErrorMessage("sender or receiver does not have an account").build();
             }
 
             if (amount <= 0) {
-                writeToLog(fromLog, "send reject " + Base64.getEncoder().encodeToString(publicKeySource.getEncoded()) + " " + 
-                    Base64.getEncoder().encodeToString(publicKeyDestination.getEncoded()) + " " + amount + " " + incomingSequenceNumber + " .\n");
+                writeToLog(fromLog, sourceId, new LogRecord(Operation.SEND, false, registry.keyOf(sourceId), destinationKey, amount, incomingSequenceNumber));
                 return SendAmountResponse.newBuilder().setSuccess(false).setSeqNum(incomingSequenceNumber).setErrorMessage("amount needs to be positive").build();
             }
 
-            if (publicKeyDestination.equals(publicKeySource)) {
-                writeToLog(fromLog, "send reject " + Base64.getEncoder().encodeToString(publicKeySource.getEncoded()) + " " + 
-                    Base64.getEncoder().encodeToString(publicKeyDestination.getEncoded()) + " " + amount + " " + incomingSequenceNumber + " .\n");
+            if (destinationId == sourceId) {
+                writeToLog(fromLog, sourceId, new LogRecord(Operation.SEND, false, registry.keyOf(sourceId), destinationKey, amount, incomingSequenceNumber));
                 return SendAmountResponse.newBuilder().setSuccess(false).setSeqNum(incomingSequenceNumber).setErrorMessage("can't send money to yourself").build();     
             }
 
-            boolean operation;
-            synchronized (accounts.get(publicKeySource)) {
-                operation = accounts.get(publicKeySource).subtractFromBalance(amount);
+            if (!accounts.canDebit(sourceId, amount)) {
+                writeToLog(fromLog, sourceId, new LogRecord(Operation.SEND, false, registry.keyOf(sourceId), destinationKey, amount, incomingSequenceNumber));
+                return SendAmountResponse.newBuilder().setSuccess(false).setSeqNum(incomingSequenceNumber).setErrorMessage("balance cannot be negative").build();
             }
 
-            if (operation == false) {
-                writeToLog(fromLog, "send reject " + Base64.getEncoder().encodeToString(publicKeySource.getEncoded()) + " " + 
-                    Base64.getEncoder().encodeToString(publicKeyDestination.getEncoded()) + " " + amount + " " + incomingSequenceNumber + " .\n");
-                return SendAmountResponse.newBuilder().setSuccess(false).setSeqNum(incomingSequenceNumber).setErrorMessage("balance cannot be negative").build();
+            writeToLog(fromLog, new LogRecord(Operation.SEND, true, registry.keyOf(sourceId), destinationKey, amount, incomingSequenceNumber),
+                    new int[] { sourceId, destinationId }, () -> accounts.debit(sourceId, amount),
+                    () -> accounts.credit(destinationId, sourceId, amount));
+            return SendAmountResponse.newBuilder().setSuccess(true).setSeqNum(incomingSequenceNumber).build();
+        }
+
+        return null;
+    }
+
+    /*
+     * Applies every leg or none of them. The total is debited from the source at once and every destination is
+     * credited once, with the sum of its legs, and the whole batch is written as one log record.
+     */
+    public SendAmountBatchResponse sendAmountBatch(int sourceId, List<ByteString> destinationKeys, int[] amounts, long incomingSequenceNumber,
+            boolean fromLog) throws IOException {
+        if (sourceId < 0)
+            return null;
+        int[] destinationIds = new int[destinationKeys.size()];
+        for (int i = 0; i < destinationIds.length; i++)
+            destinationIds[i] = registry.idOf(destinationKeys.get(i));
+        long serverSequenceNumber = accounts.getSequenceNumber(sourceId);
+
+        if (serverSequenceNumber == incomingSequenceNumber) {
+            String[] errors = new String[amounts.length];
+            String error = validateBatch(sourceId, destinationIds, amounts, errors);
+            return batchResponse(error, errors, serverSequenceNumber);
+        }
+        else if (serverSequenceNumber + 1 == incomingSequenceNumber) {
+
+            String[] errors = new String[amounts.length];
+            String error = validateBatch(sourceId, destinationIds, amounts, errors);
+            int total = 0;
+            for (int amount : amounts)
+                total += amount;
+            if (error == null && !accounts.canDebit(sourceId, total)) {
+                error = "balance cannot be negative";
+                Arrays.fill(errors, error);
             }
 
-            synchronized (accounts.get(publicKeyDestination)) {
-                accounts.get(publicKeyDestination).addTransaction(new Transaction(publicKeySource, amount));
+            if (error != null) {
+                writeToLog(fromLog, sourceId, LogRecord.sendBatch(false, registry.keyOf(sourceId), destinationKeys, amounts, total, incomingSequenceNumber));
+                return batchResponse(error, errors, incomingSequenceNumber);
             }
 
-            writeToLog(fromLog, "send accept " + Base64.getEncoder().encodeToString(publicKeySource.getEncoded()) + " " + 
-                Base64.getEncoder().encodeToString(publicKeyDestination.getEncoded()) + " " + amount + " " + incomingSequenceNumber + " .\n");
-            return SendAmountResponse.newBuilder().setSuccess(true).setSeqNum(incomingSequenceNumber).build();
+            Map<Integer, Integer> credits = new LinkedHashMap<>();
+            for (int i = 0; i < destinationIds.length; i++)
+                credits.merge(destinationIds[i], amounts[i], Integer::sum);
+            int[] ids = new int[1 + credits.size()];
+            Runnable[] changes = new Runnable[ids.length];
+            int debited = total;
+            ids[0] = sourceId;
+            changes[0] = () -> accounts.debit(sourceId, debited);
+            int change = 1;
+            for (Map.Entry<Integer, Integer> credit : credits.entrySet()) {
+                int destinationId = credit.getKey();
+                int amount = credit.getValue();
+                ids[change] = destinationId;
+                changes[change++] = () -> accounts.credit(destinationId, sourceId, amount);
+            }
+            writeToLog(fromLog, LogRecord.sendBatch(true, registry.keyOf(sourceId), destinationKeys, amounts, total, incomingSequenceNumber),
+                    ids, changes);
+            return batchResponse(null, errors, incomingSequenceNumber);
         }
 
         return null;
     }
 
+    // Fills the error of every leg that cannot be applied and returns why the batch as a whole cannot, or null if it can
+    private String validateBatch(int sourceId, int[] destinationIds, int[] amounts, String[] errors) {
+        if (!accounts.exists(sourceId)) {
+            Arrays.fill(errors, "sender does not have an account");
+            return "sender does not have an account";
+        }
+        if (amounts.length == 0)
+            return "batch has no transfers";
+        if (amounts.length > MAX_BATCH_LEGS) {
+            Arrays.fill(errors, "batch has more than " + MAX_BATCH_LEGS + " transfers");
+            return "batch has more than " + MAX_BATCH_LEGS + " transfers";
+        }
+
+        String error = null;
+        long total = 0;
+        for (int i = 0; i < amounts.length; i++) {
+            if (!exists(destinationIds[i]))
+                errors[i] = "receiver does not have an account";
+            else if (amounts[i] <= 0)
+                errors[i] = "amount needs to be positive";
+            else if (destinationIds[i] == sourceId)
+                errors[i] = "can't send money to yourself";
+            else
+                total += amounts[i];
+
+            if (errors[i] != null && error == null)
+                error = "transfer " + i + ": " + errors[i];
+        }
+        if (error == null && total > Integer.MAX_VALUE)
+            error = "total amount is too large";
 
-    public CheckAccountResponse checkAccount(PublicKey publicKey, long incomingSequenceNumber) {
-        Account account = accounts.get(publicKey);
-        long serverSequenceNumber = sequenceNumbers.get(publicKey);
+        if (error != null) {
+            for (int i = 0; i < errors.length; i++) {
+                if (errors[i] == null)
+                    errors[i] = "not applied, another transfer in the batch failed";
+            }
+        }
+        return error;
+    }
+
+    private static SendAmountBatchResponse batchResponse(String error, String[] errors, long sequenceNumber) {
+        SendAmountBatchResponse.Builder response = SendAmountBatchResponse.newBuilder()
+                .setSuccess(error == null)
+                .setSeqNum(sequenceNumber);
+        if (error != null)
+            response.setErrorMessage(error);
+        for (String legError : errors) {
+            TransferLegResult.Builder leg = TransferLegResult.newBuilder().setSuccess(legError == null);
+            if (legError != null)
+                leg.setErrorMessage(legError);
+            response.addLegs(leg);
+        }
+        return response.build();
+    }
+
+    /*
+     * With a sinceVersion, the version of the account the client last saw, the answer only lists the pending
+     * transactions added after it, all of them with pendingReset if they were accepted in between, or says
+     * notModified if the account has not changed. 0 asks for the whole list.
+     */
+    public CheckAccountResponse checkAccount(int id, long incomingSequenceNumber, long sinceVersion) {
+        if (id < 0)
+            return null;
+        long serverSequenceNumber = accounts.getSequenceNumber(id);
+        Account account = accounts.readChanges(id, sinceVersion);
+        // A version the account never reached, from before the server lost its state, gets the whole list
+        if (account != null && sinceVersion > account.getVersion()) {
+            sinceVersion = 0;
+            account = accounts.readChanges(id, 0);
+        }
         
         if (serverSequenceNumber == incomingSequenceNumber)  {
             if (account == null) {
                 return CheckAccountResponse.newBuilder().setErrorMessage("Account does not exist").setSeqNum(serverSequenceNumber).setSuccess(false).build();
             }
 
-            return CheckAccountResponse.newBuilder()
-                .setSuccess(true)
-                .setBalance(account.getCurrentBalance())
-                .addAllIncoming(convertTransactionToGrpc(account.getPendingTransactions())).setSeqNum(serverSequenceNumber).build();
+            return checkResponse(account, sinceVersion, serverSequenceNumber);
         } else if (serverSequenceNumber == incomingSequenceNumber -1) {
             
-            sequenceNumbers.put(publicKey, incomingSequenceNumber);
             if (account == null) {
-                writeToLog(false, "check reject " + Base64.getEncoder().encodeToString(publicKey.getEncoded()) + " " + incomingSequenceNumber + " .\n");
+                writeToLog(false, id, new LogRecord(Operation.CHECK, false, registry.keyOf(id), null, 0, incomingSequenceNumber));
                 return CheckAccountResponse.newBuilder().setErrorMessage("Account does not exist").setSeqNum(incomingSequenceNumber).setSuccess(false).build();
             }
             
-            writeToLog(false, "check accept " + Base64.getEncoder().encodeToString(publicKey.getEncoded()) + " " + incomingSequenceNumber + " .\n");
-            return CheckAccountResponse.newBuilder()
-                .setSuccess(true)
-                .setBalance(account.getCurrentBalance())
-                .addAllIncoming(convertTransactionToGrpc(account.getPendingTransactions())).setSeqNum(incomingSequenceNumber).build();
+            writeToLog(false, id, new LogRecord(Operation.CHECK, true, registry.keyOf(id), null, 0, incomingSequenceNumber));
+            return checkResponse(account, sinceVersion, incomingSequenceNumber);
             
         }
         return null;
     }
 
-    public ReceiveAmountResponse receiveAmount(PublicKey publicKey, long incomingSequenceNumber, boolean fromLog) throws IOException {
-        if (!sequenceNumbers.containsKey(publicKey)) {
-            sequenceNumbers.put(publicKey, 0L);
-        }
-        long serverSequenceNumber = sequenceNumbers.get(publicKey);
-        Account account = accounts.get(publicKey);
+    private CheckAccountResponse checkResponse(Account account, long sinceVersion, long sequenceNumber) {
+        CheckAccountResponse.Builder response = CheckAccountResponse.newBuilder()
+                .setSuccess(true)
+                .setBalance(account.getCurrentBalance())
+                .setVersion(account.getVersion())
+                .setSeqNum(sequenceNumber);
+        if (sinceVersion == account.getVersion())
+            return response.setNotModified(true).build();
+
+        return response.setPendingReset(sinceVersion == 0 || account.getClearedVersion() > sinceVersion)
+                .addAllIncoming(convertTransactionToGrpc(account.getPendingTransactions())).build();
+    }
+
+    public ReceiveAmountResponse receiveAmount(int id, long incomingSequenceNumber, boolean fromLog) throws IOException {
+        if (id < 0)
+            return null;
+        long serverSequenceNumber = accounts.getSequenceNumber(id);
+        boolean exists = accounts.exists(id);
 
         if (serverSequenceNumber == incomingSequenceNumber)  {
-            if (account == null) {
+            if (!exists) {
                 return ReceiveAmountResponse.newBuilder().setErrorMessage("Account does not exist").setSuccess(false).setSeqNum(serverSequenceNumber).build();
             }
-            
+        
             return ReceiveAmountResponse.newBuilder().setSuccess(true).setSeqNum(serverSequenceNumber).build();
         } else if (serverSequenceNumber == incomingSequenceNumber - 1) { 
 
-            sequenceNumbers.put(publicKey, incomingSequenceNumber);
-            if (account == null) {
-                writeToLog(fromLog, "receive reject " + Base64.getEncoder().encodeToString(publicKey.getEncoded()) + " " + incomingSequenceNumber + " .\n");
+            if (!exists) {
+                writeToLog(fromLog, id, new LogRecord(Operation.RECEIVE, false, registry.keyOf(id), null, 0, incomingSequenceNumber));
                 return ReceiveAmountResponse.newBuilder().setErrorMessage("Account does not exist").setSuccess(false).setSeqNum(incomingSequenceNumber).build();
             }
 
 
-            synchronized (accounts.get(publicKey)) {
-                account.acceptTransactions();
-            }
-            
-            writeToLog(fromLog, "receive accept " + Base64.getEncoder().encodeToString(publicKey.getEncoded()) + " " + incomingSequenceNumber + " .\n");
+            writeToLog(fromLog, new LogRecord(Operation.RECEIVE, true, registry.keyOf(id), null, 0, incomingSequenceNumber),
+                    new int[] { id }, () -> accounts.acceptPending(id));
             return ReceiveAmountResponse.newBuilder().setSuccess(true).setSeqNum(incomingSequenceNumber).build();
         }
         return null;  
     }
 
-    public AuditResponse audit(PublicKey publicKey, long incomingSequenceNumber) throws IOException {
-        long serverSequenceNumber = sequenceNumbers.get(publicKey);
+    // Answered without the lines, auditLines adds them once the audit record is durable
+    public AuditResponse audit(int id, long incomingSequenceNumber) throws Exception {
+        if (id < 0)
+            return null;
+        long serverSequenceNumber = accounts.getSequenceNumber(id);
 
         if (serverSequenceNumber == incomingSequenceNumber)  { 
-            if (!accounts.containsKey(publicKey))
+            if (!accounts.exists(id))
                 return AuditResponse.newBuilder().setErrorMessage("Account does not exist").setSuccess(false).setSeqNum(serverSequenceNumber).build();
             
-            List<String> lines;
-            synchronized (log) {
-                lines = Files.readAllLines(Path.of("log.txt"));
-            }
-            List<String> participantLines = new ArrayList<>();
-
-            for (String line : lines) {
-                if (line.contains(Base64.getEncoder().encodeToString(publicKey.getEncoded()))) {
-                    participantLines.add(line);
-                }
-            }
-
-            return AuditResponse.newBuilder().addAllAudits(participantLines).setSeqNum(serverSequenceNumber).build();
+            return AuditResponse.newBuilder().setSuccess(true).setSeqNum(serverSequenceNumber).build();
         } else if (serverSequenceNumber == incomingSequenceNumber - 1) { 
-            sequenceNumbers.put(publicKey, incomingSequenceNumber);
 
-            if (!accounts.containsKey(publicKey)) {
-                writeToLog(false, "audit reject " + Base64.getEncoder().encodeToString(publicKey.getEncoded()) + " " + incomingSequenceNumber + " .\n");
+            if (!accounts.exists(id)) {
+                writeToLog(false, id, new LogRecord(Operation.AUDIT, false, registry.keyOf(id), null, 0, incomingSequenceNumber));
                 return AuditResponse.newBuilder().setErrorMessage("Account does not exist").setSeqNum(incomingSequenceNumber).setSuccess(false).build();
             }
-           
-            List<String> lines;
-            synchronized (log) {
-                lines = Files.readAllLines(Path.of("log.txt"));
-            }
-            List<String> participantLines = new ArrayList<>();
-            
-            for (String line : lines) {
-                if (line.contains(Base64.getEncoder().encodeToString(publicKey.getEncoded())) && 
-                    (line.startsWith("open accept") || line.startsWith("receive accept") || line.startsWith("send accept"))) {
-                    participantLines.add(line);
-                }
-            }
-            
-            
-            writeToLog(false, "audit accept " + Base64.getEncoder().encodeToString(publicKey.getEncoded()) + " " + incomingSequenceNumber + " .\n");
-            return AuditResponse.newBuilder().setSuccess(true).addAllAudits(participantLines).setSeqNum(incomingSequenceNumber).build();
+
+            writeToLog(false, id, new LogRecord(Operation.AUDIT, true, registry.keyOf(id), null, 0, incomingSequenceNumber));
+            return AuditResponse.newBuilder().setSuccess(true).setSeqNum(incomingSequenceNumber).build();
         }
         return null;
     }
 
-    public void fixLogFileIntegrity() throws IOException {
-        File file = new File(String.valueOf(Path.of("log.txt")));
-        if (file.length() > 0) {
-            RandomAccessFile raf = new RandomAccessFile(file, "r");
+    /*
+     * Adds the accepted open, send, batch and receive records of the account logged before the audit record the
+     * response answers, read through the audit index, so a retransmission gets the same lines as the first answer.
+     * Called once that record is durable, the index then holds every position before it.
+     */
+    public AuditResponse auditLines(int id, AuditResponse response) throws IOException {
+        if (!response.getSuccess())
+            return response;
+        ByteString encodedKey = registry.keyOf(id);
+        long auditPosition = auditIndex.auditPosition(encodedKey, response.getSeqNum());
+        AuditResponse.Builder lines = response.toBuilder();
+        for (long position : auditIndex.positions(encodedKey)) {
+            if (auditPosition >= 0 && position >= auditPosition)
+                break;
+            lines.addAllAudits(log.read(position).auditLines(encodedKey));
+        }
+        return lines.build();
+    }
 
-            raf.seek(file.length() - 1);
-            byte[] byteArray = new byte[1];
-            raf.read(byteArray, 0, 1);
-            if (!Arrays.equals(byteArray, "\n".getBytes())) {
-                log.write("\n");
-                log.flush();
+    /*
+     * The state at one cut of the log, copied from the live accounts: every shard copies the accounts it runs between
+     * the changes of the records before the cut and the ones after, see AccountShards.atCut, and goes on right away.
+     * Sequence numbers move with the changes of their records, so they are copied at the same cut. Every key keeps its
+     * id, which pending transactions refer to, keys registered after a shard copied are at 0 without an account.
+     */
+    public StateSnapshot captureState() throws Exception {
+        int shardCount = shards.size();
+        long[][] shardSequenceNumbers = new long[shardCount][];
+        Account[][] shardAccounts = new Account[shardCount][];
+        long position = shards.atCut(log, shard -> {
+            int size = registry.size();
+            int count = size <= shard ? 0 : (size - shard + shardCount - 1) / shardCount;
+            long[] sequenceNumbers = new long[count];
+            Account[] copies = new Account[count];
+            for (int i = 0; i < count; i++) {
+                int id = shard + i * shardCount;
+                sequenceNumbers[i] = accounts.getSequenceNumber(id);
+                copies[i] = accounts.read(id);
+            }
+            shardSequenceNumbers[shard] = sequenceNumbers;
+            shardAccounts[shard] = copies;
+        });
+
+        int size = registry.size();
+        List<ByteString> keys = new ArrayList<>(size);
+        long[] sequenceNumbers = new long[size];
+        Account[] accountCopies = new Account[size];
+        for (int id = 0; id < size; id++) {
+            keys.add(registry.keyOf(id));
+            int shard = id % shardCount;
+            int i = id / shardCount;
+            if (i < shardSequenceNumbers[shard].length) {
+                sequenceNumbers[id] = shardSequenceNumbers[shard][i];
+                accountCopies[id] = shardAccounts[shard][i];
             }
-            raf.close();
         }
+        return new StateSnapshot(position, keys, sequenceNumbers, accountCopies);
+    }
+
+    // Brings a registry and store that may already hold the state at an earlier position up to the current end of the log, replaying only the log after it
+    public long catchUp(AccountRegistry cutRegistry, AccountStore cutAccounts) throws Exception {
+        long endPosition = log.endPosition();
+        new SecServerBackend(log, snapshots, auditIndex, cutRegistry, cutAccounts, null, endPosition);
+        return endPosition;
+    }
+
+    public long getRestoredPosition() {
+        return restoredPosition;
     }
 
-    public void restoreState() throws Exception {
-        List<String> lines = Files.readAllLines(Path.of("log.txt"));
-        for (String line : lines) {
-            String[] splitLine = line.split(" ");
-            switch (splitLine[0]) {
-                case "open":
-                    if (splitLine.length == 6 && Objects.equals(splitLine[5], ".")) {
-                        if (splitLine[1].equals("accept"))
-                            openAccount(decodePublicKey(Base64.getDecoder().decode(splitLine[2])), Long.parseLong(splitLine[4]), true);
-                        else
-                            sequenceNumbers.put(decodePublicKey(Base64.getDecoder().decode(splitLine[2])), Long.parseLong(splitLine[4]));
-                    }
+    // Loads the latest snapshot, unless the account store already holds the state, and replays only the part of the log written after it
+    private void restoreState(long endPosition) throws Exception {
+        restoredPosition = accounts.getRecoveredPosition();
+        StateSnapshot snapshot = restoredPosition >= 0 || snapshots == null ? null : snapshots.loadLatest();
+        restoredPosition = Math.max(restoredPosition, 0);
+        if (snapshot != null) {
+            List<ByteString> keys = snapshot.getKeys();
+            for (int id = 0; id < keys.size(); id++) {
+                registry.register(keys.get(id));
+                accounts.setSequenceNumber(id, snapshot.getSequenceNumbers()[id]);
+
+                Account account = snapshot.getAccounts()[id];
+                if (account != null)
+                    accounts.restore(id, account);
+            }
+            restoredPosition = snapshot.getPosition();
+        }
+
+        log.replay(restoredPosition, endPosition, (position, record) -> {
+            int id = registry.register(record.getPublicKey());
+            switch (record.getOperation()) {
+                case OPEN:
+                    if (record.isAccepted())
+                        openAccount(id, record.getSeqNum(), record.getSignatureScheme(), true);
+                    else
+                        accounts.setSequenceNumber(id, record.getSeqNum());
                     break;
-                case "send":
-                    if (splitLine.length == 7 && Objects.equals(splitLine[6], ".")) {
-                        if (splitLine[1].equals("accept"))
-                            sendAmount(decodePublicKey(Base64.getDecoder().decode(splitLine[2])), decodePublicKey(Base64.getDecoder().decode(splitLine[3])), 
-                            Integer.parseInt(splitLine[4]), Long.parseLong(splitLine[5]), true);
-                        else
-                            sequenceNumbers.put(decodePublicKey(Base64.getDecoder().decode(splitLine[2])), Long.parseLong(splitLine[5]));
-                    }
+                case SEND:
+                    if (record.isAccepted())
+                        sendAmount(id, record.getPublicKeyDestination(), record.getAmount(), record.getSeqNum(), true);
+                    else
+                        accounts.setSequenceNumber(id, record.getSeqNum());
                     break;
-                
-                case "receive":
-                    if (splitLine.length == 5 && Objects.equals(splitLine[4], ".")) {
-                        if (splitLine[1].equals("accept"))
-                            receiveAmount(decodePublicKey(Base64.getDecoder().decode(splitLine[2])), Long.parseLong(splitLine[3]), true);
-                        else
-                            sequenceNumbers.put(decodePublicKey(Base64.getDecoder().decode(splitLine[2])), Long.parseLong(splitLine[3]));
-                    }
+                case SEND_BATCH:
+                    if (record.isAccepted())
+                        sendAmountBatch(id, record.getLegDestinations(), record.getLegAmounts(), record.getSeqNum(), true);
+                    else
+                        accounts.setSequenceNumber(id, record.getSeqNum());
                     break;
-
-                case "audit":
-                case "check":
-                    if (splitLine.length == 5 && Objects.equals(splitLine[4], ".")) {
-                        sequenceNumbers.put(decodePublicKey(Base64.getDecoder().decode(splitLine[2])), Long.parseLong(splitLine[3]));
-                    }
+                case RECEIVE:
+                    if (record.isAccepted())
+                        receiveAmount(id, record.getSeqNum(), true);
+                    else
+                        accounts.setSequenceNumber(id, record.getSeqNum());
+                    break;
+                case AUDIT:
+                case CHECK:
+                    accounts.setSequenceNumber(id, record.getSeqNum());
                     break;
             }
-        }
+        });
+    }
+
+    // The signed answer last sent to the key, if it was the answer to the request with this digest, or null
+    public Payload cachedResponse(ByteString encodedKey, ByteString requestDigest) throws IOException {
+        long position = auditIndex.responsePosition(encodedKey, requestDigest);
+        if (position < 0)
+            return null;
+        return Payload.parseFrom(log.read(position).getResponse());
+    }
 
-        fixLogFileIntegrity();
+    /*
+     * Null when the request with this digest is the one to answer, else the answer an exact copy of it that came
+     * first gets. Once that copy used the sequence number, another one running before its answer is in the log would
+     * be answered as if it had been accepted. The caller answers with answered or notAnswered.
+     */
+    public CompletableFuture<Payload> answering(ByteString requestDigest) {
+        return answering.putIfAbsent(requestDigest, new CompletableFuture<>());
     }
 
-	public SequenceNumberResponse sequenceNumber(PublicKey publicKey, byte[] nonce) {
-		if (!sequenceNumbers.containsKey(publicKey)) {
-            sequenceNumbers.put(publicKey, 0L);
+    /*
+     * Hands the answer to the copies waiting for it, and with cache logs it for the ones still to come, which wait for
+     * it until it is durable and cachedResponse finds it. A response lost in a crash is built again when its request
+     * is retransmitted, and so is one too large to be worth logging.
+     */
+    public void answered(ByteString encodedKey, ByteString requestDigest, Payload response, boolean cache) {
+        CompletableFuture<Payload> waiting = answering.get(requestDigest);
+        if (!cache || response.getSerializedSize() > MAX_CACHED_RESPONSE_SIZE) {
+            if (waiting != null && waiting.complete(response))
+                answering.remove(requestDigest, waiting);
+            return;
         }
 
-        return SequenceNumberResponse.newBuilder().setSeqNum(sequenceNumbers.get(publicKey)).setNonce(ByteString.copyFrom(nonce)).build();
+        CompletableFuture<Long> logged = log.append(LogRecord.response(encodedKey, requestDigest, response.toByteString()));
+        if (waiting != null && waiting.complete(response))
+            logged.whenComplete((position, failure) -> answering.remove(requestDigest, waiting));
+    }
+
+    // The copies waiting for the answer fail the same way
+    public void notAnswered(ByteString requestDigest, Throwable failure) {
+        CompletableFuture<Payload> waiting = answering.get(requestDigest);
+        if (waiting != null && waiting.completeExceptionally(failure))
+            answering.remove(requestDigest, waiting);
+    }
+
+    // Log positions of the accepted records the account takes part in, in log order
+    public long[] historyPositions(int id) {
+        return auditIndex.positions(registry.keyOf(id));
+    }
+
+    public LogRecord readRecord(long position) throws IOException {
+        return log.read(position);
+    }
+
+    // Consistent copy of the account, or null if it is not open, read on its shard
+    public Account readAccount(int id) {
+        return id < 0 ? null : shards.submit(id, () -> accounts.read(id)).join();
+    }
+
+    public long getSequenceNumber(int id) {
+        return accounts.getSequenceNumber(id);
+    }
+
+	// A key the server has not seen yet is at 0
+	public SequenceNumberResponse sequenceNumber(int id, byte[] nonce) {
+        return SequenceNumberResponse.newBuilder().setSeqNum(id < 0 ? 0 : accounts.getSequenceNumber(id)).setNonce(ByteString.copyFrom(nonce)).build();
 	}
 
-    public void writeToLog(boolean fromLog, String line) {
-        if (!fromLog) {
-            try {
-                synchronized(log) {
-                    log.write(line);
-                    log.flush();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    // Only called once the server stopped taking requests and the shards are closed
+    public void close() throws IOException {
+        accounts.close(log.endPosition());
+    }
+
+    // A record that changes no account but the sequence number of its signer
+    private void writeToLog(boolean fromLog, int signerId, LogRecord record) {
+        writeToLog(fromLog, record, new int[] { signerId }, () -> {});
+    }
+
+    /*
+     * Writes a record that changes accounts, changes[i] changing the account ids[i], and the sequence number of its
+     * signer, ids[0], along with its change. The shard of every account applies its change in log order, see
+     * AccountShards, and a replay applies them as the record is read back, so both make the same changes in the same
+     * order: a credit is never accepted before the transfer making it is logged, an account is not sent to before it is
+     * logged as opened, and the accounts at any position of the log are the ones a replay up to there leaves. What the
+     * operation checked before stays true until its changes are applied, as only the shard of an account changes it.
+     * The caller only answers the client once the record is durable, so the operation survives a crash.
+     */
+    private void writeToLog(boolean fromLog, LogRecord record, int[] ids, Runnable... changes) {
+        Runnable signerChange = changes[0];
+        changes[0] = () -> {
+            accounts.setSequenceNumber(ids[0], record.getSeqNum());
+            signerChange.run();
+        };
+        if (fromLog) {
+            for (Runnable change : changes)
+                change.run();
+        } else {
+            shards.append(log, record, ids, changes);
         }
     }
 }
@@ -2,222 +2,439 @@ package secserver;
 
 import com.google.protobuf.Any;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
 
 import io.grpc.Status;
+import io.grpc.StatusException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 import secserver.grpc.SecServerServiceGrpc;
 import secserver.grpc.Secserver.*;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.security.*;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 
 public class SecServerImpl extends SecServerServiceGrpc.SecServerServiceImplBase {
 	private final SecServerBackend backend;
-	private final KeyStore keyStore;
+	private final PublicKeyCache keyCache;
+	private final CryptoService crypto;
+	private final ReorderBuffer reorderBuffer;
+	private final SessionManager sessions;
+	private final AccountEvents events;
+	private final Executor streamExecutor;
+	private final int streamWindow;
+	private final int maxAuditPageSize;
+	private final AdmissionControl admission;
+	// The unary method that handles each request type, by the type url of its Any, for requests sent on a stream
+	private final Map<String, StreamSession.Handler> streamRoutes = new HashMap<>();
+	// Requests whose answers are kept in the log for their retransmissions, see respond
+	private static final Set<Class<?>> KEPT_ANSWERS = Set.of(OpenAccountRequest.class, SendAmountRequest.class,
+			SendAmountBatchRequest.class, ReceiveAmountRequest.class);
+	private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private interface Operation<T extends Message> {
+		Message execute(T request, ByteString publicKey, Consumer<Message> respondLater) throws Exception;
+	}
 	
 
-	public SecServerImpl(FileWriter log, KeyStore ks) throws Exception {
-		backend = new SecServerBackend(log);
-		keyStore = ks;
+	public SecServerImpl(SecServerBackend backend, PublicKeyCache keyCache, CryptoService crypto, ReorderBuffer reorderBuffer,
+			SessionManager sessions, AccountEvents events, Executor streamExecutor, int streamWindow, int maxAuditPageSize,
+			AdmissionControl admission) {
+		this.backend = backend;
+		this.keyCache = keyCache;
+		this.crypto = crypto;
+		this.reorderBuffer = reorderBuffer;
+		this.sessions = sessions;
+		this.events = events;
+		this.streamExecutor = streamExecutor;
+		this.streamWindow = streamWindow;
+		this.maxAuditPageSize = maxAuditPageSize;
+		this.admission = admission;
+
+		route(SequenceNumberRequest.getDefaultInstance(), this::sequenceNumber);
+		route(SessionRequest.getDefaultInstance(), this::openSession);
+		route(OpenAccountRequest.getDefaultInstance(), this::openAccount);
+		route(SendAmountRequest.getDefaultInstance(), this::sendAmount);
+		route(SendAmountBatchRequest.getDefaultInstance(), this::sendAmountBatch);
+		route(CheckAccountRequest.getDefaultInstance(), this::checkAccount);
+		route(ReceiveAmountRequest.getDefaultInstance(), this::receiveAmount);
+		route(AuditRequest.getDefaultInstance(), this::audit);
+	}
+
+	private void route(Message type, StreamSession.Handler handler) {
+		streamRoutes.put(Any.pack(type).getTypeUrl(), handler);
 	}
 
 	
-	private boolean verifySignature(ByteString signatureBytes, ByteString publicKey, Any data) throws Exception {
-		Signature dsaForVerify = Signature.getInstance("SHA256withRSA");
-		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-		PublicKey key = keyFactory.generatePublic(new X509EncodedKeySpec(publicKey.toByteArray()));
-		
-	
-		dsaForVerify.initVerify(key);
-		dsaForVerify.update(data.toByteArray());
-		return dsaForVerify.verify(signatureBytes.toByteArray());
+	private boolean verifySignature(SignatureScheme scheme, ByteString signatureBytes, PublicKey key, ByteString data) throws Exception {
+		return crypto.verify(scheme, key, data, signatureBytes);
 	}
 
-	private ByteString generateSignature(byte[] data, PublicKey key) throws UnrecoverableKeyException, KeyStoreException,
-			NoSuchAlgorithmException, InvalidKeyException, SignatureException, IOException {
-		Signature dsaForSign = Signature.getInstance("SHA256withRSA");
-		
-		dsaForSign.initSign((PrivateKey) keyStore.getKey("private", "alentejanomau12".toCharArray()));
-		dsaForSign.update(data);
-		return ByteString.copyFrom(dsaForSign.sign());
+	private ByteString generateSignature(ByteString data) throws Exception {
+		return crypto.sign(data);
 	}
 
-	private PublicKey decodePublicKey(byte[] encodedKey) throws NoSuchAlgorithmException, InvalidKeySpecException {
-		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-		return keyFactory.generatePublic(new X509EncodedKeySpec(encodedKey));
+	// The scheme of the account key, which requests in a session took from the handshake
+	private SignatureScheme signatureScheme(Payload request) throws InvalidKeyException {
+		if (request.getSessionId().isEmpty())
+			return request.getSignatureScheme();
+
+		SessionManager.Session session = sessions.get(request.getSessionId());
+		if (session == null)
+			throw new InvalidKeyException("Unknown or expired session");
+		return session.getSignatureScheme();
 	}
 
-	@Override
-	public void sequenceNumber(Payload request, StreamObserver<Payload> responseObserver) {
+	// Identifies an exact retransmission, the message and its signature or mac
+	private ByteString requestDigest(Payload request) {
+		MessageDigest digest = digests.get();
+		for (ByteBuffer buffer : request.getMessage().asReadOnlyByteBufferList())
+			digest.update(buffer);
+		for (ByteBuffer buffer : request.getDigitalSignature().asReadOnlyByteBufferList())
+			digest.update(buffer);
+		for (ByteBuffer buffer : request.getMac().asReadOnlyByteBufferList())
+			digest.update(buffer);
+		return ByteString.copyFrom(digest.digest());
+	}
+
+	/*
+	 * An exact retransmission of the last request a key was answered gets the same answer again, read back from
+	 * the log. Anything else has its signature, or its mac inside a session, checked over the received message bytes
+	 * with the key named in the payload or the session, and only then is the message parsed. The key the request acts
+	 * on must be the one that signed it. Operations get the encoded key and turn it into an account id, the backend
+	 * only sees the key bytes of transfer destinations, which it looks up itself. Requests for an unknown or expired session fail with UNAUTHENTICATED, so the
+	 * client opens a new one.
+	 *
+	 * Every request is answered or its call closed with a status, a signature or mac that does not verify with
+	 * UNAUTHENTICATED and one signed by another key than the one it acts on with INVALID_ARGUMENT, since admission
+	 * control only gives back the permit of a call once it is closed. An operation returns null only when it answers
+	 * later or has answered itself.
+	 *
+	 * A copy of a request whose answer is kept waits for the answer of the copy that came first, until that answer is
+	 * in the log: run once the sequence number is used, it would be answered as if the request had been accepted.
+	 */
+	private <T extends Message> void handle(Payload request, StreamObserver<Payload> responseObserver, Class<T> type,
+			Function<T, ByteString> signerKey, Operation<T> operation) {
+		ByteString answering = null;
 		try {
-			SequenceNumberRequest snRequest = request.getMessage().unpack(SequenceNumberRequest.class);
-			boolean result = verifySignature(request.getDigitalSignature(), snRequest.getPublicKey(), request.getMessage());
+			SessionManager.Session session = null;
+			ByteString encodedKey = request.getPublicKey();
+			if (!request.getSessionId().isEmpty()) {
+				session = sessions.get(request.getSessionId());
+				if (session == null) {
+					responseObserver.onError(Status.UNAUTHENTICATED.withDescription("Unknown or expired session").asRuntimeException());
+					return;
+				}
+				encodedKey = session.getPublicKey();
+			}
+
+			ByteString requestDigest = requestDigest(request);
+			Payload cached = backend.cachedResponse(encodedKey, requestDigest);
+			if (cached != null) {
+				responseObserver.onNext(cached);
+				responseObserver.onCompleted();
+				return;
+			}
+
+			boolean result;
+			if (session != null)
+				result = sessions.verify(session, request.getMessage(), request.getMac());
+			else
+				result = verifySignature(request.getSignatureScheme(), request.getDigitalSignature(),
+						keyCache.get(encodedKey, request.getSignatureScheme()), request.getMessage());
 
-			if (!result)
+			if (!result) {
+				fail(responseObserver, Status.UNAUTHENTICATED.withDescription("Invalid signature"));
 				return;
+			}
 
-			PublicKey publicKey = decodePublicKey(snRequest.getPublicKey().toByteArray());
-			byte[] nonce = snRequest.getNonce().toByteArray();
+			T parsedRequest = Any.parseFrom(request.getMessage()).unpack(type);
+			if (!signerKey.apply(parsedRequest).equals(encodedKey)) {
+				fail(responseObserver, Status.INVALID_ARGUMENT.withDescription("Request is not signed by the key it acts on"));
+				return;
+			}
 
-			SequenceNumberResponse snResponse = backend.sequenceNumber(publicKey, nonce);
-			Any response = Any.pack(snResponse);
+			ByteString publicKey = encodedKey;
+			if (KEPT_ANSWERS.contains(type)) {
+				CompletableFuture<Payload> earlier = backend.answering(requestDigest);
+				if (earlier != null) {
+					AdmissionControl.parked();
+					earlier.whenComplete((payload, failure) -> {
+						if (failure != null) {
+							fail(responseObserver, Status.fromThrowable(failure));
+						} else {
+							responseObserver.onNext(payload);
+							responseObserver.onCompleted();
+						}
+					});
+					return;
+				}
+				answering = requestDigest;
+				// the first copy may have been answered since
+				cached = backend.cachedResponse(publicKey, requestDigest);
+				if (cached != null) {
+					backend.answered(publicKey, requestDigest, cached, false);
+					responseObserver.onNext(cached);
+					responseObserver.onCompleted();
+					return;
+				}
+			}
 
-			ByteString responseSignature = generateSignature(response.toByteArray(), publicKey);
-			Payload payload =  Payload.newBuilder()
-						.setMessage(response)
-						.setDigitalSignature(responseSignature).build();
+			SessionManager.Session requestSession = session;
+			Message response = operation.execute(parsedRequest, publicKey, later -> {
+				try {
+					respond(responseObserver, later, publicKey, requestDigest, requestSession);
+				} catch (Exception e) {
+					System.out.println(e.getMessage());
+					Status status = Status.INTERNAL.withDescription(e.getMessage());
+					backend.notAnswered(requestDigest, status.asException());
+					fail(responseObserver, status);
+				}
+			});
+			if (response == null)
+				return;
 
-			responseObserver.onNext(payload);
-			responseObserver.onCompleted();
+			respond(responseObserver, response, publicKey, requestDigest, session);
 		} catch (Exception e) {
-			System.out.println(e.getMessage());
+			Status status = statusOf(e);
+			if (answering != null)
+				backend.notAnswered(answering, status.asException());
+			fail(responseObserver, status);
 		}
 	}
 
-	@Override
-	public void openAccount(Payload request, StreamObserver<Payload> responseObserver) {
-		try {
-			OpenAccountRequest oar = request.getMessage().unpack(OpenAccountRequest.class);
-			boolean result = verifySignature(request.getDigitalSignature(), oar.getPublicKey(), request.getMessage());
-			PublicKey publicKey = decodePublicKey(oar.getPublicKey().toByteArray());
+	private static Status statusOf(Exception e) {
+		if (e instanceof StatusException)
+			return ((StatusException) e).getStatus();
+		if (e instanceof InvalidKeySpecException || e instanceof InvalidProtocolBufferException)
+			return Status.INVALID_ARGUMENT.withDescription(e.getMessage());
+		if (e instanceof GeneralSecurityException)
+			return Status.UNAUTHENTICATED.withDescription(e.getMessage());
+		System.out.println(e.getMessage());
+		return Status.INTERNAL.withDescription(e.getMessage());
+	}
 
-			if (result) {
-				OpenAccountResponse oaResponse = backend.openAccount(publicKey, oar.getSeqNum(), false);
+	// The call may already be closed, answered or cancelled by the client
+	private static void fail(StreamObserver<Payload> responseObserver, Status status) {
+		try {
+			responseObserver.onError(status.asRuntimeException());
+		} catch (IllegalStateException e) {
+			System.out.println(e.getMessage());
+		}
+	}
 
-				if (oaResponse == null)
-					return;
+	/*
+	 * Errors, sequence numbers and sessions are not kept, the request they answer has not changed anything. Neither are
+	 * checks and audits, which can be as long as the history of the account: a retransmission gets them built again.
+	 */
+	private void respond(StreamObserver<Payload> responseObserver, Message response, ByteString publicKey, ByteString requestDigest,
+			SessionManager.Session session) throws Exception {
+		Payload payload = sign(response, session);
+		backend.answered(publicKey, requestDigest, payload, !(response instanceof ErrorResponse || response instanceof SequenceNumberResponse
+				|| response instanceof SessionResponse || response instanceof CheckAccountResponse || response instanceof AuditResponse));
 
-				Any response = Any.pack(oaResponse);
+		responseObserver.onNext(payload);
+		responseObserver.onCompleted();
+	}
 
-				ByteString responseSignature = generateSignature(response.toByteArray(), publicKey);
-				Payload payload =  Payload.newBuilder()
-							.setMessage(response)
-							.setDigitalSignature(responseSignature).build();	
-				responseObserver.onNext(payload);
-				responseObserver.onCompleted();
+	private Payload sign(Message response, SessionManager.Session session) throws Exception {
+		ByteString message = Any.pack(response).toByteString();
+		Payload.Builder payload = Payload.newBuilder().setMessage(message);
+		if (session != null)
+			payload.setMac(sessions.mac(session, message));
+		else
+			payload.setDigitalSignature(generateSignature(message)).setSignatureScheme(crypto.getSignatureScheme());
+		return payload.build();
+	}
 
-			}
-		} catch (Exception e) {
-			System.out.println(e.getMessage());
+	/*
+	 * Runs the operation on the shard of the account, in sequence number order with its other requests, answering it
+	 * later if it has to wait. Either way the answer only goes out once what the operation logged is durable.
+	 *
+	 * A key gets an account id with the first request it signs, which is logged whether it succeeds or not, the same
+	 * way replaying the log registers it. Asking for a sequence number or being named as a destination adds no key.
+	 * The later requests of a key with no id yet, sent before the first one got through, wait for it.
+	 */
+	private Message sequenced(ByteString publicKey, long seqNum, Consumer<Message> respondLater, IntFunction<ReorderBuffer.Operation> operation)
+			throws Exception {
+		Consumer<Message> afterWrites = later -> backend.afterWrites(() -> respondLater.accept(later));
+		int id = seqNum == 1 ? backend.registerAccount(publicKey) : backend.accountId(publicKey);
+		Message response;
+		if (id >= 0) {
+			response = backend.execute(id, () -> {
+				Message ran = reorderBuffer.submit(id, seqNum, operation.apply(id), afterWrites);
+				if (seqNum == 1)
+					reorderBuffer.registered(publicKey, id);
+				return ran;
+			}).get();
+		} else if (seqNum > 1) {
+			response = reorderBuffer.submit(publicKey, seqNum, operation, afterWrites);
+		} else {
+			throw Status.INVALID_ARGUMENT.withDescription("No account for this key").asException();
 		}
+		if (response == null)
+			AdmissionControl.parked();
+		return response;
+	}
+
+	@Override
+	public void sequenceNumber(Payload request, StreamObserver<Payload> responseObserver) {
+		handle(request, responseObserver, SequenceNumberRequest.class, SequenceNumberRequest::getPublicKey,
+				(snRequest, publicKey, respondLater) -> backend.sequenceNumber(backend.accountId(publicKey), snRequest.getNonce().toByteArray()));
+	}
+
+	@Override
+	public void openSession(Payload request, StreamObserver<Payload> responseObserver) {
+		handle(request, responseObserver, SessionRequest.class, SessionRequest::getPublicKey,
+				(sr, publicKey, respondLater) -> {
+					SessionResponse response = sessions.open(publicKey, signatureScheme(request), sr);
+					// no room for another session, the client keeps signing its requests
+					if (response == null)
+						responseObserver.onError(Status.RESOURCE_EXHAUSTED.withDescription("Too many sessions").asRuntimeException());
+					return response;
+				});
+	}
+
+	@Override
+	public void openAccount(Payload request, StreamObserver<Payload> responseObserver) {
+		handle(request, responseObserver, OpenAccountRequest.class, OpenAccountRequest::getPublicKey,
+				(oar, publicKey, respondLater) -> {
+					SignatureScheme scheme = signatureScheme(request);
+					return sequenced(publicKey, oar.getSeqNum(), respondLater, id -> () -> backend.openAccount(id, oar.getSeqNum(), scheme, false));
+				});
 	}
 
 	@Override
 	public void sendAmount(Payload request, StreamObserver<Payload> responseObserver) {
-		
-		try {
-			SendAmountRequest sar = request.getMessage().unpack(SendAmountRequest.class);
-			boolean result = verifySignature(request.getDigitalSignature(), sar.getPublicKeySource(), request.getMessage());
-			PublicKey sendPublicKeyDestination = decodePublicKey(sar.getPublicKeyDestination().toByteArray());
-			PublicKey publicKey = decodePublicKey(sar.getPublicKeySource().toByteArray());
-			
-			if (result) {
-				SendAmountResponse saResponse = backend.sendAmount(publicKey, sendPublicKeyDestination, sar.getAmount(), sar.getSeqNum(), false);
-				if (saResponse == null)
-					return;
-					
-				Any response = Any.pack(saResponse);
-				
-				ByteString responseSignature = generateSignature(response.toByteArray(), publicKey);
-				Payload payload = Payload.newBuilder()
-							.setMessage(response)
-							.setDigitalSignature(responseSignature).build();
-				responseObserver.onNext(payload);
-				responseObserver.onCompleted();
-			}
-		}
-		catch(Exception e) {
-			System.out.println(e.getMessage());
-		}
+		handle(request, responseObserver, SendAmountRequest.class, SendAmountRequest::getPublicKeySource,
+				(sar, publicKey, respondLater) -> sequenced(publicKey, sar.getSeqNum(), respondLater,
+						id -> () -> backend.sendAmount(id, sar.getPublicKeyDestination(), sar.getAmount(), sar.getSeqNum(), false)));
+	}
+
+	@Override
+	public void sendAmountBatch(Payload request, StreamObserver<Payload> responseObserver) {
+		handle(request, responseObserver, SendAmountBatchRequest.class, SendAmountBatchRequest::getPublicKeySource,
+				(sabr, publicKey, respondLater) -> {
+					List<ByteString> destinationKeys = new ArrayList<>(sabr.getLegsCount());
+					int[] amounts = new int[sabr.getLegsCount()];
+					for (int i = 0; i < amounts.length; i++) {
+						destinationKeys.add(sabr.getLegs(i).getPublicKeyDestination());
+						amounts[i] = sabr.getLegs(i).getAmount();
+					}
+					return sequenced(publicKey, sabr.getSeqNum(), respondLater,
+							id -> () -> backend.sendAmountBatch(id, destinationKeys, amounts, sabr.getSeqNum(), false));
+				});
 	}
 
 	@Override
 	public void checkAccount(Payload request, StreamObserver<Payload> responseObserver) {
-		try {
-			CheckAccountRequest car = request.getMessage().unpack(CheckAccountRequest.class);
-			boolean result = verifySignature(request.getDigitalSignature(), car.getPublicKey(), request.getMessage());
-			PublicKey publicKey = decodePublicKey(car.getPublicKey().toByteArray());
-			
-			if (result) {
-				CheckAccountResponse caResponse = backend.checkAccount(publicKey, car.getSeqNum());
-				if (caResponse == null)
-					return;
-					
-				Any response = Any.pack(caResponse);
-				
-				ByteString responseSignature = generateSignature(response.toByteArray(), publicKey);
-				Payload payload = Payload.newBuilder()
-							.setMessage(response)
-							.setDigitalSignature(responseSignature).build();
-				responseObserver.onNext(payload);
-				responseObserver.onCompleted();
-			}
-		} catch (Exception e) {
-			System.out.println(e.getMessage());
-		}
+		handle(request, responseObserver, CheckAccountRequest.class, CheckAccountRequest::getPublicKey,
+				(car, publicKey, respondLater) -> sequenced(publicKey, car.getSeqNum(), respondLater,
+						id -> () -> backend.checkAccount(id, car.getSeqNum(), car.getSinceVersion())));
 	}
 	
 	@Override
 	public void receiveAmount(Payload request, StreamObserver<Payload> responseObserver) {
-	
-		try {
-			ReceiveAmountRequest rar = request.getMessage().unpack(ReceiveAmountRequest.class);
-			boolean result = verifySignature(request.getDigitalSignature(), rar.getPublicKey(), request.getMessage());
-			PublicKey publicKey = decodePublicKey(rar.getPublicKey().toByteArray());
-			
-			if (result) {
-				ReceiveAmountResponse raResponse = backend.receiveAmount(publicKey, rar.getSeqNum(), false);
-				if (raResponse == null)
-					return;
-					
-				Any response = Any.pack(raResponse);
-
-				ByteString responseSignature = generateSignature(response.toByteArray(), publicKey);
-				
-				Payload payload = Payload.newBuilder()
-							.setMessage(response)
-							.setDigitalSignature(responseSignature).build();
-	
-				
-				responseObserver.onNext(payload);
-				responseObserver.onCompleted();	
-			}
-		} catch (Exception e) {
-			System.out.println(e.getMessage());
-		}
+		handle(request, responseObserver, ReceiveAmountRequest.class, ReceiveAmountRequest::getPublicKey,
+				(rar, publicKey, respondLater) -> sequenced(publicKey, rar.getSeqNum(), respondLater, id -> () -> backend.receiveAmount(id, rar.getSeqNum(), false)));
 	}
 
 	@Override
 	public void audit(Payload request, StreamObserver<Payload> responseObserver) {
-		try {
-			AuditRequest ar = request.getMessage().unpack(AuditRequest.class);		
-			boolean result = verifySignature(request.getDigitalSignature(), ar.getPublicKey(), request.getMessage());
+		handle(request, responseObserver, AuditRequest.class, AuditRequest::getPublicKey,
+				(ar, publicKey, respondLater) -> {
+					Message response = sequenced(publicKey, ar.getSeqNum(), later -> {
+						try {
+							respondLater.accept(withAuditLines(publicKey, later));
+						} catch (IOException e) {
+							System.out.println(e.getMessage());
+							respondLater.accept(ErrorResponse.newBuilder().setErrorMessage(e.getMessage()).setSeqNum(ar.getSeqNum()).build());
+						}
+					}, id -> () -> backend.audit(id, ar.getSeqNum()));
+					return withAuditLines(publicKey, response);
+				});
+	}
 
-			if (result) {
-				PublicKey publicKey = decodePublicKey(ar.getPublicKey().toByteArray());
-				AuditResponse aResponse = backend.audit(publicKey, ar.getSeqNum());
+	// The answer of an audit is only complete once its record is durable, when sequenced hands it out
+	private Message withAuditLines(ByteString publicKey, Message response) throws IOException {
+		return response instanceof AuditResponse ? backend.auditLines(backend.accountId(publicKey), (AuditResponse) response) : response;
+	}
 
-				if (aResponse == null)
-					return;
-					
-				Any response = Any.pack(aResponse);
-	
-				ByteString responseSignature = generateSignature(response.toByteArray(), publicKey);
-				Payload payload = Payload.newBuilder()
-						.setMessage(response)
-						.setDigitalSignature(responseSignature).build();
-				
-				responseObserver.onNext(payload);
-				responseObserver.onCompleted();			
+	// Takes no sequence number and answers nothing right away, events are signed, or authenticated with the session, as they are sent
+	@Override
+	public void subscribe(Payload request, StreamObserver<Payload> responseObserver) {
+		handle(request, responseObserver, SubscribeRequest.class, SubscribeRequest::getPublicKey,
+				(sr, publicKey, respondLater) -> {
+					int id = backend.accountId(publicKey);
+					if (id < 0)
+						throw Status.INVALID_ARGUMENT.withDescription("No account for this key").asException();
+					SessionManager.Session session = request.getSessionId().isEmpty() ? null : sessions.get(request.getSessionId());
+					events.subscribe(publicKey, id, sr, (ServerCallStreamObserver<Payload>) responseObserver, event -> sign(event, session));
+					return null;
+				});
+	}
+
+	// Like subscribe it does not take a sequence number, reading the history changes nothing
+	@Override
+	public void auditPages(Payload request, StreamObserver<Payload> responseObserver) {
+		handle(request, responseObserver, AuditPageRequest.class, AuditPageRequest::getPublicKey,
+				(apr, publicKey, respondLater) -> {
+					int id = backend.accountId(publicKey);
+					if (id < 0)
+						throw Status.INVALID_ARGUMENT.withDescription("No account for this key").asException();
+					int pageSize = apr.getPageSize() <= 0 ? 100 : Math.min(apr.getPageSize(), maxAuditPageSize);
+					SessionManager.Session session = request.getSessionId().isEmpty() ? null : sessions.get(request.getSessionId());
+					new AuditStream(backend, backend.historyPositions(id), publicKey, apr, pageSize, (ServerCallStreamObserver<Payload>) responseObserver,
+							page -> sign(page, session), streamExecutor).start();
+					return null;
+				});
+	}
+
+	/*
+	 * Requests on a stream go through the same handling as the unary calls. Only the type url of the Any is read to
+	 * pick the method, the message itself is still parsed after its signature checks out. Unknown types are dropped.
+	 * Every request goes through admission control first, one that is refused ends the stream.
+	 */
+	@Override
+	public StreamObserver<Payload> stream(StreamObserver<Payload> responseObserver) {
+		String peer = AdmissionControl.PEER.get();
+		return new StreamSession((ServerCallStreamObserver<Payload>) responseObserver, streamWindow, streamExecutor, (request, answer) -> {
+			Status refused = admission.admit(request, peer);
+			if (refused != null) {
+				answer.onError(refused.asRuntimeException());
+				return;
 			}
-		} catch (Exception e) {
-			System.out.println(e.getMessage());
-		}
+			try {
+				StreamSession.Handler handler = streamRoutes.get(Any.parseFrom(request.getMessage()).getTypeUrl());
+				if (handler != null)
+					handler.handle(request, answer);
+			} catch (Exception e) {
+				System.out.println(e.getMessage());
+			}
+		});
 	}
-}
\ No newline at end of file
+}
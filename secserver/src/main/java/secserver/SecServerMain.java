@@ -3,24 +3,142 @@ package secserver;
 import io.grpc.BindableService;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
 
 import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class SecServerMain {
 
 	public static void main(String[] args) throws Exception {
 		System.out.println(SecServerMain.class.getSimpleName());
 
-		FileWriter fos = new FileWriter("log.txt", true);
+		WriteAheadLog log = new WriteAheadLog(Path.of(System.getProperty("secserver.log", "log.wal")),
+				Long.getLong("secserver.log.syncIntervalMillis", 0), Integer.getInteger("secserver.log.syncBatchRecords", 1024));
+
+		AuditIndex auditIndex = new AuditIndex(Path.of(System.getProperty("secserver.log.index", "log.idx")));
+		auditIndex.recover(log);
+		log.addListener(auditIndex);
+
+		Path legacyLog = Path.of("log.txt");
+		if (log.endPosition() == 0 && Files.exists(legacyLog))
+			importLegacyLog(legacyLog, log);
 
 		KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
 		ks.load(new FileInputStream("server.jks"), "alentejanomau12".toCharArray());
 
-		final BindableService impl = new SecServerImpl(fos, ks);
+		PublicKeyCache keyCache = new PublicKeyCache(Integer.getInteger("secserver.keyCache.size", 100000));
+		MetricsReporter metrics = new MetricsReporter(Long.getLong("secserver.metrics.intervalMillis", 0));
+		metrics.register("keyCache", keyCache::toString);
+
+		SnapshotStore snapshots = new SnapshotStore(Path.of(System.getProperty("secserver.snapshot.dir", "snapshots")),
+				Integer.getInteger("secserver.snapshot.retained", 2));
+		AccountRegistry registry;
+		AccountStore accounts;
+		Path tableCheckpoint = null;
+		if (Boolean.getBoolean("secserver.accounts.mapped")) {
+			Path tableDirectory = Path.of(System.getProperty("secserver.accounts.dir", "accounts"));
+			MappedAccountTable table = new MappedAccountTable(tableDirectory, log.endPosition());
+			tableCheckpoint = MappedAccountTable.checkpointDirectory(tableDirectory);
+			registry = table;
+			accounts = table;
+		} else {
+			registry = new HeapAccountRegistry();
+			accounts = new HeapAccountStore();
+		}
+
+		// Runs the requests of streams, sends subscription events and audit pages and answers requests that waited on a
+		// shard, blocking on the crypto pool like the gRPC threads do for unary calls. None of that can be turned away once
+		// it was accepted, so a full queue makes the thread handing the work over run it itself
+		WorkerPool streamExecutor = WorkerPool.bounded("stream",
+				Integer.getInteger("secserver.stream.threads", 4 * Runtime.getRuntime().availableProcessors()),
+				Integer.getInteger("secserver.stream.maxQueued", 4096), true);
+		metrics.register("pool.stream", streamExecutor::toString);
+
+		AccountShards shards = new AccountShards(Integer.getInteger("secserver.shards", Runtime.getRuntime().availableProcessors()), streamExecutor);
+		SecServerBackend backend = new SecServerBackend(log, snapshots, auditIndex, registry, accounts, shards);
+		Checkpointer checkpointer = new Checkpointer(backend, snapshots, log,
+				Long.getLong("secserver.snapshot.intervalMillis", 60000), Long.getLong("secserver.snapshot.minLogBytes", 1 << 20),
+				tableCheckpoint);
+
+		CryptoService crypto = new CryptoService((PrivateKey) ks.getKey("private", "alentejanomau12".toCharArray()),
+				Integer.getInteger("secserver.crypto.threads", Runtime.getRuntime().availableProcessors()),
+				Integer.getInteger("secserver.crypto.maxQueued", 1024));
+		metrics.register("pool.crypto", crypto.getPool()::toString);
+		metrics.register("crypto.queue", crypto.getQueueTime()::toString);
+		metrics.register("crypto.sign", crypto.getSignTime()::toString);
+		metrics.register("crypto.verify", crypto.getVerifyTime()::toString);
+
+		RequestTimer requestTimer = new RequestTimer();
+		metrics.register("requests", requestTimer.getRequests()::toString);
+
+		ReorderBuffer reorderBuffer = new ReorderBuffer(backend, Integer.getInteger("secserver.reorder.window", 64),
+				Long.getLong("secserver.reorder.timeoutMillis", 2000));
+		metrics.register("reorder", reorderBuffer::toString);
+
+		SessionManager sessions = new SessionManager(Integer.getInteger("secserver.session.max", 100000),
+				Long.getLong("secserver.session.ttlMillis", 3600000));
+		metrics.register("sessions", sessions::toString);
 
-		Server secserver = ServerBuilder.forPort(8888).addService(impl).build();
+		AccountEvents events = new AccountEvents(log, auditIndex, backend, streamExecutor,
+				Integer.getInteger("secserver.subscribe.maxQueued", 1024));
+		log.addListener(events);
+
+		AdmissionControl admission = new AdmissionControl(sessions,
+				Double.parseDouble(System.getProperty("secserver.admission.globalRate", "0")),
+				Double.parseDouble(System.getProperty("secserver.admission.peerRate", "0")),
+				Double.parseDouble(System.getProperty("secserver.admission.keyRate", "0")),
+				Double.parseDouble(System.getProperty("secserver.admission.burstSeconds", "2")),
+				Integer.getInteger("secserver.admission.maxConcurrent", 256),
+				Long.getLong("secserver.admission.targetLatencyMillis", 500),
+				Integer.getInteger("secserver.admission.maxTracked", 100000));
+		metrics.register("admission", admission::toString);
+
+		final BindableService impl = new SecServerImpl(backend, keyCache, crypto, reorderBuffer, sessions, events, streamExecutor,
+				Integer.getInteger("secserver.stream.window", 32), Integer.getInteger("secserver.audit.maxPageSize", 1000), admission);
+
+		ServerServiceDefinition service = ServerInterceptors.intercept(PayloadMarshaller.withAliasingRequests(impl.bindService()), requestTimer);
+		List<WorkerPool> callPools = new ArrayList<>();
+		CallExecutors callExecutors = callExecutors(System.getProperty("secserver.executor", "pools"), callPools, metrics);
+		ServerBuilder<?> builder = ServerBuilder.forPort(8888);
+		if (callExecutors != null) {
+			builder.directExecutor();
+			service = ServerInterceptors.intercept(service, callExecutors);
+		}
+		service = ServerInterceptors.intercept(service, admission);
+		Server secserver = builder.addService(service).build();
+
+		// Stops taking requests and closes everything in order, so a mapped account table is marked clean
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				events.close();
+				secserver.shutdown();
+				secserver.awaitTermination(10, TimeUnit.SECONDS);
+				for (WorkerPool pool : callPools)
+					pool.close();
+
+				// a snapshot being taken needs the shards to copy the accounts
+				checkpointer.close();
+				shards.close();
+				streamExecutor.close();
+				reorderBuffer.close();
+				crypto.close();
+				metrics.close();
+				backend.close();
+				log.close();
+				auditIndex.close();
+			} catch (Exception e) {
+				System.out.println("Shutdown failed: " + e.getMessage());
+			}
+		}));
 
 		secserver.start();
 
@@ -28,9 +146,54 @@ public class SecServerMain {
 
 		secserver.awaitTermination();
 
-		fos.close();
+	}
 
+	/*
+	 * "pools" runs reads and writes on their own bounded pools, "virtual" gives every call a virtual thread where the
+	 * JDK has them and falls back to the pools elsewhere, "grpc" leaves the calls on the default cached pool of gRPC.
+	 */
+	private static CallExecutors callExecutors(String mode, List<WorkerPool> pools, MetricsReporter metrics) {
+		switch (mode) {
+			case "virtual":
+				WorkerPool virtual = WorkerPool.virtual();
+				if (virtual == null) {
+					System.out.println("Virtual threads are not available on this JDK, using pools");
+					return pools(pools, metrics);
+				}
+				pools.add(virtual);
+				metrics.register("pool.calls", virtual::toString);
+				return new CallExecutors(virtual, virtual);
+			case "pools":
+				return pools(pools, metrics);
+			case "grpc":
+				return null;
+			default:
+				throw new IllegalArgumentException("Unknown secserver.executor " + mode);
+		}
 	}
 
+	private static CallExecutors pools(List<WorkerPool> pools, MetricsReporter metrics) {
+		int cores = Runtime.getRuntime().availableProcessors();
+		WorkerPool reads = WorkerPool.bounded("reads", Integer.getInteger("secserver.executor.readThreads", 4 * cores),
+				Integer.getInteger("secserver.executor.readQueue", 1024), false);
+		WorkerPool writes = WorkerPool.bounded("writes", Integer.getInteger("secserver.executor.writeThreads", 4 * cores),
+				Integer.getInteger("secserver.executor.writeQueue", 1024), false);
+		pools.add(reads);
+		pools.add(writes);
+		metrics.register("pool.reads", reads::toString);
+		metrics.register("pool.writes", writes::toString);
+		return new CallExecutors(reads, writes);
+	}
 
+	// Carries over the history kept by older versions of the server in the text log
+	private static void importLegacyLog(Path legacyLog, LogStorage log) throws Exception {
+		List<CompletableFuture<Long>> appends = new ArrayList<>();
+		for (String line : Files.readAllLines(legacyLog)) {
+			LogRecord record = LogRecord.fromLegacyLine(line);
+			if (record != null)
+				appends.add(log.append(record));
+		}
+		CompletableFuture.allOf(appends.toArray(new CompletableFuture<?>[0])).join();
+		System.out.println("Imported " + appends.size() + " records from " + legacyLog);
+	}
 }
@@ -0,0 +1,154 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+import secserver.grpc.Secserver.SessionRequest;
+import secserver.grpc.Secserver.SessionResponse;
+import secserver.grpc.Secserver.SignatureScheme;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Sessions opened by a signed handshake, after which requests and answers are authenticated with HMAC-SHA256
+ * instead of RSA signatures. Each side sends an ephemeral X25519 key, and one key per direction is derived from
+ * their shared secret with HKDF-SHA256. Sessions live in memory until they expire, a restart ends all of them.
+ */
+public class SessionManager {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] CLIENT_INFO = "secserver client".getBytes();
+    private static final byte[] SERVER_INFO = "secserver server".getBytes();
+
+    public static class Session {
+        private final ByteString id;
+        private final ByteString publicKey;
+        private final SignatureScheme signatureScheme;
+        private final SecretKeySpec clientKey;
+        private final SecretKeySpec serverKey;
+        private final long expiresAt;
+
+        private Session(ByteString id, ByteString publicKey, SignatureScheme signatureScheme, SecretKeySpec clientKey,
+                SecretKeySpec serverKey, long expiresAt) {
+            this.id = id;
+            this.publicKey = publicKey;
+            this.signatureScheme = signatureScheme;
+            this.clientKey = clientKey;
+            this.serverKey = serverKey;
+            this.expiresAt = expiresAt;
+        }
+
+        public ByteString getId() {
+            return id;
+        }
+
+        public ByteString getPublicKey() {
+            return publicKey;
+        }
+
+        // Scheme of the signature on the handshake
+        public SignatureScheme getSignatureScheme() {
+            return signatureScheme;
+        }
+    }
+
+    private final ConcurrentHashMap<ByteString, Session> sessions = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final long ttlMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(MAC_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public SessionManager(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+    }
+
+    // Returns null when the server already holds as many live sessions as it is allowed to
+    public SessionResponse open(ByteString publicKey, SignatureScheme signatureScheme, SessionRequest request) throws GeneralSecurityException {
+        if (sessions.size() >= capacity) {
+            long now = System.currentTimeMillis();
+            sessions.values().removeIf(session -> session.expiresAt <= now);
+            if (sessions.size() >= capacity) {
+                rejected.increment();
+                return null;
+            }
+        }
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("X25519");
+        KeyPair share = generator.generateKeyPair();
+        KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+        agreement.init(share.getPrivate());
+        agreement.doPhase(KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(request.getClientShare().toByteArray())), true);
+        byte[] secret = agreement.generateSecret();
+
+        byte[] id = new byte[16];
+        random.nextBytes(id);
+        ByteString sessionId = ByteString.copyFrom(id);
+
+        byte[] pseudoRandomKey = hmac(request.getNonce().toByteArray(), secret);
+        Session session = new Session(sessionId, publicKey, signatureScheme,
+                new SecretKeySpec(hmac(pseudoRandomKey, CLIENT_INFO, id, new byte[] { 1 }), MAC_ALGORITHM),
+                new SecretKeySpec(hmac(pseudoRandomKey, SERVER_INFO, id, new byte[] { 1 }), MAC_ALGORITHM),
+                System.currentTimeMillis() + ttlMillis);
+        sessions.put(sessionId, session);
+        opened.increment();
+
+        return SessionResponse.newBuilder()
+                .setSessionId(sessionId)
+                .setServerShare(ByteString.copyFrom(share.getPublic().getEncoded()))
+                .setNonce(request.getNonce())
+                .setTtlMillis(ttlMillis).build();
+    }
+
+    // Returns null for unknown and expired sessions
+    public Session get(ByteString sessionId) {
+        Session session = sessions.get(sessionId);
+        if (session != null && session.expiresAt <= System.currentTimeMillis()) {
+            sessions.remove(sessionId, session);
+            return null;
+        }
+        return session;
+    }
+
+    public boolean verify(Session session, ByteString message, ByteString mac) throws InvalidKeyException {
+        return MessageDigest.isEqual(mac(session.clientKey, message), mac.toByteArray());
+    }
+
+    public ByteString mac(Session session, ByteString message) throws InvalidKeyException {
+        return ByteString.copyFrom(mac(session.serverKey, message));
+    }
+
+    private byte[] mac(SecretKeySpec key, ByteString message) throws InvalidKeyException {
+        Mac mac = macs.get();
+        mac.init(key);
+        for (ByteBuffer buffer : message.asReadOnlyByteBufferList())
+            mac.update(buffer);
+        return mac.doFinal();
+    }
+
+    private byte[] hmac(byte[] key, byte[]... parts) throws InvalidKeyException {
+        Mac mac = macs.get();
+        mac.init(new SecretKeySpec(key.length == 0 ? new byte[32] : key, MAC_ALGORITHM));
+        for (byte[] part : parts)
+            mac.update(part);
+        return mac.doFinal();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("live=%d opened=%d rejected=%d", sessions.size(), opened.sum(), rejected.sum());
+    }
+}
@@ -0,0 +1,147 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * Snapshot files are named after the log position they cover. Keys are written in account id order,
+ * followed by the sequence number and account of every id, with its versions, pending transactions refer to their
+ * source by id.
+ */
+public class SnapshotStore {
+    private static final int MAGIC = 0x53454353;
+    private static final int VERSION = 3;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+
+    private final Path directory;
+    private final int retained;
+
+    public SnapshotStore(Path directory, int retained) throws IOException {
+        this.directory = directory;
+        this.retained = Math.max(1, retained);
+        Files.createDirectories(directory);
+    }
+
+    public void write(StateSnapshot snapshot) throws IOException {
+        Path temporary = directory.resolve(fileName(snapshot.getPosition()) + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32C());
+            DataOutputStream out = new DataOutputStream(checked);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(snapshot.getPosition());
+
+            List<ByteString> keys = snapshot.getKeys();
+            out.writeInt(keys.size());
+            for (int id = 0; id < keys.size(); id++) {
+                out.writeInt(keys.get(id).size());
+                keys.get(id).writeTo(out);
+                out.writeLong(snapshot.getSequenceNumbers()[id]);
+
+                Account account = snapshot.getAccounts()[id];
+                out.writeBoolean(account != null);
+                if (account == null)
+                    continue;
+
+                out.writeInt(account.getCurrentBalance());
+                out.writeLong(account.getVersion());
+                out.writeLong(account.getClearedVersion());
+                out.writeInt(account.getPendingTransactions().size());
+                for (Transaction transaction : account.getPendingTransactions()) {
+                    out.writeInt(transaction.getSourceId());
+                    out.writeInt(transaction.getAmount());
+                    out.writeLong(transaction.getVersion());
+                }
+            }
+
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temporary, directory.resolve(fileName(snapshot.getPosition())), StandardCopyOption.ATOMIC_MOVE);
+        prune();
+    }
+
+    // Returns the newest snapshot that can be read back completely, or null if there is none
+    public StateSnapshot loadLatest() throws IOException {
+        List<Path> snapshots = list();
+        Collections.reverse(snapshots);
+
+        for (Path path : snapshots) {
+            try {
+                return read(path);
+            } catch (Exception e) {
+                System.out.println("Ignoring snapshot " + path.getFileName() + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private StateSnapshot read(Path path) throws Exception {
+        try (InputStream file = Files.newInputStream(path)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file, 1 << 16), new CRC32C());
+            DataInputStream in = new DataInputStream(checked);
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("not a snapshot file of this version");
+            long position = in.readLong();
+
+            int count = in.readInt();
+            List<ByteString> keys = new ArrayList<>(count);
+            long[] sequenceNumbers = new long[count];
+            Account[] accounts = new Account[count];
+            for (int id = 0; id < count; id++) {
+                byte[] encoded = new byte[in.readInt()];
+                in.readFully(encoded);
+                keys.add(ByteString.copyFrom(encoded));
+                sequenceNumbers[id] = in.readLong();
+
+                if (!in.readBoolean())
+                    continue;
+
+                Account account = new Account(in.readInt(), in.readLong(), in.readLong());
+                int pendingCount = in.readInt();
+                for (int j = 0; j < pendingCount; j++)
+                    account.addTransaction(new Transaction(in.readInt(), in.readInt(), in.readLong()));
+                accounts[id] = account;
+            }
+
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected)
+                throw new IOException("checksum mismatch");
+
+            return new StateSnapshot(position, keys, sequenceNumbers, accounts);
+        }
+    }
+
+    private void prune() throws IOException {
+        List<Path> snapshots = list();
+        for (int i = 0; i < snapshots.size() - retained; i++)
+            Files.deleteIfExists(snapshots.get(i));
+    }
+
+    // Complete snapshot files, oldest first
+    private List<Path> list() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static String fileName(long position) {
+        return String.format("%s%020d%s", PREFIX, position, SUFFIX);
+    }
+}
@@ -0,0 +1,37 @@
+package secserver;
+
+import com.google.protobuf.ByteString;
+
+import java.util.List;
+
+// Copy of the backend state covering every record of the log before position, indexed by account id
+public class StateSnapshot {
+    private final long position;
+    private final List<ByteString> keys;
+    private final long[] sequenceNumbers;
+    private final Account[] accounts;
+
+    public StateSnapshot(long position, List<ByteString> keys, long[] sequenceNumbers, Account[] accounts) {
+        this.position = position;
+        this.keys = keys;
+        this.sequenceNumbers = sequenceNumbers;
+        this.accounts = accounts;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public List<ByteString> getKeys() {
+        return keys;
+    }
+
+    public long[] getSequenceNumbers() {
+        return sequenceNumbers;
+    }
+
+    // Null where the key has no account
+    public Account[] getAccounts() {
+        return accounts;
+    }
+}
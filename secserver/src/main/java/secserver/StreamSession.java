@@ -0,0 +1,147 @@
+package secserver;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import secserver.grpc.Secserver.Payload;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+ * One long-lived stream of requests from a client, each answered on the same stream with its requestId. Requests
+ * are handed to the executor as they arrive, so the signatures of consecutive ones are checked side by side on the
+ * crypto pool, while the reorder buffer still runs the operations of an account in sequence number order.
+ *
+ * At most window requests are taken off the stream and not handled yet. Another one is only asked for when a
+ * request is done and the client is reading its answers, so a client that sends faster than it reads is held back
+ * by HTTP/2 flow control instead of filling buffers on the server.
+ */
+public class StreamSession implements StreamObserver<Payload> {
+    public interface Handler {
+        void handle(Payload request, StreamObserver<Payload> responseObserver);
+    }
+
+    private final ServerCallStreamObserver<Payload> responses;
+    private final Executor executor;
+    private final Handler handler;
+
+    private int running = 0;
+    // Requests done while the client was not reading, asked for once it is ready again
+    private int owed = 0;
+    private boolean halfClosed = false;
+    private boolean closed = false;
+
+    public StreamSession(ServerCallStreamObserver<Payload> responses, int window, Executor executor, Handler handler) {
+        this.responses = responses;
+        this.executor = executor;
+        this.handler = handler;
+
+        responses.disableAutoRequest();
+        responses.setOnReadyHandler(this::ready);
+        responses.setOnCancelHandler(() -> {
+            synchronized (this) {
+                closed = true;
+            }
+        });
+        responses.request(window);
+    }
+
+    @Override
+    public void onNext(Payload request) {
+        synchronized (this) {
+            running++;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    handler.handle(request, new Answer(request.getRequestId()));
+                } finally {
+                    done();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            done();
+        }
+    }
+
+    // The client sends no more requests, the stream ends once the ones being handled are answered
+    @Override
+    public synchronized void onCompleted() {
+        halfClosed = true;
+        if (running == 0)
+            complete();
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        closed = true;
+    }
+
+    private synchronized void done() {
+        running--;
+        if (closed)
+            return;
+
+        if (responses.isReady())
+            responses.request(1);
+        else
+            owed++;
+        if (halfClosed && running == 0)
+            complete();
+    }
+
+    private synchronized void ready() {
+        if (closed || owed == 0)
+            return;
+        responses.request(owed);
+        owed = 0;
+    }
+
+    private synchronized void send(Payload response) {
+        if (!closed)
+            responses.onNext(response);
+    }
+
+    private synchronized void complete() {
+        if (closed)
+            return;
+        closed = true;
+        responses.onCompleted();
+    }
+
+    private synchronized void fail(Throwable t) {
+        if (closed)
+            return;
+        closed = true;
+        responses.onError(t);
+    }
+
+    /*
+     * What SecServerImpl answers a single request with. Its answer goes out tagged with the requestId, an error ends
+     * the whole stream, which only happens for an unknown session that the client has to replace anyway, a handshake
+     * the server has no room for, a request admission control refused or one that fails its checks, after which the
+     * client goes on with separate calls. Answers that come after the stream is closed, for requests the reorder buffer
+     * held back, are dropped.
+     */
+    private class Answer implements StreamObserver<Payload> {
+        private final long requestId;
+
+        private Answer(long requestId) {
+            this.requestId = requestId;
+        }
+
+        @Override
+        public void onNext(Payload response) {
+            send(response.toBuilder().setRequestId(requestId).build());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            fail(t);
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+}
@@ -1,22 +1,27 @@
 package secserver;
 
-import java.security.PublicKey;
-
 public class Transaction {
-    private PublicKey publicKeySource;
+    private int sourceId;
     private int amount;
+    // Version the account reached when the transaction was added to it
+    private long version;
+
+    public Transaction(int sourceId, int amount) {
+        this(sourceId, amount, 0);
+    }
 
-    public Transaction(PublicKey publicKeySource, int amount) {
-        this.publicKeySource = publicKeySource;
+    public Transaction(int sourceId, int amount, long version) {
+        this.sourceId = sourceId;
         this.amount = amount;
+        this.version = version;
     }
 
-    public PublicKey getPublicKeySource() {
-        return publicKeySource;
+    public int getSourceId() {
+        return sourceId;
     }
 
-    public void setPublicKeySource(PublicKey publicKeySource) {
-        this.publicKeySource = publicKeySource;
+    public void setSourceId(int sourceId) {
+        this.sourceId = sourceId;
     }
 
     public int getAmount() {
@@ -27,4 +32,8 @@ public class Transaction {
         this.amount = amount;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
 }
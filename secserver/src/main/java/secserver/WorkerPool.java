@@ -0,0 +1,103 @@
+package secserver;
+
+import java.io.Closeable;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A named executor that measures itself: a fixed number of daemon threads in front of a bounded queue, or a virtual
+ * thread per task on JDKs that have them. A full queue either rejects the task or, for work the caller can just as
+ * well do itself, runs it on the calling thread. toString reports how busy the threads were since the previous report,
+ * how long tasks waited and how many were turned away, which is what a pool is sized by.
+ */
+public class WorkerPool implements Executor, Closeable {
+    private final ExecutorService executor;
+    private final int threads;
+    private final int maxQueued;
+    private final boolean callerRunsWhenFull;
+    private final BlockingQueue<Runnable> queue;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LatencyStats queueTime = new LatencyStats();
+    private long reportedAt = System.nanoTime();
+    private long reportedBusyNanos = 0;
+
+    private WorkerPool(ExecutorService executor, int threads, int maxQueued, boolean callerRunsWhenFull, BlockingQueue<Runnable> queue) {
+        this.executor = executor;
+        this.threads = threads;
+        this.maxQueued = maxQueued;
+        this.callerRunsWhenFull = callerRunsWhenFull;
+        this.queue = queue;
+    }
+
+    public static WorkerPool bounded(String name, int threads, int maxQueued, boolean callerRunsWhenFull) {
+        threads = Math.max(1, threads);
+        maxQueued = Math.max(1, maxQueued);
+        AtomicInteger created = new AtomicInteger();
+        BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(maxQueued);
+        ExecutorService executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + created.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new WorkerPool(executor, threads, maxQueued, callerRunsWhenFull, queue);
+    }
+
+    // Looked up by reflection so the server still builds for Java 11, null where the JDK has no virtual threads
+    public static WorkerPool virtual() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return new WorkerPool(executor, 0, 0, false, null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        long submitted = System.nanoTime();
+        Runnable measured = () -> {
+            long start = System.nanoTime();
+            queueTime.record(start - submitted);
+            active.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+                busyNanos.add(System.nanoTime() - start);
+            }
+        };
+
+        try {
+            executor.execute(measured);
+        } catch (RejectedExecutionException e) {
+            if (!callerRunsWhenFull || executor.isShutdown()) {
+                rejected.increment();
+                throw e;
+            }
+            measured.run();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        long now = System.nanoTime();
+        long busy = busyNanos.sum();
+        double utilization = threads == 0 || now == reportedAt ? 0.0 : 100.0 * (busy - reportedBusyNanos) / threads / (now - reportedAt);
+        reportedAt = now;
+        reportedBusyNanos = busy;
+
+        if (threads == 0)
+            return String.format("virtual active=%d rejected=%d wait: %s", active.get(), rejected.sum(), queueTime);
+        return String.format("threads=%d active=%d utilization=%.0f%% queued=%d/%d rejected=%d wait: %s", threads, active.get(),
+                utilization, queue.size(), maxQueued, rejected.sum(), queueTime);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
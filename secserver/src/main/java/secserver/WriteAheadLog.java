@@ -0,0 +1,310 @@
+package secserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/*
+ * Binary log made of [length][crc32c][record] frames.
+ * Appends are queued and a single writer thread turns everything queued into one write + fsync (group commit),
+ * waiting at most syncIntervalMillis for syncBatchRecords records to accumulate before syncing.
+ */
+public class WriteAheadLog implements LogStorage {
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private static class PendingAppend {
+        private final long position;
+        private final LogRecord record;
+        private final ByteBuffer frame;
+        private final CompletableFuture<Long> durable = new CompletableFuture<>();
+
+        private PendingAppend(long position, LogRecord record, ByteBuffer frame) {
+            this.position = position;
+            this.record = record;
+            this.frame = frame;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long syncIntervalNanos;
+    private final int syncBatchRecords;
+    private final Thread writer;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Object lock = new Object();
+    private List<PendingAppend> pending = new ArrayList<>();
+    private long nextPosition;
+    private boolean closed = false;
+    private IOException failure;
+
+    private volatile long durablePosition;
+
+    public WriteAheadLog(Path path, long syncIntervalMillis, int syncBatchRecords) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        this.syncBatchRecords = Math.max(1, syncBatchRecords);
+
+        this.nextPosition = recover();
+        this.durablePosition = nextPosition;
+
+        this.writer = new Thread(this::writeLoop, "wal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // Drops a torn or corrupted tail left behind by a crash in the middle of a write
+    private long recover() throws IOException {
+        long size = channel.size();
+        long end;
+        try {
+            end = scan(0, size, null);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            // only visitors throw anything else
+            throw new IllegalStateException(e);
+        }
+
+        if (end < size) {
+            channel.truncate(end);
+            channel.force(true);
+        }
+        return end;
+    }
+
+    @Override
+    public Appended sequence(LogRecord record) {
+        int size = record.serializedSize();
+        // scan would take a larger frame for a torn tail and recovery would cut the log there
+        if (size > MAX_RECORD_SIZE)
+            return new Appended(-1, CompletableFuture.failedFuture(new IOException("record of " + size + " bytes is larger than " + MAX_RECORD_SIZE)));
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + size);
+        frame.putInt(size).putInt(0);
+        record.writeTo(frame);
+        frame.putInt(4, checksum(frame.duplicate().position(HEADER_SIZE).limit(HEADER_SIZE + size)));
+        frame.flip();
+
+        PendingAppend append;
+        synchronized (lock) {
+            if (closed)
+                return new Appended(-1, CompletableFuture.failedFuture(new IOException("log is closed")));
+            if (failure != null)
+                return new Appended(-1, CompletableFuture.failedFuture(failure));
+
+            append = new PendingAppend(nextPosition, record, frame);
+            nextPosition += frame.remaining();
+            pending.add(append);
+            if (pending.size() == 1 || pending.size() >= syncBatchRecords)
+                lock.notifyAll();
+        }
+        return new Appended(append.position, append.durable);
+    }
+
+    private void writeLoop() {
+        List<PendingAppend> batch = new ArrayList<>();
+
+        while (true) {
+            synchronized (lock) {
+                try {
+                    while (pending.isEmpty() && !closed)
+                        lock.wait();
+                    if (pending.isEmpty())
+                        return;
+
+                    long deadline = System.nanoTime() + syncIntervalNanos;
+                    long remaining = syncIntervalNanos;
+                    while (pending.size() < syncBatchRecords && !closed && remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                        remaining = deadline - System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                List<PendingAppend> swap = pending;
+                pending = batch;
+                batch = swap;
+            }
+
+            try {
+                writeBatch(batch);
+                notifyListeners(batch);
+                for (PendingAppend append : batch)
+                    append.durable.complete(append.position);
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    batch.addAll(pending);
+                    pending.clear();
+                }
+                for (PendingAppend append : batch)
+                    append.durable.completeExceptionally(e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void notifyListeners(List<PendingAppend> batch) {
+        for (Listener listener : listeners) {
+            try {
+                for (PendingAppend append : batch)
+                    listener.onDurable(append.position, append.record);
+                listener.onSynced(durablePosition);
+            } catch (IOException e) {
+                System.out.println("Log listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingAppend> batch) throws IOException {
+        ByteBuffer[] frames = new ByteBuffer[batch.size()];
+        long remaining = 0;
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = batch.get(i).frame;
+            remaining += frames[i].remaining();
+        }
+
+        long end = durablePosition + remaining;
+        channel.position(durablePosition);
+        while (remaining > 0)
+            remaining -= channel.write(frames);
+        channel.force(false);
+
+        durablePosition = end;
+    }
+
+    @Override
+    public void replay(long fromPosition, long toPosition, Visitor visitor) throws Exception {
+        scan(fromPosition, Math.min(toPosition, durablePosition), visitor);
+    }
+
+    // Reads frames sequentially until the limit or the first invalid frame, returns the end of the last valid one
+    private long scan(long fromPosition, long limit, Visitor visitor) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        buffer.flip();
+        long position = fromPosition;
+        long filePosition = fromPosition;
+
+        while (position < limit) {
+            if (buffer.remaining() < HEADER_SIZE)
+                filePosition = fill(buffer, filePosition, limit);
+            if (buffer.remaining() < HEADER_SIZE)
+                break;
+
+            int length = buffer.getInt(buffer.position());
+            int checksum = buffer.getInt(buffer.position() + 4);
+            if (length <= 0 || length > MAX_RECORD_SIZE || position + HEADER_SIZE + length > limit)
+                break;
+
+            if (buffer.capacity() < HEADER_SIZE + length) {
+                ByteBuffer larger = ByteBuffer.allocate(HEADER_SIZE + length);
+                larger.put(buffer).flip();
+                buffer = larger;
+            }
+            if (buffer.remaining() < HEADER_SIZE + length)
+                filePosition = fill(buffer, filePosition, limit);
+            if (buffer.remaining() < HEADER_SIZE + length)
+                break;
+
+            ByteBuffer body = buffer.duplicate();
+            body.position(buffer.position() + HEADER_SIZE).limit(buffer.position() + HEADER_SIZE + length);
+            if (checksum(body.duplicate()) != checksum)
+                break;
+
+            if (visitor != null)
+                visitor.visit(position, LogRecord.readFrom(body));
+
+            buffer.position(buffer.position() + HEADER_SIZE + length);
+            position += HEADER_SIZE + length;
+        }
+
+        return position;
+    }
+
+    private long fill(ByteBuffer buffer, long filePosition, long limit) throws IOException {
+        buffer.compact();
+        while (buffer.hasRemaining() && filePosition < limit) {
+            if (limit - filePosition < buffer.remaining())
+                buffer.limit(buffer.position() + (int) (limit - filePosition));
+            int read = channel.read(buffer, filePosition);
+            if (read < 0)
+                break;
+            filePosition += read;
+        }
+        buffer.flip();
+        return filePosition;
+    }
+
+    @Override
+    public LogRecord read(long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, position);
+        int length = header.getInt(0);
+        if (length <= 0 || length > MAX_RECORD_SIZE || position + HEADER_SIZE + length > durablePosition)
+            throw new IOException("no record at position " + position);
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(body, position + HEADER_SIZE);
+        body.flip();
+        if (checksum(body.duplicate()) != header.getInt(4))
+            throw new IOException("corrupted record at position " + position);
+        return LogRecord.readFrom(body);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("unexpected end of log at position " + position);
+            position += read;
+        }
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    private static int checksum(ByteBuffer body) {
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public long endPosition() {
+        return durablePosition;
+    }
+
+    @Override
+    public long nextPosition() {
+        synchronized (lock) {
+            return nextPosition;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}